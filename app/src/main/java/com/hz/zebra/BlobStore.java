@@ -0,0 +1,280 @@
+package com.hz.zebra;
+
+import android.net.Uri;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import com.hz.zebra.core.AsyncLog;
+import com.hz.zebra.core.AtomicFileWriter;
+import com.hz.zebra.core.ErrorCode;
+import com.hz.zebra.core.Result;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Attachments stored by the SHA-256 of their content, so each is stored once however often it is
+ * attached, and served to the page from disk under {@code zebra-blob://<hash>}.
+ * <p>
+ * Notes reference blobs by that url. A blob neither a note nor a version in its history references,
+ * see {@link NoteManifest#getReferencedBlobs()}, is removed by {@link #collect(Set, long)} once it is
+ * old enough that no store still on its way to disk can be about to reference it.
+ */
+class BlobStore {
+    private static final String TAG = "BlobStore";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    public static final String SCHEME = "zebra-blob";
+    private static final Pattern REFERENCE = Pattern.compile(SCHEME + "://([0-9a-f]{64})");
+
+    private final File mDir;
+    private final File mTempDir;
+
+    /**
+     * @param dir     where the blobs live, in one sub dir per first two hash digits
+     * @param tempDir temp dir on the same file system
+     */
+    public BlobStore(File dir, File tempDir) {
+        mDir = dir;
+        mTempDir = tempDir;
+    }
+
+    public static String getUrl(String hash) {
+        return SCHEME + "://" + hash;
+    }
+
+    /**
+     * @return the hashes of all blob urls in {@code text}.
+     */
+    public static Set<String> extractReferences(CharSequence text) {
+        Set<String> hashes = new HashSet<String>();
+        Matcher matcher = REFERENCE.matcher(text);
+        while (matcher.find()) {
+            hashes.add(matcher.group(1));
+        }
+        return hashes;
+    }
+
+    /**
+     * Store everything {@code input} yields and close it.
+     *
+     * @return the blob's hash
+     */
+    public Result<String> store(InputStream input) {
+        File temp = null;
+        DigestInputStream digested = new DigestInputStream(input, newDigest());
+        try (InputStream source = digested) {
+            temp = AtomicFileWriter.createTempFile(mTempDir);
+            try (FileOutputStream output = new FileOutputStream(temp)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = source.read(buffer)) != -1) {
+                    output.write(buffer, 0, n);
+                }
+                output.getFD().sync();
+            }
+            return commit(temp, toHex(digested.getMessageDigest().digest()));
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            if (temp != null) {
+                temp.delete();
+            }
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Store a complete file on the same file system, e.g. a staged import. The file is consumed.
+     *
+     * @return the blob's hash
+     */
+    public Result<String> store(File file) {
+        DigestInputStream digested;
+        try {
+            digested = new DigestInputStream(new FileInputStream(file), newDigest());
+        } catch (FileNotFoundException e) {
+            return Result.error(ErrorCode.FILE_NOT_FOUND);
+        }
+        try {
+            try (InputStream input = digested) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (input.read(buffer) != -1) {
+                    // Only the digest is needed.
+                }
+            }
+            return commit(file, toHex(digested.getMessageDigest().digest()));
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            file.delete();
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    private synchronized Result<String> commit(File file, String hash) throws IOException {
+        File blob = getFile(hash);
+        if (blob.exists()) {
+            file.delete();
+            // Restart the grace period, the blob is about to be referenced again.
+            blob.setLastModified(System.currentTimeMillis());
+            return Result.ok(hash);
+        }
+        File dir = blob.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        if (!file.renameTo(blob)) {
+            throw new IOException("Rename to " + blob + " failed!");
+        }
+        return Result.ok(hash);
+    }
+
+    public boolean contains(String hash) {
+        return hash != null && HASH.matcher(hash).matches() && getFile(hash).isFile();
+    }
+
+    public InputStream open(String hash) throws IOException {
+        if (hash == null || !HASH.matcher(hash).matches()) {
+            throw new IOException("Invalid blob hash: " + hash);
+        }
+        return new FileInputStream(getFile(hash));
+    }
+
+    /**
+     * Delete blobs outside {@code referenced} last stored before {@code olderThan}.
+     *
+     * @return how many were deleted
+     */
+    public synchronized int collect(Set<String> referenced, long olderThan) {
+        int deleted = 0;
+        File[] dirs = mDir.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+        for (File dir : dirs) {
+            File[] blobs = dir.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                if (!referenced.contains(blob.getName()) && blob.lastModified() < olderThan) {
+                    if (blob.delete()) {
+                        deleted++;
+                    } else {
+                        AsyncLog.w(TAG, "Failed to delete " + blob);
+                    }
+                }
+            }
+            // Only succeeds once it is empty.
+            dir.delete();
+        }
+        return deleted;
+    }
+
+    /**
+     * Answer a request for a blob url from disk, for {@code WebViewClient.shouldInterceptRequest}.
+     *
+     * @return null if the request is not for a blob
+     */
+    public WebResourceResponse intercept(WebResourceRequest request) {
+        Uri url = request.getUrl();
+        if (!SCHEME.equals(url.getScheme())) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Access-Control-Allow-Origin", "*");
+        String hash = url.getHost();
+        if (!"GET".equals(request.getMethod()) || !contains(hash)) {
+            return new WebResourceResponse("text/plain", null, 404, "Not Found", headers, null);
+        }
+        try {
+            // The content behind a hash never changes.
+            headers.put("Cache-Control", "max-age=31536000, immutable");
+            InputStream input = new BufferedInputStream(open(hash), BUFFER_SIZE);
+            return new WebResourceResponse(sniffMimeType(input), null, 200, "OK", headers, input);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return new WebResourceResponse("text/plain", null, 500, "Internal Error", headers, null);
+        }
+    }
+
+    /**
+     * @param input supports mark, it is reset to where it was
+     */
+    static String sniffMimeType(InputStream input) throws IOException {
+        byte[] head = new byte[16];
+        input.mark(head.length);
+        int read = 0;
+        int n;
+        while (read < head.length && (n = input.read(head, read, head.length - read)) != -1) {
+            read += n;
+        }
+        input.reset();
+
+        if (startsWith(head, read, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        } else if (startsWith(head, read, 0xff, 0xd8, 0xff)) {
+            return "image/jpeg";
+        } else if (startsWith(head, read, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        } else if (startsWith(head, read, 'R', 'I', 'F', 'F') && read >= 12
+                && head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P') {
+            return "image/webp";
+        } else if (startsWith(head, read, '%', 'P', 'D', 'F')) {
+            return "application/pdf";
+        } else if (startsWith(head, read, '<', 's', 'v', 'g') || startsWith(head, read, '<', '?', 'x', 'm', 'l')) {
+            return "image/svg+xml";
+        } else if (read >= 8 && head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p') {
+            return "video/mp4";
+        } else if (startsWith(head, read, 'I', 'D', '3') || startsWith(head, read, 0xff, 0xfb)) {
+            return "audio/mpeg";
+        }
+        return "application/octet-stream";
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xff) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File getFile(String hash) {
+        return new File(new File(mDir, hash.substring(0, 2)), hash);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,211 @@
+package com.hz.zebra;
+
+import com.hz.zebra.core.JsonWriter;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls of each bridge method, with histograms of their latency and payload sizes.
+ * <p>
+ * Recording takes no lock and allocates nothing once a method was seen, it is a few atomic
+ * increments on the calling thread. Histograms have power of two buckets: bucket i holds values
+ * below 2^i and from 2^(i-1) on, so percentiles of a snapshot are upper bounds within a factor of 2.
+ * <p>
+ * Calls that resolve later, see {@link #beginAsync}, also record the time until they resolved.
+ */
+class BridgeMetrics {
+    private static final String TAG = "BridgeMetrics";
+    private static final int BUCKETS = 40;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    // Response size of a call that resolves later, it is recorded by resolve.
+    public static final long ASYNC = -1;
+
+    static class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // Lost against another thread, retry with its max.
+            }
+        }
+
+        long count() {
+            return mCount.get();
+        }
+
+        /**
+         * Write {count, sum, max, p50, p90, p99, buckets: [...]}, buckets without their
+         * trailing zeros. Concurrent adds may be half in it.
+         */
+        void write(JsonWriter writer) {
+            long[] buckets = new long[BUCKETS];
+            long count = 0;
+            int last = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+                if (buckets[i] > 0) {
+                    last = i;
+                }
+            }
+            long max = mMax.get();
+            writer.beginObject()
+                    .name("count").value(count)
+                    .name("sum").value(mSum.get())
+                    .name("max").value(max);
+            for (double percentile : PERCENTILES) {
+                writer.name("p" + Math.round(percentile * 100)).value(Math.min(max, percentile(buckets, count, percentile)));
+            }
+            writer.name("buckets").beginArray();
+            for (int i = 0; i <= last; i++) {
+                writer.value(buckets[i]);
+            }
+            writer.endArray().endObject();
+        }
+
+        private static long percentile(long[] buckets, long count, double percentile) {
+            long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    // Upper bound of the bucket.
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    static class Method {
+        // Time the bridge call kept the js thread waiting, in microseconds.
+        final Histogram latencyUs = new Histogram();
+        // Time until an async call resolved, in microseconds.
+        final Histogram resolveUs = new Histogram();
+        // Chars passed in and returned or resolved with.
+        final Histogram requestChars = new Histogram();
+        final Histogram responseChars = new Histogram();
+
+        void write(JsonWriter writer) {
+            writer.beginObject().name("calls").value(latencyUs.count());
+            writer.name("latencyUs");
+            latencyUs.write(writer);
+            if (resolveUs.count() > 0) {
+                writer.name("resolveUs");
+                resolveUs.write(writer);
+            }
+            writer.name("requestChars");
+            requestChars.write(writer);
+            writer.name("responseChars");
+            responseChars.write(writer);
+            writer.endObject();
+        }
+    }
+
+    private static class Pending {
+        final Method method;
+        final long start;
+
+        Pending(Method method, long start) {
+            this.method = method;
+            this.start = start;
+        }
+    }
+
+    private final ConcurrentMap<String, Method> mMethods = new ConcurrentHashMap<String, Method>();
+    private final ConcurrentMap<Integer, Pending> mPending = new ConcurrentHashMap<Integer, Pending>();
+    private volatile long mSince = System.currentTimeMillis();
+
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a call that began at {@code start}, see {@link #begin()}.
+     *
+     * @param requestChars  length of the strings passed in
+     * @param responseChars length of the string returned, 0 for other results, {@link #ASYNC}
+     *                      for calls resolving later
+     */
+    public void end(String name, long start, long requestChars, long responseChars) {
+        Method method = get(name);
+        method.latencyUs.add((System.nanoTime() - start) / 1000);
+        method.requestChars.add(requestChars);
+        if (responseChars != ASYNC) {
+            method.responseChars.add(responseChars);
+        }
+    }
+
+    /**
+     * Remember that async call {@code id} of method {@code name} began at {@code start}, so
+     * {@link #resolve} can record how long it took.
+     */
+    public void beginAsync(int id, String name, long start) {
+        mPending.put(id, new Pending(get(name), start));
+    }
+
+    /**
+     * @param responseChars length of the literal the call resolved with
+     */
+    public void resolve(int id, long responseChars) {
+        Pending pending = mPending.remove(id);
+        if (pending != null) {
+            pending.method.resolveUs.add((System.nanoTime() - pending.start) / 1000);
+            pending.method.responseChars.add(responseChars);
+        }
+    }
+
+    public static long length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    private Method get(String name) {
+        Method method = mMethods.get(name);
+        if (method == null) {
+            Method created = new Method();
+            method = mMethods.putIfAbsent(name, created);
+            if (method == null) {
+                method = created;
+            }
+        }
+        return method;
+    }
+
+    public void reset() {
+        mMethods.clear();
+        mSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the members {"since": ms, "now": ms, "pending": n, "methods": {"name": {calls,
+     * latencyUs, resolveUs, requestChars, responseChars}}} into the open object of {@code writer},
+     * histograms as in {@link Histogram#write}, so callers can add members of their own.
+     */
+    public void write(JsonWriter writer) {
+        writer.name("since").value(mSince)
+                .name("now").value(System.currentTimeMillis())
+                .name("pending").value(mPending.size())
+                .name("methods").beginObject();
+        // Sorted, so dumps of two builds diff well.
+        for (Map.Entry<String, Method> entry : new TreeMap<String, Method>(mMethods).entrySet()) {
+            writer.name(entry.getKey());
+            entry.getValue().write(writer);
+        }
+        writer.endObject();
+    }
+}
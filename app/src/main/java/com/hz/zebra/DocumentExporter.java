@@ -0,0 +1,145 @@
+package com.hz.zebra;
+
+import android.os.ParcelFileDescriptor;
+
+import com.hz.zebra.core.AsyncLog;
+import com.hz.zebra.core.ErrorCode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SyncFailedException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an export into a document the user picked, e.g. through ACTION_CREATE_DOCUMENT, and
+ * reports progress and the real outcome.
+ * <p>
+ * Files are copied with {@link FileChannel#transferTo}, which lets the kernel move the bytes
+ * without them passing through the java heap.
+ */
+class DocumentExporter {
+    private static final String TAG = "DocumentExporter";
+    // transferTo is called in steps this big, so progress can be reported in between.
+    private static final long TRANSFER_STEP = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    public static final long UNKNOWN_SIZE = -1;
+
+    interface Listener {
+        void onExportProgress(long bytesWritten, long totalBytes);
+
+        void onExportResult(ErrorCode code);
+    }
+
+    /**
+     * What gets exported, e.g. a note or an archive.
+     */
+    interface Source {
+        void writeTo(FileOutputStream output, Progress progress) throws IOException;
+    }
+
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Passes progress on to the listener, at most every {@link #PROGRESS_INTERVAL_MS}.
+     */
+    static class Progress {
+        private final Listener mListener;
+        private long mLastReport;
+
+        Progress(Listener listener) {
+            mListener = listener;
+        }
+
+        /**
+         * @param totalBytes or {@link #UNKNOWN_SIZE}
+         */
+        public void report(long bytesWritten, long totalBytes) {
+            long now = System.currentTimeMillis();
+            if (now - mLastReport >= PROGRESS_INTERVAL_MS || bytesWritten == totalBytes) {
+                mLastReport = now;
+                mListener.onExportProgress(bytesWritten, totalBytes);
+            }
+        }
+    }
+
+    /**
+     * A file exported as it is.
+     */
+    public static Source fromFile(final File file) {
+        return new Source() {
+            @Override
+            public void writeTo(FileOutputStream output, Progress progress) throws IOException {
+                try (FileInputStream input = new FileInputStream(file)) {
+                    FileChannel source = input.getChannel();
+                    FileChannel target = output.getChannel();
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = source.transferTo(position, Math.min(TRANSFER_STEP, size - position), target);
+                        if (transferred <= 0) {
+                            throw new IOException("Transfer of " + file + " stalled at " + position);
+                        }
+                        position += transferred;
+                        progress.report(position, size);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Data that has to be decoded on the way, so it is copied through a buffer.
+     *
+     * @param size bytes the stream will yield, or {@link #UNKNOWN_SIZE}
+     */
+    public static Source fromStream(final StreamOpener opener, final long size) {
+        return new Source() {
+            @Override
+            public void writeTo(FileOutputStream output, Progress progress) throws IOException {
+                try (InputStream input = opener.open()) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long written = 0;
+                    int n;
+                    while ((n = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, n);
+                        written += n;
+                        progress.report(written, size);
+                    }
+                    progress.report(written, written);
+                }
+            }
+        };
+    }
+
+    /**
+     * Write {@code source} into {@code target} and close it. Runs on the calling thread, the
+     * listener is called on it too.
+     */
+    public static ErrorCode export(Source source, ParcelFileDescriptor target, Listener listener) {
+        ErrorCode code;
+        try (FileOutputStream output = new ParcelFileDescriptor.AutoCloseOutputStream(target)) {
+            source.writeTo(output, new Progress(listener));
+            try {
+                output.getFD().sync();
+            } catch (SyncFailedException e) {
+                // Pipes from remote providers can't be synced, closing still hands everything over.
+            }
+            code = ErrorCode.NO_ERROR;
+        } catch (FileNotFoundException e) {
+            code = ErrorCode.FILE_NOT_FOUND;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            code = ErrorCode.UNKNOWN;
+        }
+        listener.onExportResult(code);
+        return code;
+    }
+}
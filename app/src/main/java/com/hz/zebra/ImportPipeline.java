@@ -0,0 +1,234 @@
+package com.hz.zebra;
+
+import com.hz.zebra.core.AsyncLog;
+import com.hz.zebra.core.ErrorCode;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies imported documents into staging files on a small worker pool, several at a time.
+ * <p>
+ * Every import gets its own id and staging file, reports byte progress while it copies and can be
+ * cancelled. A finished import stays staged until it is released.
+ */
+class ImportPipeline {
+    private static final String TAG = "ImportPipeline";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Report at most this often per import, js does not need every buffer.
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    public static final long UNKNOWN_SIZE = -1;
+
+    interface Source {
+        InputStream open() throws IOException;
+
+        /**
+         * @return size in bytes, or {@link #UNKNOWN_SIZE}
+         */
+        long size();
+    }
+
+    interface Listener {
+        void onImportProgress(int id, long bytesRead, long totalBytes);
+
+        void onImportResult(int id, ErrorCode code);
+    }
+
+    private class Job implements Runnable {
+        final int id;
+        final Source source;
+        final File file;
+        // Whoever flips this first, the worker or cancel(), reports the result.
+        final AtomicBoolean started = new AtomicBoolean();
+        volatile boolean cancelled;
+        volatile boolean finished;
+        Future<?> future;
+
+        Job(int id, Source source) {
+            this.id = id;
+            this.source = source;
+            this.file = new File(mStagingDir, "import_" + id);
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            ErrorCode code = copy();
+            finished = code == ErrorCode.NO_ERROR;
+            if (!finished) {
+                mJobs.remove(id);
+                deleteQuietly(file);
+            }
+            mListener.onImportResult(id, code);
+        }
+
+        private ErrorCode copy() {
+            long total = source.size();
+            long read = 0;
+            long lastReport = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream input = source.open(); FileOutputStream output = new FileOutputStream(file)) {
+                if (input == null) {
+                    return ErrorCode.UNKNOWN;
+                }
+                int byteRead;
+                while ((byteRead = input.read(buffer)) != -1) {
+                    if (cancelled || Thread.currentThread().isInterrupted()) {
+                        return ErrorCode.CANCELLED;
+                    }
+                    output.write(buffer, 0, byteRead);
+                    read += byteRead;
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                        lastReport = now;
+                        mListener.onImportProgress(id, read, total);
+                    }
+                }
+                mListener.onImportProgress(id, read, read);
+                return cancelled ? ErrorCode.CANCELLED : ErrorCode.NO_ERROR;
+            } catch (FileNotFoundException e) {
+                return ErrorCode.FILE_NOT_FOUND;
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                return cancelled ? ErrorCode.CANCELLED : ErrorCode.UNKNOWN;
+            }
+        }
+    }
+
+    private final File mStagingDir;
+    private final Listener mListener;
+    private final ExecutorService mWorkers;
+    private final Map<Integer, Job> mJobs = new ConcurrentHashMap<Integer, Job>();
+    private final AtomicInteger mNextId = new AtomicInteger(1);
+
+    /**
+     * @param stagingDir where imports are staged, cleared on creation
+     * @param listener   called on the worker threads
+     */
+    public ImportPipeline(File stagingDir, Listener listener) {
+        mStagingDir = stagingDir;
+        mListener = listener;
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        mWorkers = Executors.newFixedThreadPool(workers);
+
+        if (!mStagingDir.isDirectory() && !mStagingDir.mkdirs()) {
+            AsyncLog.e(TAG, "Failed to create " + mStagingDir);
+        }
+        File[] files = mStagingDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * Give every document an import id, without starting it yet, so the ids can be announced
+     * before any progress or result for them is reported.
+     *
+     * @return the import ids, in the order of {@code sources}
+     */
+    public List<Integer> prepare(List<Source> sources) {
+        List<Integer> ids = new ArrayList<Integer>(sources.size());
+        for (Source source : sources) {
+            Job job = new Job(mNextId.getAndIncrement(), source);
+            mJobs.put(job.id, job);
+            ids.add(job.id);
+        }
+        return ids;
+    }
+
+    /**
+     * Start prepared imports, they run in parallel up to the pool size.
+     */
+    public void start(List<Integer> ids) {
+        for (int id : ids) {
+            Job job = mJobs.get(id);
+            if (job == null) {
+                // Cancelled or released meanwhile.
+                continue;
+            }
+            try {
+                synchronized (job) {
+                    job.future = mWorkers.submit(job);
+                }
+            } catch (RejectedExecutionException e) {
+                if (job.started.compareAndSet(false, true)) {
+                    mJobs.remove(job.id);
+                    mListener.onImportResult(job.id, ErrorCode.CANCELLED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop an import still running. It reports {@link ErrorCode#CANCELLED}.
+     */
+    public void cancel(int id) {
+        Job job = mJobs.get(id);
+        if (job == null) {
+            return;
+        }
+        job.cancelled = true;
+        if (job.started.compareAndSet(false, true)) {
+            // Never ran and never will, report it here.
+            mJobs.remove(id);
+            mListener.onImportResult(id, ErrorCode.CANCELLED);
+        }
+        synchronized (job) {
+            if (job.future != null) {
+                // Unblocks interruptible reads of a running copy.
+                job.future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return the staged file of a finished import, or null.
+     */
+    public File getStaged(int id) {
+        Job job = mJobs.get(id);
+        return job != null && job.finished ? job.file : null;
+    }
+
+    /**
+     * Delete the staged file of an import.
+     */
+    public void release(int id) {
+        Job job = mJobs.remove(id);
+        if (job != null) {
+            job.cancelled = true;
+            deleteQuietly(job.file);
+        }
+    }
+
+    public void shutdown() {
+        mWorkers.shutdownNow();
+        for (int id : new ArrayList<Integer>(mJobs.keySet())) {
+            release(id);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            AsyncLog.w(TAG, "Failed to delete " + file);
+        }
+    }
+}
@@ -7,34 +7,65 @@ import androidx.core.os.CancellationSignal;
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKeys;
 
+import android.content.ActivityNotFoundException;
+import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.telecom.Call;
 import android.util.Base64;
+import android.util.Base64InputStream;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
+import android.webkit.ValueCallback;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.Toast;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-
+import com.hz.zebra.core.AsyncLog;
+import com.hz.zebra.core.AtomicFileWriter;
+import com.hz.zebra.core.BatchRunner;
+import com.hz.zebra.core.ChunkedTransfer;
+import com.hz.zebra.core.ErrorCode;
+import com.hz.zebra.core.IoScheduler;
+import com.hz.zebra.core.JsSettingsUtils;
+import com.hz.zebra.core.JsonReader;
+import com.hz.zebra.core.JsonWriter;
+import com.hz.zebra.core.NoteArchive;
+import com.hz.zebra.core.NoteCodec;
+import com.hz.zebra.core.NoteHistory;
+import com.hz.zebra.core.NoteJournal;
+import com.hz.zebra.core.Result;
+import com.hz.zebra.core.SearchIndex;
+import com.hz.zebra.core.SegmentedCipher;
+import com.hz.zebra.core.StripedLock;
+import com.hz.zebra.core.SyncEngine;
+import com.hz.zebra.core.Utf8StreamReader;
+import com.hz.zebra.core.WriteBehindQueue;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.AlgorithmParameters;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
@@ -44,108 +75,49 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
 
-enum ErrorCode {
-    NO_ERROR,
-    UNKNOWN,
-    INVALID_ARGS,
-    FILE_NOT_FOUND
-}
-
-class Result<T> {
-    public T value;
-    public ErrorCode code;
-
-    public Result(T value, ErrorCode code) {
-        this.value = value;
-        this.code = code;
-    }
-
-    public boolean isOk() {
-        return code == ErrorCode.NO_ERROR;
-    }
-
-    public static <T> Result<T> ok(T value) {
-        return new Result<T>(value, ErrorCode.NO_ERROR);
-    }
-
-    public static <T> Result<T> error(ErrorCode code) {
-        return new Result<T>(null, code);
-    }
-}
-
-class StreamUtils {
-    public static Result<String> readStringFromStream(InputStream input) {
-        if (input == null) {
-            return Result.error(ErrorCode.INVALID_ARGS);
-        }
-
-        try {
-            StringBuilder sb = new StringBuilder();
-            byte[] buffer = new byte[1024];
-            int byteRead = 0;
-            while ((byteRead = input.read(buffer)) != -1) {
-                sb.append(new String(buffer, 0, byteRead));
-            }
-            return Result.ok(sb.toString());
-        } catch (Exception e) {
-            Log.e("FileUtils", e.getMessage());
-            return Result.error(ErrorCode.UNKNOWN);
-        }
-    }
-
-    public static ErrorCode writeStringToStream(OutputStream output, String data) {
-        if (output == null) {
-            return ErrorCode.INVALID_ARGS;
-        }
-
-        try {
-            output.write(data.getBytes());
-            return ErrorCode.NO_ERROR;
-        } catch (Exception e) {
-            Log.e("FileUtils", e.getMessage());
-            return ErrorCode.UNKNOWN;
-        }
-    }
-}
-
-class JsSettingsUtils {
-    public static String generate(Map<String, String> map) {
-        String before = "zebra-settings {";
-        String after = "}";
-        String insert = ":";
-        String separator = ";";
-
-        StringBuilder content = new StringBuilder();
-        content.append(before);
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            content.append(entry.getKey());
-            content.append(insert);
-            content.append(entry.getValue());
-            content.append(separator);
-        }
-        content.append(after);
-
-        return content.toString();
-    }
-}
-
 class KeyStoreWrapper {
     public static final String ALIAS_DEFAULT_KEY = "__ZEBRA_KEY__";
     public static final String SHARED_PREFERENCES_FILENAME = "__ZEBRA_PREFS__";
 
     private static final String PROVIDER_NAME = "AndroidKeyStore";
+    // Decrypted values are kept this long after they were last read from disk.
+    private static final long CACHE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static class CachedValue {
+        // Null if the key is not stored, that is worth caching too.
+        final String value;
+        final long expiresAt;
+
+        CachedValue(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
 
     private KeyStore mKeyStore;
     private SharedPreferences mSharedPreferences;
+    private final Map<String, CachedValue> mCache = new HashMap<String, CachedValue>();
+    // Guarded by mCache, bumped by every change, so a slow load never caches a replaced value.
+    private long mGeneration;
 
     public KeyStoreWrapper() {
         try {
@@ -169,11 +141,11 @@ class KeyStoreWrapper {
 
             keyGenerator.init(spec);
             keyGenerator.generateKey();
-            Log.w("KeyStore", "Secret key [" + alias + "] generated");
+            AsyncLog.w("KeyStore", "Secret key [" + alias + "] generated");
             return true;
         } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
             e.printStackTrace();
-            Log.w("KeyStore", "Failed to generate secret key [" + alias + "]");
+            AsyncLog.w("KeyStore", "Failed to generate secret key [" + alias + "]");
             return false;
         }
     }
@@ -226,21 +198,87 @@ class KeyStoreWrapper {
             SharedPreferences.Editor editor = mSharedPreferences.edit();
             editor.putString(key, value);
             editor.apply();
+            // After the change, a load that read the old value is older than this generation.
+            invalidate(key);
             return true;
         }
         return false;
     }
 
     public String loadFromSharedPreferences(String key) {
-        if (mSharedPreferences != null) {
-            return mSharedPreferences.getString(key, null);
+        return loadFromSharedPreferences(new String[]{key})[0];
+    }
+
+    /**
+     * Load several values in one pass: one cache lookup, and only the missing or expired values
+     * are read and decrypted from disk.
+     *
+     * @return the values in the order of {@code keys}, null where a key is not stored
+     */
+    public String[] loadFromSharedPreferences(String[] keys) {
+        String[] values = new String[keys.length];
+        if (mSharedPreferences == null) {
+            return values;
+        }
+
+        boolean[] missing = new boolean[keys.length];
+        boolean anyMissing = false;
+        long now = SystemClock.elapsedRealtime();
+        long generation;
+        synchronized (mCache) {
+            for (int i = 0; i < keys.length; i++) {
+                CachedValue cached = mCache.get(keys[i]);
+                if (cached != null && cached.expiresAt > now) {
+                    values[i] = cached.value;
+                } else {
+                    missing[i] = true;
+                    anyMissing = true;
+                }
+            }
+            generation = mGeneration;
+        }
+        if (!anyMissing) {
+            return values;
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (missing[i]) {
+                values[i] = mSharedPreferences.getString(keys[i], null);
+            }
+        }
+        synchronized (mCache) {
+            if (generation == mGeneration) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (missing[i]) {
+                        mCache.put(keys[i], new CachedValue(values[i], now + CACHE_TIMEOUT_MS));
+                    }
+                }
+            }
         }
-        return null;
+        return values;
     }
 
     public void removeFromSharedPreferences(String key) {
         if (mSharedPreferences != null) {
             mSharedPreferences.edit().remove(key).apply();
+            invalidate(key);
+        }
+    }
+
+    private void invalidate(String key) {
+        synchronized (mCache) {
+            mGeneration++;
+            mCache.remove(key);
+        }
+    }
+
+    /**
+     * Forget all decrypted values, e.g. when the app goes to the background.
+     */
+    public void clearCache() {
+        synchronized (mCache) {
+            mGeneration++;
+            mCache.clear();
         }
     }
 }
@@ -248,15 +286,87 @@ class KeyStoreWrapper {
 public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_CODE_JS_IMPORT_FILE = 1;
     private static final int REQUEST_CODE_JS_EXPORT_FILE = 2;
+    private static final int REQUEST_CODE_JS_IMPORT_FILES = 3;
+    private static final int REQUEST_CODE_JS_CREATE_DOCUMENT = 4;
+    private static final int REQUEST_CODE_JS_RESTORE_ARCHIVE = 5;
 
     private WebView mMainView;
     private String mJsRequestedData;
-    private ExecutorService mIOExecutor;
+    private IoScheduler mIOExecutor;
     private JsPlatform mJsPlatform;
-    private KeyStoreWrapper mKeyStore;
+    // Loading the key store is slow, it runs in the background while the page loads.
+    private FutureTask<KeyStoreWrapper> mKeyStore;
+    private StartupTracer mStartup;
+    private boolean mPageFinished;
+    private NoteCache mNoteCache;
+    private WriteBehindQueue mWriteBehind;
+    private File mStagingDir;
+    private NoteJournal mJournal;
+    private SegmentedCipher mCipher;
+    private ChunkedTransfer mTransfer;
+    private ImportPipeline mImports;
+    private SearchIndex mSearchIndex;
+    // Set once the manifest is loaded and reconciled, until then it may list too few notes.
+    private volatile boolean mManifestReady;
+    private NoteManifest mManifest;
+    private BlobStore mBlobs;
+    private NoteHistory mHistory;
+    private SyncEngine mSync;
+    private WebAssetServer mWebAssets;
+    private final BridgeMetrics mBridgeMetrics = new BridgeMetrics();
+    // Imports started through showFileImporter, they still end up in mJsRequestedData.
+    private final Set<Integer> mLegacyImports = Collections.synchronizedSet(new HashSet<Integer>());
+    // What to write once the user picked where, see showDocumentExporter.
+    private volatile DocumentExporter.Source mPendingExport;
+    // Orders stores and patches of a note, so a patch always applies to its newest stored version.
+    private final StripedLock mStoreLocks = new StripedLock(STORE_LOCK_STRIPES);
+
+    private static final int BATCH_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int STORE_LOCK_STRIPES = 64;
+    // Batch stores and deletes run in order with each other.
+    private static final String BATCH_KEY = "__ZEBRA_BATCH__";
+    // Reads of one chunked transfer handle run in order with each other.
+    private static final String CHUNK_KEY_PREFIX = "__ZEBRA_CHUNK__";
+
+    private static final int WEB_ASSET_CACHE_BYTES = 8 * 1024 * 1024;
+
+    // Unreferenced blobs younger than this are kept, a note referencing them may not be stored yet.
+    private static final long BLOB_GRACE_MS = 24 * 60 * 60 * 1000;
+
+    // Stores closer together than this become one version of the note's history.
+    private static final long HISTORY_AMEND_INTERVAL_MS = 5 * 60 * 1000;
+    // Pruned to at startup, the newest version of a note is always kept.
+    private static final int HISTORY_KEEP_VERSIONS = 50;
+    private static final long HISTORY_KEEP_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final String SETTINGS_FILENAME = "__ZEBRA_SETTINGS__";
+    private static final String SETTING_ENCRYPT_NOTES = "encrypt_notes";
+    private static final String SETTING_LOG_LEVEL = "log_level";
+    private static final String SETTING_LOG_TO_FILE = "log_to_file";
+    // Backups are written rarely and read even more rarely, size matters more than speed.
+    private static final int ARCHIVE_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
 
     private static final String KEY_SUB_PWD = "__ZEBRA_SUB_PWD__";
     private static final String KEY_KEY = "__ZEBRA_KEY__";
+    private static final String KEY_SYNC_TOKEN = "__ZEBRA_SYNC_TOKEN__";
+
+    // Orders sync runs and changes of the sync server, they block on the network.
+    private static final String SYNC_KEY = "__ZEBRA_SYNC__";
+    // Notes per sync push request, in chars before compression.
+    private static final int SYNC_BATCH_CHARS = 512 * 1024;
+
+    // Stores to the same file within this window are merged into one write.
+    private static final long WRITE_BEHIND_WINDOW_MS = 1000;
+    // A note is compacted once its journal is half the size of its snapshot.
+    private static final float JOURNAL_COMPACT_RATIO = 0.5f;
+    // Notes from this size on are stored compressed. Level 1 gets most of the ratio of level 6
+    // at a fraction of the cost, see the CodecThroughput jmh benchmark.
+    private static final long COMPRESSION_THRESHOLD = 16 * 1024;
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    // Orders all search index tasks, e.g. the initial load before any update.
+    private static final String SEARCH_INDEX_KEY = "__ZEBRA_SEARCH_INDEX__";
+    // Orders all manifest tasks, like the search index.
+    private static final String MANIFEST_KEY = "__ZEBRA_MANIFEST__";
 
     private void InitWebView() {
         // Enable javascript
@@ -288,15 +398,194 @@ public class MainActivity extends AppCompatActivity {
             public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
                 return false;
             }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                WebResourceResponse response = mBlobs.intercept(request);
+                return response != null ? response : mWebAssets.intercept(request);
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                if (!mPageFinished) {
+                    mPageFinished = true;
+                    mStartup.mark("page-finished");
+                    mStartup.log();
+                }
+            }
         });
     }
 
     private void InitKeyStore() {
-        mKeyStore = new KeyStoreWrapper();
-        if (!mKeyStore.hasSecretKey(KeyStoreWrapper.ALIAS_DEFAULT_KEY)) {
-            mKeyStore.createSecretKey(KeyStoreWrapper.ALIAS_DEFAULT_KEY);
+        mKeyStore = new FutureTask<KeyStoreWrapper>(new Callable<KeyStoreWrapper>() {
+            @Override
+            public KeyStoreWrapper call() {
+                StartupTracer.Span span = mStartup.begin("keystore");
+                KeyStoreWrapper keyStore = new KeyStoreWrapper();
+                if (!keyStore.hasSecretKey(KeyStoreWrapper.ALIAS_DEFAULT_KEY)) {
+                    keyStore.createSecretKey(KeyStoreWrapper.ALIAS_DEFAULT_KEY);
+                }
+                keyStore.loadSharedPreferences(getApplicationContext(), KeyStoreWrapper.ALIAS_DEFAULT_KEY);
+                span.end();
+                return keyStore;
+            }
+        });
+        mIOExecutor.submit(IoScheduler.Priority.INTERACTIVE, null, mKeyStore);
+    }
+
+    /**
+     * @return the key store, waiting for it if it is still loading. Null if loading failed.
+     */
+    private KeyStoreWrapper getKeyStore() {
+        StartupTracer.Span span = mKeyStore.isDone() ? null : mStartup.begin("keystore-wait");
+        try {
+            return mKeyStore.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            AsyncLog.e("KeyStore", String.valueOf(e.getCause()));
+            return null;
+        } finally {
+            if (span != null) {
+                span.end();
+            }
+        }
+    }
+
+    private void InitStorage() {
+        mStagingDir = getDir("staging", Context.MODE_PRIVATE);
+        AtomicFileWriter.cleanTempDir(mStagingDir);
+        // Decrypted copies shared by earlier exports.
+        File[] exported = new File(getCacheDir(), "export").listFiles();
+        if (exported != null) {
+            for (File file : exported) {
+                file.delete();
+            }
         }
-        mKeyStore.loadSharedPreferences(getApplicationContext(), KeyStoreWrapper.ALIAS_DEFAULT_KEY);
+        mCipher = new SegmentedCipher(new SegmentedCipher.KeySource() {
+            @Override
+            public SecretKey getKey() {
+                KeyStoreWrapper keyStore = getKeyStore();
+                return keyStore != null ? keyStore.getSecretKey(KeyStoreWrapper.ALIAS_DEFAULT_KEY) : null;
+            }
+        }, SegmentedCipher.DEFAULT_SEGMENT_SIZE);
+        mJournal = new NoteJournal(getFilesDir(), getDir("journal", Context.MODE_PRIVATE), mStagingDir,
+                mIOExecutor, JOURNAL_COMPACT_RATIO, mCipher,
+                new NoteCodec(NoteCodec.DEFLATE, COMPRESSION_LEVEL, COMPRESSION_THRESHOLD));
+        mJournal.setEncrypted(getSharedPreferences(SETTINGS_FILENAME, Context.MODE_PRIVATE)
+                .getBoolean(SETTING_ENCRYPT_NOTES, false));
+        mTransfer = new ChunkedTransfer(mStagingDir);
+        mSearchIndex = new SearchIndex(new File(getDir("index", Context.MODE_PRIVATE), "search.idx"));
+        mIOExecutor.submit(IoScheduler.Priority.BACKGROUND, SEARCH_INDEX_KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (mSearchIndex.load() != ErrorCode.NO_ERROR) {
+                    rebuildSearchIndex();
+                } else {
+                    reconcileSearchIndex();
+                }
+            }
+        });
+        mManifest = new NoteManifest(new File(getDir("index", Context.MODE_PRIVATE), "manifest.bin"));
+        // Before the manifest task below, it collects blobs and prunes history.
+        mBlobs = new BlobStore(getDir("blobs", Context.MODE_PRIVATE), mStagingDir);
+        mHistory = new NoteHistory(getDir("history", Context.MODE_PRIVATE), mStagingDir, HISTORY_AMEND_INTERVAL_MS,
+                mCipher);
+        mHistory.setEncrypted(mJournal.isEncrypted());
+        mIOExecutor.submit(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+            @Override
+            public void run() {
+                mManifest.load();
+                reconcileManifest();
+                mManifestReady = true;
+                if (mJsPlatform != null) {
+                    mJsPlatform.onManifestReady();
+                }
+                // Only now the manifest knows every reference.
+                collectBlobsNow();
+            }
+        });
+        mIOExecutor.submit(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+            @Override
+            public void run() {
+                mHistory.prune(HISTORY_KEEP_VERSIONS, HISTORY_KEEP_MS);
+                // Finishes a conversion cut off by the app being killed.
+                mHistory.recode();
+            }
+        });
+        mSync = new SyncEngine(getDir("sync", Context.MODE_PRIVATE), mStagingDir, new SyncEngine.Store() {
+            @Override
+            public String[] list() {
+                return listInternalFiles();
+            }
+
+            @Override
+            public Result<String> read(String name) {
+                return readInternalFile(name);
+            }
+
+            @Override
+            public ErrorCode write(String name, String data) {
+                return writeInternalFile(name, data);
+            }
+
+            @Override
+            public boolean delete(String name) {
+                return deleteInternalFile(name);
+            }
+
+            @Override
+            public long lastModified(String name) {
+                return mJournal.lastModified(name);
+            }
+
+            @Override
+            public long getStamp(String name) {
+                return mJournal.getStamp(name);
+            }
+
+            @Override
+            public void lock(String name) {
+                // The lock stores from the page take, so they wait for a merge in progress.
+                mStoreLocks.lock(name);
+            }
+
+            @Override
+            public void unlock(String name) {
+                mStoreLocks.unlock(name);
+            }
+        }, SYNC_BATCH_CHARS, mCipher);
+        recodeSyncState(mJournal.isEncrypted());
+        syncInBackground();
+        mImports = new ImportPipeline(new File(getCacheDir(), "import"), new ImportPipeline.Listener() {
+            @Override
+            public void onImportProgress(int id, long bytesRead, long totalBytes) {
+                mJsPlatform.onImportProgress(id, bytesRead, totalBytes);
+            }
+
+            @Override
+            public void onImportResult(int id, ErrorCode code) {
+                if (mLegacyImports.remove(id)) {
+                    onLegacyImportResult(id, code);
+                } else {
+                    mJsPlatform.onImportResult(id, code);
+                }
+            }
+        });
+        mWriteBehind = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public ErrorCode write(String name, String data) {
+                return writeInternalFileNow(name, data);
+            }
+        }, new WriteBehindQueue.Listener() {
+            @Override
+            public void onWriteFailed(String name, ErrorCode code, int failures) {
+                if (mJsPlatform != null) {
+                    mJsPlatform.onWriteFailed(name, code, failures);
+                }
+            }
+        }, mIOExecutor, WRITE_BEHIND_WINDOW_MS);
     }
 
     @Override
@@ -304,22 +593,91 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        mStartup = new StartupTracer();
+        StartupTracer.Span onCreate = mStartup.begin("on-create");
+        InitLogging();
+
         // Create IO executor
-        mIOExecutor = Executors.newSingleThreadExecutor();
-        InitWebView();
+        StartupTracer.Span span = mStartup.begin("storage");
+        mIOExecutor = new IoScheduler();
+        mNoteCache = NoteCache.create();
+        // Started first so it overlaps with the page load, and is there for encrypted notes
         InitKeyStore();
+        InitStorage();
+        span.end();
+
+        // Read while the WebView is being created, so the page's first requests hit memory.
+        mWebAssets = new WebAssetServer(getAssets(), "web", WEB_ASSET_CACHE_BYTES);
+        final StartupTracer.Span prefetch = mStartup.begin("asset-prefetch");
+        mWebAssets.prefetch("index.html", getBatchExecutor(IoScheduler.Priority.INTERACTIVE), new Runnable() {
+            @Override
+            public void run() {
+                prefetch.end();
+            }
+        });
+
+        span = mStartup.begin("webview");
+        InitWebView();
+        span.end();
+
         // Load our web
-        mMainView.loadUrl("file:///android_asset/web/index.html");
+        span = mStartup.begin("load-url");
+        mMainView.loadUrl(mWebAssets.getUrl("index.html"));
+        span.end();
+        onCreate.end();
+    }
+
+    @Override
+    protected void onPause() {
+        // We may be killed any time after this, get pending stores on disk, without fsyncs on this thread.
+        mWriteBehind.flushAllInBackground();
+        saveSearchIndex();
+        saveManifest();
+        syncInBackground();
+        super.onPause();
+    }
+
+    @Override
+    protected void onStop() {
+        // Don't keep secrets around in the background. Not loaded yet means nothing is cached.
+        if (mKeyStore != null && mKeyStore.isDone()) {
+            KeyStoreWrapper keyStore = getKeyStore();
+            if (keyStore != null) {
+                keyStore.clearCache();
+            }
+        }
+        super.onStop();
     }
 
     @Override
     protected void onDestroy() {
+        if (mTransfer != null) {
+            mTransfer.closeAll();
+        }
+        if (mImports != null) {
+            mImports.shutdown();
+        }
+        if (mWriteBehind != null) {
+            mWriteBehind.shutdown();
+        }
         if (mIOExecutor != null) {
             mIOExecutor.shutdown();
         }
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mNoteCache.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mNoteCache.invalidateAll();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
@@ -328,6 +686,16 @@ public class MainActivity extends AppCompatActivity {
                 break;
             case REQUEST_CODE_JS_EXPORT_FILE:
                 onJsFileSaverResult(requestCode, resultCode, data);
+                break;
+            case REQUEST_CODE_JS_IMPORT_FILES:
+                onJsMultiFileChooserResult(requestCode, resultCode, data);
+                break;
+            case REQUEST_CODE_JS_CREATE_DOCUMENT:
+                onJsDocumentCreatorResult(requestCode, resultCode, data);
+                break;
+            case REQUEST_CODE_JS_RESTORE_ARCHIVE:
+                onJsArchiveChooserResult(requestCode, resultCode, data);
+                break;
             default:
                 break;
         }
@@ -335,7 +703,145 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void onJsFileSaverResult(int requestCode, int resultCode, final Intent data) {
-        mJsPlatform.onFileExporterResult(true);
+        // A share target does not tell us whether it saved anything, only the chooser's result is known.
+        mJsPlatform.onFileExporterResult(resultCode == RESULT_OK ? ErrorCode.NO_ERROR : ErrorCode.CANCELLED);
+    }
+
+    private void onJsDocumentCreatorResult(int requestCode, int resultCode, final Intent data) {
+        final DocumentExporter.Source source = mPendingExport;
+        mPendingExport = null;
+        if (source == null || data == null || data.getData() == null || resultCode != RESULT_OK) {
+            mJsPlatform.onFileExporterResult(ErrorCode.CANCELLED);
+            return;
+        }
+
+        final ParcelFileDescriptor target;
+        try {
+            target = getContentResolver().openFileDescriptor(data.getData(), "w");
+        } catch (FileNotFoundException e) {
+            mJsPlatform.onFileExporterResult(ErrorCode.FILE_NOT_FOUND);
+            return;
+        }
+        if (target == null) {
+            mJsPlatform.onFileExporterResult(ErrorCode.UNKNOWN);
+            return;
+        }
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, null, new Runnable() {
+            @Override
+            public void run() {
+                DocumentExporter.export(source, target, new DocumentExporter.Listener() {
+                    @Override
+                    public void onExportProgress(long bytesWritten, long totalBytes) {
+                        mJsPlatform.onFileExporterProgress(bytesWritten, totalBytes);
+                    }
+
+                    @Override
+                    public void onExportResult(ErrorCode code) {
+                        mJsPlatform.onFileExporterResult(code);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * A note as exported: its complete, decoded content.
+     */
+    private DocumentExporter.Source createNoteExportSource(final String name) {
+        return new DocumentExporter.Source() {
+            @Override
+            public void writeTo(FileOutputStream output, DocumentExporter.Progress progress) throws IOException {
+                // The exported file must be the complete note.
+                ErrorCode flushed = mWriteBehind.flush(name);
+                if (flushed != ErrorCode.NO_ERROR) {
+                    throw new IOException("Storing " + name + " failed: " + flushed);
+                }
+                mJournal.compact(name);
+                if (mJournal.isStoredAsText(name)) {
+                    DocumentExporter.fromFile(new File(getFilesDir(), name)).writeTo(output, progress);
+                    return;
+                }
+                final InputStream input = mJournal.openSnapshot(name);
+                DocumentExporter.fromStream(new DocumentExporter.StreamOpener() {
+                    @Override
+                    public InputStream open() {
+                        return input;
+                    }
+                }, NoteCodec.getLength(input)).writeTo(output, progress);
+            }
+        };
+    }
+
+    /**
+     * All notes as one zip, see {@link NoteArchive}.
+     */
+    private DocumentExporter.Source createArchiveExportSource() {
+        return new DocumentExporter.Source() {
+            @Override
+            public void writeTo(FileOutputStream output, final DocumentExporter.Progress progress) throws IOException {
+                // The archived notes must be complete.
+                mWriteBehind.flushAll();
+                new NoteArchive(ARCHIVE_COMPRESSION_LEVEL).export(new NoteArchive.Notes() {
+                    @Override
+                    public String[] list() {
+                        return listInternalFiles();
+                    }
+
+                    @Override
+                    public InputStream open(String name) throws IOException {
+                        mJournal.compact(name);
+                        return mJournal.openSnapshot(name);
+                    }
+
+                    @Override
+                    public long lastModified(String name) {
+                        return new File(getFilesDir(), name).lastModified();
+                    }
+                }, output, new NoteArchive.Progress() {
+                    @Override
+                    public void onProgress(long bytes, long totalBytes) {
+                        progress.report(bytes, totalBytes);
+                    }
+                });
+            }
+        };
+    }
+
+    private void onJsArchiveChooserResult(int requestCode, int resultCode, final Intent data) {
+        if (data == null || data.getData() == null || resultCode != RESULT_OK) {
+            mJsPlatform.onArchiveRestoreResult(ErrorCode.CANCELLED, 0);
+            return;
+        }
+
+        final ImportPipeline.Source source = createImportSource(data.getData());
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, null, new Runnable() {
+            @Override
+            public void run() {
+                try (InputStream input = source.open()) {
+                    if (input == null) {
+                        mJsPlatform.onArchiveRestoreResult(ErrorCode.FILE_NOT_FOUND, 0);
+                        return;
+                    }
+                    int count = NoteArchive.restore(input, source.size(), mStagingDir, new NoteArchive.Restorer() {
+                        @Override
+                        public ErrorCode commit(String name, File file) {
+                            return commitInternalFile(name, file);
+                        }
+                    }, new NoteArchive.Progress() {
+                        @Override
+                        public void onProgress(long bytes, long totalBytes) {
+                            mJsPlatform.onArchiveRestoreProgress(bytes, totalBytes);
+                        }
+                    });
+                    mJsPlatform.onArchiveRestoreResult(ErrorCode.NO_ERROR, count);
+                } catch (FileNotFoundException e) {
+                    mJsPlatform.onArchiveRestoreResult(ErrorCode.FILE_NOT_FOUND, 0);
+                } catch (IOException e) {
+                    AsyncLog.e("File", String.valueOf(e.getMessage()));
+                    mJsPlatform.onArchiveRestoreResult(ErrorCode.UNKNOWN, 0);
+                }
+            }
+        });
     }
 
     private void onJsFileChooserResult(int requestCode, int resultCode, final Intent data) {
@@ -346,51 +852,82 @@ public class MainActivity extends AppCompatActivity {
         }
 
         assert (data.getData() != null);
-        final Uri uri = data.getData();
+        List<ImportPipeline.Source> sources = new ArrayList<ImportPipeline.Source>();
+        sources.add(createImportSource(data.getData()));
+        // Register before the result can come in.
+        List<Integer> ids = mImports.prepare(sources);
+        mLegacyImports.addAll(ids);
+        mImports.start(ids);
+    }
+
+    private void onLegacyImportResult(int id, ErrorCode code) {
+        if (code != ErrorCode.NO_ERROR) {
+            showToast(getErrorCodeString(code));
+            return;
+        }
+
+        File file = mImports.getStaged(id);
+        try (InputStream input = new FileInputStream(file)) {
+            Result<String> result = Utf8StreamReader.read(input, file.length());
+            if (result.isOk()) {
+                mJsRequestedData = result.value;
+                // All WebView methods must be called on the same thread.
+                // So we call this on UI thread.
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mJsPlatform.onFileImporterResult();
+                    }
+                });
+            } else {
+                showToast(getErrorCodeString(result.code));
+            }
+        } catch (IOException e) {
+            AsyncLog.e("IO", e.getMessage());
+            showToast(getErrorCodeString(ErrorCode.UNKNOWN));
+        } finally {
+            mImports.release(id);
+        }
+    }
+
+    private void onJsMultiFileChooserResult(int requestCode, int resultCode, final Intent data) {
+        List<ImportPipeline.Source> sources = new ArrayList<ImportPipeline.Source>();
+        if (data != null && resultCode == RESULT_OK) {
+            ClipData clip = data.getClipData();
+            if (clip != null) {
+                for (int i = 0; i < clip.getItemCount(); i++) {
+                    sources.add(createImportSource(clip.getItemAt(i).getUri()));
+                }
+            } else if (data.getData() != null) {
+                sources.add(createImportSource(data.getData()));
+            }
+        }
+        // Announced first, the page must know the ids before their progress comes in.
+        List<Integer> ids = mImports.prepare(sources);
+        mJsPlatform.onImportStarted(ids);
+        mImports.start(ids);
+    }
+
+    private ImportPipeline.Source createImportSource(final Uri uri) {
         final ContentResolver contentResolver = getContentResolver();
+        return new ImportPipeline.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return contentResolver.openInputStream(uri);
+            }
 
-        // Load file on IO thread.
-        mIOExecutor.execute(new Runnable() {
             @Override
-            public void run() {
-                InputStream input = null;
-                try {
-                    input = contentResolver.openInputStream(uri);
-                    if (input != null) {
-                        Result<String> result = StreamUtils.readStringFromStream(input);
-                        if (result.isOk()) {
-                            mJsRequestedData = result.value;
-                            // All WebView methods must be called on the same thread.
-                            // So we call this on UI thread.
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mJsPlatform.onFileImporterResult();
-                                }
-                            });
-                        } else {
-                            showToast(getErrorCodeString(result.code));
-                        }
-                    } else {
-                        showToast(getErrorCodeString(ErrorCode.UNKNOWN));
+            public long size() {
+                try (Cursor cursor = contentResolver.query(uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+                    if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                        return cursor.getLong(0);
                     }
                 } catch (Exception e) {
-                    if (e instanceof FileNotFoundException) {
-                        showToast(getErrorCodeString(ErrorCode.FILE_NOT_FOUND));
-                    } else {
-                        showToast(getErrorCodeString(ErrorCode.UNKNOWN));
-                    }
-                } finally {
-                    if (input != null) {
-                        try {
-                            input.close();
-                        } catch (IOException e) {
-                            Log.e("IO", e.getMessage());
-                        }
-                    }
+                    AsyncLog.w("IO", "No size for " + uri);
                 }
+                return ImportPipeline.UNKNOWN_SIZE;
             }
-        });
+        };
     }
 
     ///////////////////////////////////////////////////////
@@ -407,192 +944,2173 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    public void showAppSelector(Intent intent, int requestCode) {
+    /**
+     * Ask the user for a new document to write {@link #mPendingExport} into.
+     */
+    private void showDocumentCreator(String title, String type) {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(type != null ? type : "*/*");
+        intent.putExtra(Intent.EXTRA_TITLE, title);
+        try {
+            startActivityForResult(intent, REQUEST_CODE_JS_CREATE_DOCUMENT);
+        } catch (ActivityNotFoundException e) {
+            // No documents provider, e.g. disabled on some devices.
+            mPendingExport = null;
+            showToast("No suitable app!");
+            mJsPlatform.onFileExporterResult(ErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * @return false if no app can handle the intent
+     */
+    public boolean showAppSelector(Intent intent, int requestCode) {
         if (intent.resolveActivity(getPackageManager()) != null) {
             startActivityForResult(Intent.createChooser(intent, getString(R.string.select_app)), requestCode);
+            return true;
         } else {
             showToast("No suitable app!");
+            return false;
         }
     }
 
-    public String loadInternalFile(String name) {
-        Log.w("File", "Trying to load internal file: " + name);
-        try (InputStream input = openFileInput(name)) {
-            Result<String> result = StreamUtils.readStringFromStream(input);
-            if (result.isOk()) {
-                Log.w("File", "Read from " + name + " done!");
-                return result.value;
-            } else {
-                Log.e("File", "Read from " + name + " failed!");
-                return null;
+    /**
+     * @return a file other apps can read the note from, a decoded copy if it is not stored as text.
+     */
+    private File getShareableFile(String name) {
+        File file = new File(getFilesDir(), name);
+        try {
+            if (mJournal.isStoredAsText(name)) {
+                return file;
             }
         } catch (IOException e) {
-            Log.e("File", e.getMessage());
+            AsyncLog.e("File", String.valueOf(e.getMessage()));
             return null;
         }
-    }
 
-    public boolean storeInternalFile(String name, String data) {
-        Log.w("File", "Trying to store internal file: " + name);
-        try (OutputStream output = openFileOutput(name, Context.MODE_PRIVATE)) {
-            if (StreamUtils.writeStringToStream(output, data) == ErrorCode.NO_ERROR) {
-                Log.w("File", "Write to " + name + " done!");
-                return true;
-            } else {
-                Log.e("File", "Write to " + name + " failed!");
-                return false;
+        File dir = new File(getCacheDir(), "export");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            AsyncLog.e("File", "Failed to create %s", dir);
+            return null;
+        }
+        File copy = new File(dir, name);
+        try (InputStream input = mJournal.openSnapshot(name); OutputStream output = new FileOutputStream(copy)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            return copy;
+        } catch (IOException e) {
+            AsyncLog.e("File", String.valueOf(e.getMessage()));
+            copy.delete();
+            return null;
+        }
+    }
+
+    private void InitLogging() {
+        // Release builds never log below info.
+        AsyncLog.init(new AsyncLog.Sink() {
+            @Override
+            public void println(int level, String tag, String message) {
+                Log.println(level, tag, message);
+            }
+        }, BuildConfig.DEBUG ? AsyncLog.VERBOSE : AsyncLog.INFO);
+        SharedPreferences settings = getSharedPreferences(SETTINGS_FILENAME, Context.MODE_PRIVATE);
+        AsyncLog.setLevel(settings.getInt(SETTING_LOG_LEVEL, AsyncLog.VERBOSE));
+        AsyncLog.setFileDir(settings.getBoolean(SETTING_LOG_TO_FILE, false) ? getLogDir() : null);
+    }
+
+    private File getLogDir() {
+        return new File(getFilesDir().getParentFile(), "logs");
+    }
+
+    /**
+     * @param level lowest level logged, see {@link AsyncLog#setLevel(int)}
+     * @param toFile also keep the log in files, for {@link JsPlatform#exportLogs()}
+     */
+    public void setLogging(int level, boolean toFile) {
+        getSharedPreferences(SETTINGS_FILENAME, Context.MODE_PRIVATE).edit()
+                .putInt(SETTING_LOG_LEVEL, level).putBoolean(SETTING_LOG_TO_FILE, toFile).apply();
+        AsyncLog.setLevel(level);
+        AsyncLog.setFileDir(toFile ? getLogDir() : null);
+    }
+
+    /**
+     * Sync the notes with the server set by {@link JsPlatform#setSyncServer}, if any, in the
+     * background. The page hears about it through platform._onSyncResult.
+     */
+    private void syncInBackground() {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, SYNC_KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (!mSync.isEnabled()) {
+                    return;
+                }
+                Result<SyncEngine.Report> result = syncNotes();
+                if (mJsPlatform != null) {
+                    mJsPlatform.onSyncResult(result.code, result.value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Store the sync state and base copies like the notes, rewriting those stored the other way.
+     */
+    private void recodeSyncState(final boolean encrypted) {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, SYNC_KEY, new Runnable() {
+            @Override
+            public void run() {
+                mSync.setEncrypted(encrypted);
+            }
+        });
+    }
+
+    /**
+     * Blocks on the network, call it from a task on {@link #mIOExecutor} with {@link #SYNC_KEY}.
+     */
+    private Result<SyncEngine.Report> syncNotes() {
+        KeyStoreWrapper keyStore = getKeyStore();
+        mSync.setToken(keyStore != null ? keyStore.loadFromSharedPreferences(KEY_SYNC_TOKEN) : null);
+        // What the page stored last has to be on disk to be noticed.
+        mWriteBehind.flushAll();
+        return mSync.sync();
+    }
+
+    private DocumentExporter.Source createLogExportSource() {
+        return new DocumentExporter.Source() {
+            @Override
+            public void writeTo(FileOutputStream output, DocumentExporter.Progress progress) throws IOException {
+                AsyncLog.export(getLogDir(), output);
+            }
+        };
+    }
+
+    /**
+     * Turn encryption of stored notes on or off, converting existing notes in the background.
+     */
+    public void setNoteEncryption(boolean enabled) {
+        getSharedPreferences(SETTINGS_FILENAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(SETTING_ENCRYPT_NOTES, enabled).apply();
+        mJournal.setEncrypted(enabled);
+        mHistory.setEncrypted(enabled);
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+            @Override
+            public void run() {
+                mHistory.recode();
+            }
+        });
+        recodeSyncState(enabled);
+        String[] names = listInternalFiles();
+        if (names == null) {
+            return;
+        }
+        for (final String name : names) {
+            runOnIOExecutor(IoScheduler.Priority.BACKGROUND, name, new Runnable() {
+                @Override
+                public void run() {
+                    mJournal.recode(name);
+                }
+            });
+        }
+    }
+
+    public Result<String> readInternalFile(String name) {
+        AsyncLog.d("File", "Trying to load internal file: %s", name);
+        if (name == null) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+
+        String cached = mNoteCache.get(name);
+        if (cached != null) {
+            return Result.ok(cached);
+        }
+
+        long generation = mNoteCache.generation();
+        String pending = mWriteBehind.peek(name);
+        if (pending != null) {
+            return Result.ok(pending);
+        }
+
+        Result<String> result = mJournal.read(name);
+        if (result.isOk()) {
+            AsyncLog.d("File", "Read from %s done!", name);
+            mNoteCache.putIfUnchanged(name, result.value, generation);
+        } else {
+            AsyncLog.e("File", "Read from %s failed!", name);
+        }
+        return result;
+    }
+
+    /**
+     * Read a note without putting it into the cache, for reading many notes once, e.g. to index them.
+     */
+    private Result<String> peekInternalFile(String name) {
+        String data = getInternalFileInMemory(name);
+        return data != null ? Result.ok(data) : mJournal.read(name);
+    }
+
+    /**
+     * @return the note if it is cached or waiting to be stored, else null
+     */
+    private String getInternalFileInMemory(String name) {
+        String data = mNoteCache.get(name);
+        return data != null ? data : mWriteBehind.peek(name);
+    }
+
+    public ErrorCode writeInternalFile(String name, String data) {
+        AsyncLog.d("File", "Trying to store internal file: %s", name);
+        if (name == null || data == null) {
+            return ErrorCode.INVALID_ARGS;
+        }
+        mStoreLocks.lock(name);
+        try {
+            // Readers see the new data right away through the cache and the queue.
+            mNoteCache.update(name, data);
+            mWriteBehind.enqueue(name, data);
+        } finally {
+            mStoreLocks.unlock(name);
+        }
+        return ErrorCode.NO_ERROR;
+    }
+
+    /**
+     * Read several notes in parallel. Blocks, call it from a task on {@link #mIOExecutor}.
+     *
+     * @return one result per name, in order
+     */
+    public List<Result<String>> readInternalFiles(final List<String> names, IoScheduler.Priority priority) {
+        AsyncLog.d("File", "Trying to load %d internal files", names.size());
+        final List<Result<String>> results = new ArrayList<Result<String>>(Collections.nCopies(names.size(),
+                (Result<String>) null));
+        BatchRunner.run(getBatchExecutor(priority), names.size(), BATCH_PARALLELISM, new BatchRunner.Item() {
+            @Override
+            public void run(int index) {
+                results.set(index, readInternalFile(names.get(index)));
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Store several notes. Normally each is queued like {@link #writeInternalFile(String, String)}.
+     * With {@code atomic} they are written in parallel and put in place together, or none of them
+     * is: entries that failed carry their error, the others {@link ErrorCode#CANCELLED}. Blocks,
+     * call it from a task on {@link #mIOExecutor}.
+     *
+     * @return one code per note, in order
+     */
+    public ErrorCode[] writeInternalFiles(final List<String> names, final List<String> data, boolean atomic) {
+        AsyncLog.d("File", "Trying to store %d internal files%s", names.size(), atomic ? " atomically" : "");
+        final ErrorCode[] codes = new ErrorCode[names.size()];
+        if (!atomic) {
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = writeInternalFile(names.get(i), data.get(i));
+            }
+            return codes;
+        }
+
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < codes.length; i++) {
+            boolean valid = names.get(i) != null && data.get(i) != null && seen.add(names.get(i));
+            codes[i] = valid ? ErrorCode.NO_ERROR : ErrorCode.INVALID_ARGS;
+        }
+        if (!cancelUnlessAllOk(codes)) {
+            return codes;
+        }
+
+        mStoreLocks.lockAll(names);
+        try {
+            final NoteJournal.PreparedSnapshot[] prepared = new NoteJournal.PreparedSnapshot[codes.length];
+            BatchRunner.run(getBatchExecutor(IoScheduler.Priority.WRITE), codes.length, BATCH_PARALLELISM,
+                    new BatchRunner.Item() {
+                        @Override
+                        public void run(int index) {
+                            try {
+                                prepared[index] = mJournal.prepareSnapshot(names.get(index), data.get(index));
+                            } catch (IOException e) {
+                                AsyncLog.e("File", String.valueOf(e.getMessage()));
+                                codes[index] = ErrorCode.UNKNOWN;
+                            }
+                        }
+                    });
+            if (!cancelUnlessAllOk(codes)) {
+                for (NoteJournal.PreparedSnapshot snapshot : prepared) {
+                    if (snapshot != null) {
+                        snapshot.discard();
+                    }
+                }
+                return codes;
+            }
+
+            // Older stores still queued must not land after the batch, but survive if it fails.
+            Map<String, String> pending = new HashMap<String, String>();
+            for (String name : names) {
+                String queued = mWriteBehind.peek(name);
+                if (queued != null) {
+                    pending.put(name, queued);
+                }
+                mWriteBehind.discard(name);
+            }
+            ErrorCode code = mJournal.commitSnapshots(Arrays.asList(prepared));
+            if (code != ErrorCode.NO_ERROR) {
+                for (Map.Entry<String, String> entry : pending.entrySet()) {
+                    mWriteBehind.enqueue(entry.getKey(), entry.getValue());
+                }
+                Arrays.fill(codes, code);
+                return codes;
+            }
+            for (int i = 0; i < codes.length; i++) {
+                mNoteCache.update(names.get(i), data.get(i));
+                long stamp = mJournal.getStamp(names.get(i));
+                indexInternalFile(names.get(i), data.get(i), stamp);
+                describeInternalFile(names.get(i), data.get(i), stamp);
+            }
+            return codes;
+        } finally {
+            mStoreLocks.unlockAll(names);
+        }
+    }
+
+    /**
+     * @return whether all codes are {@link ErrorCode#NO_ERROR}, otherwise turns those that are
+     * into {@link ErrorCode#CANCELLED}.
+     */
+    private static boolean cancelUnlessAllOk(ErrorCode[] codes) {
+        boolean ok = true;
+        for (ErrorCode code : codes) {
+            ok &= code == ErrorCode.NO_ERROR;
+        }
+        if (!ok) {
+            for (int i = 0; i < codes.length; i++) {
+                if (codes[i] == ErrorCode.NO_ERROR) {
+                    codes[i] = ErrorCode.CANCELLED;
+                }
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Delete several notes in parallel. Blocks, call it from a task on {@link #mIOExecutor}.
+     *
+     * @return one code per name, in order
+     */
+    public ErrorCode[] deleteInternalFiles(final List<String> names) {
+        AsyncLog.d("File", "Trying to delete %d internal files", names.size());
+        final ErrorCode[] codes = new ErrorCode[names.size()];
+        BatchRunner.run(getBatchExecutor(IoScheduler.Priority.WRITE), codes.length, BATCH_PARALLELISM,
+                new BatchRunner.Item() {
+                    @Override
+                    public void run(int index) {
+                        String name = names.get(index);
+                        if (name == null) {
+                            codes[index] = ErrorCode.INVALID_ARGS;
+                        } else {
+                            codes[index] = deleteInternalFile(name) ? ErrorCode.NO_ERROR : ErrorCode.FILE_NOT_FOUND;
+                        }
+                    }
+                });
+        return codes;
+    }
+
+    /**
+     * Runs the helpers of a batch on {@link #mIOExecutor}, at the batch's priority.
+     */
+    private Executor getBatchExecutor(final IoScheduler.Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mIOExecutor.submit(priority, null, runnable);
+            }
+        };
+    }
+
+    /**
+     * Apply edits to a note. Unless a full store of the note is still pending, only the edits are
+     * written, to the note's journal.
+     */
+    public ErrorCode appendInternalFilePatch(String name, List<NoteJournal.Edit> edits) {
+        AsyncLog.d("File", "Trying to patch internal file: %s", name);
+        if (name == null || edits == null) {
+            return ErrorCode.INVALID_ARGS;
+        }
+        mStoreLocks.lock(name);
+        try {
+            Result<String> current = readInternalFile(name);
+            if (!current.isOk()) {
+                return current.code;
+            }
+            Result<String> patched = NoteJournal.apply(current.value, edits);
+            if (!patched.isOk()) {
+                return patched.code;
+            }
+
+            mNoteCache.update(name, patched.value);
+            if (mWriteBehind.peek(name) != null || mJournal.isEncrypted()) {
+                // Disk is behind anyway, fold the edits into the pending store. Encrypted notes
+                // have no journal, it would keep the edits in plain text. Indexed once written.
+                mWriteBehind.enqueue(name, patched.value);
+                return ErrorCode.NO_ERROR;
+            }
+            ErrorCode code = mJournal.append(name, edits);
+            if (code == ErrorCode.NO_ERROR) {
+                long stamp = mJournal.getStamp(name);
+                indexInternalFile(name, patched.value, stamp);
+                describeInternalFile(name, patched.value, stamp);
+            } else {
+                mNoteCache.invalidate(name);
+            }
+            return code;
+        } finally {
+            mStoreLocks.unlock(name);
+        }
+    }
+
+    /**
+     * Open a note for chunked reading without loading it, unless it is in memory anyway.
+     */
+    public Result<ChunkedTransfer.Source> openInternalFileSource(String name) {
+        if (name == null) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+        mStoreLocks.lock(name);
+        try {
+            String data = mNoteCache.get(name);
+            if (data == null) {
+                data = mWriteBehind.peek(name);
+            }
+            if (data == null && mJournal.hasLog(name)) {
+                // Edits have to be replayed in memory.
+                Result<String> result = readInternalFile(name);
+                if (!result.isOk()) {
+                    return Result.error(result.code);
+                }
+                data = result.value;
+            }
+            if (data != null) {
+                return Result.ok(ChunkedTransfer.fromString(data));
+            }
+
+            try {
+                return Result.ok(ChunkedTransfer.fromNoteFile(new File(getFilesDir(), name), mCipher));
+            } catch (FileNotFoundException e) {
+                return Result.error(ErrorCode.FILE_NOT_FOUND);
+            } catch (IOException e) {
+                AsyncLog.e("File", e.getMessage());
+                return Result.error(ErrorCode.UNKNOWN);
+            }
+        } finally {
+            mStoreLocks.unlock(name);
+        }
+    }
+
+    /**
+     * Replace a note with a complete file written elsewhere, e.g. a chunked upload.
+     */
+    public ErrorCode commitInternalFile(String name, File file) {
+        AsyncLog.d("File", "Trying to commit internal file: %s", name);
+        mStoreLocks.lock(name);
+        try {
+            mWriteBehind.discard(name);
+            ErrorCode code = mJournal.replaceSnapshot(name, file);
+            mNoteCache.invalidate(name);
+            if (code == ErrorCode.NO_ERROR) {
+                indexInternalFile(name, null, 0);
+                describeInternalFile(name, null, 0);
+            }
+            return code;
+        } finally {
+            mStoreLocks.unlock(name);
+        }
+    }
+
+    private ErrorCode writeInternalFileNow(String name, String data) {
+        ErrorCode code = mJournal.writeSnapshot(name, data);
+        if (code == ErrorCode.NO_ERROR) {
+            AsyncLog.d("File", "Write to %s done!", name);
+            long stamp = mJournal.getStamp(name);
+            indexInternalFile(name, data, stamp);
+            describeInternalFile(name, data, stamp);
+        } else {
+            AsyncLog.e("File", "Write to %s failed!", name);
+            // Don't let the cache claim data that never made it to disk.
+            mNoteCache.invalidate(name);
+        }
+        return code;
+    }
+
+    public String loadInternalFile(String name) {
+        return readInternalFile(name).value;
+    }
+
+    public boolean storeInternalFile(String name, String data) {
+        return writeInternalFile(name, data) == ErrorCode.NO_ERROR;
+    }
+
+    public boolean deleteInternalFile(String name) {
+        AsyncLog.d("File", "Trying to delete internal file: %s", name);
+        boolean deleted;
+        // Not in the middle of a patch or a sync merging the note.
+        mStoreLocks.lock(name);
+        try {
+            mWriteBehind.discard(name);
+            mNoteCache.invalidate(name);
+            mJournal.delete(name);
+            deleted = deleteFile(name);
+        } finally {
+            mStoreLocks.unlock(name);
+        }
+        unindexInternalFile(name);
+        undescribeInternalFile(name);
+        return deleted;
+    }
+
+    /**
+     * Update the search index for a note in the background.
+     *
+     * @param data  the note's content, or null to read it
+     * @param stamp the note's storage stamp after storing {@code data}, ignored if data is null
+     */
+    private void indexInternalFile(final String name, final String data, final long stamp) {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, SEARCH_INDEX_KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (data != null) {
+                    mSearchIndex.update(name, data, stamp);
+                    return;
+                }
+                long current = mJournal.getStamp(name);
+                Result<String> result = peekInternalFile(name);
+                if (result.isOk()) {
+                    mSearchIndex.update(name, result.value, current);
+                }
+            }
+        });
+    }
+
+    private void unindexInternalFile(final String name) {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, SEARCH_INDEX_KEY, new Runnable() {
+            @Override
+            public void run() {
+                mSearchIndex.remove(name);
+            }
+        });
+    }
+
+    /**
+     * Index every note from scratch, on the calling thread.
+     */
+    private void rebuildSearchIndex() {
+        AsyncLog.w("Search", "Rebuilding search index");
+        mSearchIndex.clear();
+        String[] names = listInternalFiles();
+        if (names != null) {
+            for (String name : names) {
+                long stamp = mJournal.getStamp(name);
+                Result<String> result = peekInternalFile(name);
+                if (result.isOk()) {
+                    mSearchIndex.update(name, result.value, stamp);
+                }
+            }
+        }
+        mSearchIndex.save(mStagingDir);
+    }
+
+    /**
+     * Re-index the notes changed since the index was saved, e.g. before a crash, on the calling
+     * thread.
+     */
+    private void reconcileSearchIndex() {
+        int changed = mSearchIndex.reconcile(new SearchIndex.Source() {
+            @Override
+            public String[] list() {
+                return listInternalFiles();
+            }
+
+            @Override
+            public long stamp(String name) {
+                return mJournal.getStamp(name);
+            }
+
+            @Override
+            public Result<String> read(String name) {
+                return peekInternalFile(name);
+            }
+        });
+        if (changed > 0) {
+            AsyncLog.w("Search", "Reconciled " + changed + " notes");
+            mSearchIndex.save(mStagingDir);
+        }
+    }
+
+    private void saveSearchIndex() {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, SEARCH_INDEX_KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (mSearchIndex.isDirty()) {
+                    mSearchIndex.save(mStagingDir);
+                }
+            }
+        });
+    }
+
+    /**
+     * Update the manifest entry and the history of a note in the background.
+     *
+     * @param data  the note's content, or null to read it
+     * @param stamp the note's storage stamp after storing {@code data}, ignored if data is null
+     */
+    private void describeInternalFile(final String name, final String data, final long stamp) {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (data != null) {
+                    mManifest.update(name, data, stamp, System.currentTimeMillis());
+                    mHistory.record(name, data);
+                    return;
+                }
+                long current = mJournal.getStamp(name);
+                Result<String> result = readInternalFile(name);
+                if (result.isOk()) {
+                    mManifest.update(name, result.value, current, System.currentTimeMillis());
+                    mHistory.record(name, result.value);
+                }
+            }
+        });
+    }
+
+    private void undescribeInternalFile(final String name) {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+            @Override
+            public void run() {
+                mManifest.remove(name);
+                mHistory.remove(name);
+            }
+        });
+    }
+
+    /**
+     * Re-read the notes changed behind the manifest's back, e.g. by a crash before it was saved,
+     * on the calling thread.
+     */
+    private void reconcileManifest() {
+        int changed = mManifest.reconcile(new NoteManifest.Source() {
+            @Override
+            public String[] list() {
+                return listInternalFiles();
+            }
+
+            @Override
+            public long stamp(String name) {
+                return mJournal.getStamp(name);
+            }
+
+            @Override
+            public long lastModified(String name) {
+                return new File(getFilesDir(), name).lastModified();
+            }
+
+            @Override
+            public Result<String> read(String name) {
+                return readInternalFile(name);
+            }
+        });
+        if (changed > 0) {
+            AsyncLog.w("Manifest", "Reconciled " + changed + " notes");
+            mManifest.save(mStagingDir);
+        }
+    }
+
+    /**
+     * Delete the blobs no note references. Stores still queued are written first, so their
+     * references count.
+     */
+    private void collectBlobs(final ValueCallback<Integer> done) {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, null, new Runnable() {
+            @Override
+            public void run() {
+                mWriteBehind.flushAll();
+                // Queued behind the manifest updates of the flushed stores.
+                runOnIOExecutor(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        done.onReceiveValue(collectBlobsNow());
+                    }
+                });
+            }
+        });
+    }
+
+    private int collectBlobsNow() {
+        Set<String> referenced = mManifest.getReferencedBlobs();
+        // Restoring an earlier version must not lose its attachments.
+        referenced.addAll(getHistoryBlobs());
+        int deleted = mBlobs.collect(referenced, System.currentTimeMillis() - BLOB_GRACE_MS);
+        if (deleted > 0) {
+            AsyncLog.w("Blob", "Collected " + deleted + " blobs");
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the blobs referenced by any version in {@link #mHistory}. Reads every version, so
+     * only call it in the background.
+     */
+    private Set<String> getHistoryBlobs() {
+        Set<String> blobs = new HashSet<String>();
+        for (String name : mHistory.listNotes()) {
+            for (NoteHistory.Version version : mHistory.list(name)) {
+                // A version that can't be read can't be restored either.
+                Result<String> data = mHistory.load(name, version.id);
+                if (data.isOk()) {
+                    blobs.addAll(BlobStore.extractReferences(data.value));
+                }
+            }
+        }
+        return blobs;
+    }
+
+    private void saveManifest() {
+        runOnIOExecutor(IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (mManifest.isDirty()) {
+                    mManifest.save(mStagingDir);
+                }
+            }
+        });
+    }
+
+    private void runOnIOExecutor(IoScheduler.Priority priority, String key, Runnable task) {
+        try {
+            mIOExecutor.submit(priority, key, task);
+        } catch (RejectedExecutionException e) {
+            AsyncLog.w("IO", "IO executor is shut down");
+        }
+    }
+
+    public String[] listInternalFiles() {
+        return fileList();
+    }
+
+    public String getErrorCodeString(ErrorCode code) {
+        Resources res = getResources();
+        switch (code) {
+            case FILE_NOT_FOUND:
+                return res.getString(R.string.error_file_not_found);
+            case CANCELLED:
+                return res.getString(R.string.error_cancelled);
+            case NETWORK_ERROR:
+                return res.getString(R.string.error_network);
+            default:
+                return res.getString(R.string.error_unknown);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////
+    //                   WebInterface                    //
+    ///////////////////////////////////////////////////////
+
+    class JsPlatform {
+        private static final String TAG = "JsPlatform";
+
+        public void onFileImporterResult() {
+            mMainView.evaluateJavascript("platform._onFileImporterResult();", null);
+        }
+
+        public void onFileExporterResult(ErrorCode code) {
+            evaluate("platform._onFileExporterResult(" + (code == ErrorCode.NO_ERROR) + ", \"" + code.name() + "\");");
+        }
+
+        public void onFileExporterProgress(long bytesWritten, long totalBytes) {
+            evaluate("platform._onFileExporterProgress(" + bytesWritten + ", " + totalBytes + ");");
+        }
+
+        public void onArchiveRestoreProgress(long bytesRead, long totalBytes) {
+            evaluate("platform._onArchiveRestoreProgress(" + bytesRead + ", " + totalBytes + ");");
+        }
+
+        public void onArchiveRestoreResult(ErrorCode code, int count) {
+            evaluate("platform._onArchiveRestoreResult(" + (code == ErrorCode.NO_ERROR) + ", \"" + code.name()
+                    + "\", " + count + ");");
+        }
+
+        /**
+         * @param report null unless the sync succeeded
+         */
+        public void onSyncResult(ErrorCode code, SyncEngine.Report report) {
+            evaluate("platform._onSyncResult(\"" + code.name() + "\", " + toJson(report) + ");");
+        }
+
+        /**
+         * @return {pulled, pushed, merged, overwritten, bytesSent, bytesReceived}, or "null"
+         */
+        private String toJson(SyncEngine.Report report) {
+            if (report == null) {
+                return "null";
+            }
+            return JsonWriter.obtain().beginObject()
+                    .name("pulled").value(report.pulled)
+                    .name("pushed").value(report.pushed)
+                    .name("merged").value(report.merged)
+                    .name("overwritten").value(report.overwritten)
+                    .name("bytesSent").value(report.bytesSent)
+                    .name("bytesReceived").value(report.bytesReceived)
+                    .endObject().finish();
+        }
+
+        /**
+         * A store that was already reported as done could not be written. The data stays pending,
+         * readable and is retried; the page hears about each failure through platform._onWriteFailed.
+         */
+        public void onWriteFailed(String name, ErrorCode code, int failures) {
+            evaluate("platform._onWriteFailed(" + JsonWriter.quote(name) + ", \"" + code.name() + "\", "
+                    + failures + ");");
+        }
+
+        public void onManifestReady() {
+            evaluate("platform._onManifestReady();");
+        }
+
+        public void onImportStarted(List<Integer> ids) {
+            JsonWriter writer = JsonWriter.obtain().beginArray();
+            for (int id : ids) {
+                writer.value(id);
+            }
+            evaluate("platform._onImportStarted(" + writer.endArray().finish() + ");");
+        }
+
+        public void onImportProgress(int id, long bytesRead, long totalBytes) {
+            evaluate("platform._onImportProgress(" + id + ", " + bytesRead + ", " + totalBytes + ");");
+        }
+
+        public void onImportResult(int id, ErrorCode code) {
+            evaluate("platform._onImportResult(" + id + ", \"" + code.name() + "\");");
+        }
+
+        /**
+         * Complete the js promise of an async call.
+         *
+         * @param value a js literal, e.g. a quoted string, a json array or "null"
+         */
+        public void resolve(int id, ErrorCode code, String value) {
+            mBridgeMetrics.resolve(id, BridgeMetrics.length(value));
+            evaluate("platform._resolve(" + id + ", \"" + code.name() + "\", " + value + ");");
+        }
+
+        /**
+         * Run a script from any thread.
+         */
+        private void evaluate(final String script) {
+            // All WebView methods must be called on the same thread.
+            mMainView.post(new Runnable() {
+                @Override
+                public void run() {
+                    mMainView.evaluateJavascript(script, null);
+                }
+            });
+        }
+
+        /**
+         * Record a call returning a string, see {@link BridgeMetrics#end}.
+         */
+        private String respond(String name, long start, long requestChars, String response) {
+            mBridgeMetrics.end(name, start, requestChars, BridgeMetrics.length(response));
+            return response;
+        }
+
+        /**
+         * Run the task of an async call on mIOExecutor. The promise is rejected with
+         * {@link ErrorCode#UNKNOWN} if the task throws before it resolves it.
+         */
+        private void runAsync(final int id, IoScheduler.Priority priority, String key, final Runnable task) {
+            try {
+                mIOExecutor.submit(priority, key, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            AsyncLog.e(TAG, "Async call " + id + " failed", e);
+                            resolve(id, ErrorCode.UNKNOWN, "null");
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                AsyncLog.e(TAG, "Async call " + id + " rejected");
+                resolve(id, ErrorCode.UNKNOWN, "null");
+            }
+        }
+
+        @JavascriptInterface
+        public void showMessage(String message) {
+            long start = BridgeMetrics.begin();
+            try {
+                showToast(message);
+            } finally {
+                mBridgeMetrics.end("showMessage", start, BridgeMetrics.length(message), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public void logMessage(String message) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.i(TAG, message);
+            } finally {
+                mBridgeMetrics.end("logMessage", start, BridgeMetrics.length(message), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public void logError(String error) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.e(TAG, error);
+            } finally {
+                mBridgeMetrics.end("logError", start, BridgeMetrics.length(error), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public void logWTF(String wtf) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.wtf(TAG, wtf);
+            } finally {
+                mBridgeMetrics.end("logWTF", start, BridgeMetrics.length(wtf), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public String loadAssetFile(String name) {
+            long start = BridgeMetrics.begin();
+            AsyncLog.d("JsPlatform", "Js trying to load internal file: %s", name);
+            return respond("loadAssetFile", start, BridgeMetrics.length(name), loadInternalFile(name));
+        }
+
+        @JavascriptInterface
+        public boolean storeAssetFile(String name, String data) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.d("JsPlatform", "Js trying to store internal file: %s", name);
+                return storeInternalFile(name, data);
+            } finally {
+                mBridgeMetrics.end("storeAssetFile", start, BridgeMetrics.length(name) + BridgeMetrics.length(data), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public boolean deleteAssetFile(String name) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.d("JsPlatform", "Js trying to delete internal file: %s", name);
+                return deleteInternalFile(name);
+            } finally {
+                mBridgeMetrics.end("deleteAssetFile", start, BridgeMetrics.length(name), 0);
+            }
+        }
+
+        // Chunked transfer: open a handle, read chunk 0, 1, ... until one resolves NO_ERROR with
+        // null, or write chunks and commit, then close the handle. Use these for documents too big
+        // for one bridge call.
+
+        @JavascriptInterface
+        public int openAssetFileReader(String name, int chunkSize) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.d("JsPlatform", "Js trying to open internal file reader: %s", name);
+                Result<ChunkedTransfer.Source> source = openInternalFileSource(name);
+                return source.isOk() ? mTransfer.openRead(source.value, chunkSize) : ChunkedTransfer.INVALID_HANDLE;
+            } finally {
+                mBridgeMetrics.end("openAssetFileReader", start, BridgeMetrics.length(name), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public int openRequestedDataReader(int chunkSize) {
+            long start = BridgeMetrics.begin();
+            try {
+                String data = mJsRequestedData;
+                mJsRequestedData = null;
+                return data != null ? mTransfer.openRead(ChunkedTransfer.fromString(data), chunkSize) : ChunkedTransfer.INVALID_HANDLE;
+            } finally {
+                mBridgeMetrics.end("openRequestedDataReader", start, 0, 0);
+            }
+        }
+
+        /**
+         * Resolves with chunk {@code index}, or null past the end. A bad handle resolves with
+         * INVALID_ARGS and a failed read, e.g. of a damaged encrypted note, with UNKNOWN, so the
+         * end of a document is never confused with an error.
+         */
+        @JavascriptInterface
+        public void readChunk(final int id, final int handle, final int index) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "readChunk", start);
+            try {
+                // Chunks of a handle are read in order, going back re-reads from the start.
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, CHUNK_KEY_PREFIX + handle, new Runnable() {
+                    @Override
+                    public void run() {
+                        Result<String> chunk = mTransfer.readChunk(handle, index);
+                        resolve(id, chunk.code, chunk.isOk() ? JsonWriter.quote(chunk.value) : "null");
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("readChunk", start, 0, BridgeMetrics.ASYNC);
+            }
+        }
+
+        @JavascriptInterface
+        public int openAssetFileWriter(String name) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.d("JsPlatform", "Js trying to open internal file writer: %s", name);
+                return mTransfer.openWrite(name);
+            } finally {
+                mBridgeMetrics.end("openAssetFileWriter", start, BridgeMetrics.length(name), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public boolean writeChunk(int handle, String data) {
+            long start = BridgeMetrics.begin();
+            try {
+                return mTransfer.writeChunk(handle, data) == ErrorCode.NO_ERROR;
+            } finally {
+                mBridgeMetrics.end("writeChunk", start, BridgeMetrics.length(data), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public boolean commitAssetFileWriter(int handle) {
+            long start = BridgeMetrics.begin();
+            try {
+                return mTransfer.commit(handle, new ChunkedTransfer.Committer() {
+                    @Override
+                    public ErrorCode commit(String name, File file) {
+                        return commitInternalFile(name, file);
+                    }
+                }) == ErrorCode.NO_ERROR;
+            } finally {
+                mBridgeMetrics.end("commitAssetFileWriter", start, 0, 0);
+            }
+        }
+
+        @JavascriptInterface
+        public void closeHandle(int handle) {
+            long start = BridgeMetrics.begin();
+            try {
+                mTransfer.close(handle);
+            } finally {
+                mBridgeMetrics.end("closeHandle", start, 0, 0);
+            }
+        }
+
+        /**
+         * @param patch one edit or an array of edits, applied in order:
+         *              {"offset": 0, "remove": 0, "insert": ""}
+         */
+        @JavascriptInterface
+        public boolean appendAssetFilePatch(String name, String patch) {
+            long start = BridgeMetrics.begin();
+            try {
+                AsyncLog.d("JsPlatform", "Js trying to patch internal file: %s", name);
+                List<NoteJournal.Edit> edits = parseEdits(patch);
+                return edits != null && appendInternalFilePatch(name, edits) == ErrorCode.NO_ERROR;
+            } finally {
+                mBridgeMetrics.end("appendAssetFilePatch", start, BridgeMetrics.length(name) + BridgeMetrics.length(patch), 0);
+            }
+        }
+
+        private List<NoteJournal.Edit> parseEdits(String patch) {
+            if (patch == null) {
+                return null;
+            }
+            try {
+                JsonReader reader = new JsonReader(patch);
+                List<NoteJournal.Edit> edits = new ArrayList<NoteJournal.Edit>();
+                // A single edit or an array of them.
+                if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        edits.add(readEdit(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    edits.add(readEdit(reader));
+                }
+                return edits;
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                return null;
+            }
+        }
+
+        private NoteJournal.Edit readEdit(JsonReader reader) throws IOException {
+            int offset = -1;
+            int remove = 0;
+            String insert = "";
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("offset")) {
+                    offset = reader.nextInt();
+                } else if (name.equals("remove")) {
+                    remove = reader.nextInt();
+                } else if (name.equals("insert")) {
+                    insert = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (offset < 0) {
+                throw new IOException("Edit without a valid offset");
+            }
+            return new NoteJournal.Edit(offset, remove, insert);
+        }
+
+        @JavascriptInterface
+        public String listAssetFiles() {
+            long start = BridgeMetrics.begin();
+            String[] files = listInternalFiles();
+            return respond("listAssetFiles", start, 0, files != null ? JsonWriter.obtain().value(files).finish() : "");
+        }
+
+        /**
+         * List notes with their metadata from the manifest, most recently modified first.
+         *
+         * @param limit max notes to return, negative for all
+         * @return {"ready": true, "total": n, "files": [{name, size, modified, hash, title, preview}]};
+         * while the manifest is still loading after launch ready is false and the list may be
+         * incomplete, platform._onManifestReady() is called once it is done
+         */
+        @JavascriptInterface
+        public String listAssetFilesWithMetadata(int offset, int limit) {
+            long start = BridgeMetrics.begin();
+            JsonWriter writer = JsonWriter.obtain().beginObject()
+                    .name("ready").value(mManifestReady)
+                    .name("total").value(mManifest.size())
+                    .name("files").beginArray();
+            for (NoteManifest.Entry entry : mManifest.list(offset, limit)) {
+                writer.beginObject()
+                        .name("name").value(entry.name)
+                        .name("size").value(entry.size)
+                        .name("modified").value(entry.modified)
+                        .name("hash").value(entry.hash)
+                        .name("title").value(entry.title)
+                        .name("preview").value(entry.preview)
+                        .endObject();
+            }
+            return respond("listAssetFilesWithMetadata", start, 0, writer.endArray().endObject().finish());
+        }
+
+        // Async versions of the file calls above. They return immediately, do the IO on
+        // mIOExecutor and complete through platform._resolve(id, errorCode, value).
+        // Calls on the same file complete in order, others in any order.
+
+        @JavascriptInterface
+        public void loadAssetFileAsync(final int id, final String name) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "loadAssetFileAsync", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, name, new Runnable() {
+                    @Override
+                    public void run() {
+                        Result<String> result = readInternalFile(name);
+                        resolve(id, result.code, result.isOk() ? JsonWriter.quote(result.value) : "null");
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("loadAssetFileAsync", start, BridgeMetrics.length(name), BridgeMetrics.ASYNC);
+            }
+        }
+
+        @JavascriptInterface
+        public void storeAssetFileAsync(final int id, final String name, final String data) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "storeAssetFileAsync", start);
+            try {
+                runAsync(id, IoScheduler.Priority.WRITE, name, new Runnable() {
+                    @Override
+                    public void run() {
+                        ErrorCode code = writeInternalFile(name, data);
+                        resolve(id, code, String.valueOf(code == ErrorCode.NO_ERROR));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("storeAssetFileAsync", start, BridgeMetrics.length(name) + BridgeMetrics.length(data), BridgeMetrics.ASYNC);
+            }
+        }
+
+        @JavascriptInterface
+        public void deleteAssetFileAsync(final int id, final String name) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "deleteAssetFileAsync", start);
+            try {
+                runAsync(id, IoScheduler.Priority.WRITE, name, new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean deleted = deleteInternalFile(name);
+                        resolve(id, deleted ? ErrorCode.NO_ERROR : ErrorCode.FILE_NOT_FOUND, String.valueOf(deleted));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("deleteAssetFileAsync", start, BridgeMetrics.length(name), BridgeMetrics.ASYNC);
+            }
+        }
+
+        @JavascriptInterface
+        public void listAssetFilesAsync(final int id) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "listAssetFilesAsync", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        String[] files = listInternalFiles();
+                        if (files == null) {
+                            resolve(id, ErrorCode.UNKNOWN, "null");
+                            return;
+                        }
+                        resolve(id, ErrorCode.NO_ERROR, JsonWriter.obtain().value(files).finish());
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("listAssetFilesAsync", start, 0, BridgeMetrics.ASYNC);
+            }
+        }
+
+        // Attachments, stored once by content and referenced from notes by url. The page loads
+        // them straight from disk through that url, no base64 on the way out.
+
+        /**
+         * Store an attachment. Resolves with its url, e.g. zebra-blob://3a7b...
+         */
+        @JavascriptInterface
+        public void storeBlob(final int id, final String base64) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "storeBlob", start);
+            try {
+                runAsync(id, IoScheduler.Priority.WRITE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (base64 == null) {
+                            resolve(id, ErrorCode.INVALID_ARGS, "null");
+                            return;
+                        }
+                        InputStream input = new Base64InputStream(
+                                new ByteArrayInputStream(base64.getBytes(StandardCharsets.US_ASCII)), Base64.DEFAULT);
+                        resolveBlob(id, mBlobs.store(input));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("storeBlob", start, BridgeMetrics.length(base64), BridgeMetrics.ASYNC);
             }
-        } catch (IOException e) {
-            Log.e("File", e.getMessage());
-            return false;
         }
-    }
 
-    public boolean deleteInternalFile(String name) {
-        Log.w("File", "Trying to delete internal file: " + name);
-        return deleteFile(name);
-    }
+        /**
+         * Store a file imported through showMultiFileImporter as an attachment, without it ever
+         * passing the bridge. Resolves with its url and releases the import.
+         */
+        @JavascriptInterface
+        public void storeImportAsBlob(final int id, final int importId) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "storeImportAsBlob", start);
+            try {
+                runAsync(id, IoScheduler.Priority.WRITE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        File file = mImports.getStaged(importId);
+                        if (file == null) {
+                            resolve(id, ErrorCode.FILE_NOT_FOUND, "null");
+                            return;
+                        }
+                        try {
+                            resolveBlob(id, mBlobs.store(file));
+                        } finally {
+                            mImports.release(importId);
+                        }
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("storeImportAsBlob", start, 0, BridgeMetrics.ASYNC);
+            }
+        }
 
-    public String[] listInternalFiles() {
-        return fileList();
-    }
+        private void resolveBlob(int id, Result<String> result) {
+            resolve(id, result.code, result.isOk() ? JsonWriter.quote(BlobStore.getUrl(result.value)) : "null");
+        }
 
-    public String getErrorCodeString(ErrorCode code) {
-        Resources res = getResources();
-        switch (code) {
-            case FILE_NOT_FOUND:
-                return res.getString(R.string.error_file_not_found);
-            default:
-                return res.getString(R.string.error_unknown);
+        /**
+         * @param hash hex SHA-256 of the content, so js can skip sending what is stored already
+         */
+        @JavascriptInterface
+        public boolean hasBlob(String hash) {
+            long start = BridgeMetrics.begin();
+            try {
+                return mBlobs.contains(hash);
+            } finally {
+                mBridgeMetrics.end("hasBlob", start, BridgeMetrics.length(hash), 0);
+            }
         }
-    }
 
+        /**
+         * @return how many notes reference the attachment.
+         */
+        @JavascriptInterface
+        public int getBlobReferenceCount(String hash) {
+            long start = BridgeMetrics.begin();
+            try {
+                return mManifest.getBlobReferenceCount(hash);
+            } finally {
+                mBridgeMetrics.end("getBlobReferenceCount", start, BridgeMetrics.length(hash), 0);
+            }
+        }
 
-    ///////////////////////////////////////////////////////
-    //                   WebInterface                    //
-    ///////////////////////////////////////////////////////
+        /**
+         * Delete attachments no note references any more. Resolves with how many were deleted.
+         */
+        @JavascriptInterface
+        public void collectBlobs(final int id) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "collectBlobs", start);
+            try {
+                MainActivity.this.collectBlobs(new ValueCallback<Integer>() {
+                    @Override
+                    public void onReceiveValue(Integer deleted) {
+                        resolve(id, ErrorCode.NO_ERROR, String.valueOf(deleted));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("collectBlobs", start, 0, BridgeMetrics.ASYNC);
+            }
+        }
 
-    class JsPlatform {
-        private static final String TAG = "JsPlatform";
+        /**
+         * Resolves with [{"id": 0, "time": 0, "size": 0}, ...], the saved versions of a note,
+         * newest first. size is in UTF-8 bytes.
+         */
+        @JavascriptInterface
+        public void listVersions(final int id, final String name) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "listVersions", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        JsonWriter writer = JsonWriter.obtain().beginArray();
+                        for (NoteHistory.Version version : mHistory.list(name)) {
+                            writer.beginObject()
+                                    .name("id").value(version.id)
+                                    .name("time").value(version.time)
+                                    .name("size").value(version.size)
+                                    .endObject();
+                        }
+                        resolve(id, ErrorCode.NO_ERROR, writer.endArray().finish());
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("listVersions", start, BridgeMetrics.length(name), BridgeMetrics.ASYNC);
+            }
+        }
 
-        public void onFileImporterResult() {
-            mMainView.evaluateJavascript("platform._onFileImporterResult();", null);
+        /**
+         * Resolves with the content of a version from {@link #listVersions(int, String)}.
+         */
+        @JavascriptInterface
+        public void loadVersion(final int id, final String name, final int versionId) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "loadVersion", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        Result<String> result = mHistory.load(name, versionId);
+                        resolve(id, result.code, result.isOk() ? JsonWriter.quote(result.value) : "null");
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("loadVersion", start, BridgeMetrics.length(name), BridgeMetrics.ASYNC);
+            }
+        }
+
+        /**
+         * Drop all but the newest {@code keepVersions} versions of each note and those older than
+         * {@code keepDays}. The newest version of a note is always kept. Resolves with how many
+         * versions were dropped.
+         */
+        @JavascriptInterface
+        public void pruneHistory(final int id, final int keepVersions, final int keepDays) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "pruneHistory", start);
+            try {
+                if (keepVersions < 1 || keepDays < 0) {
+                    resolve(id, ErrorCode.INVALID_ARGS, "null");
+                    return;
+                }
+                runAsync(id, IoScheduler.Priority.BACKGROUND, MANIFEST_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        int dropped = mHistory.prune(keepVersions, keepDays * 24L * 60 * 60 * 1000);
+                        resolve(id, ErrorCode.NO_ERROR, String.valueOf(dropped));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("pruneHistory", start, 0, BridgeMetrics.ASYNC);
+            }
         }
 
-        public void onFileExporterResult(boolean success) {
-            mMainView.evaluateJavascript("platform._onFileExporterResult(" + success + ");", null);
+        // Batch versions of the async calls, one bridge call and one _resolve for many files. They
+        // resolve with one {"name": "", "code": ""} per file, in request order, and the batch's code
+        // is NO_ERROR only if every file's is. Calls on the same file made through the single file
+        // versions are not ordered with batches.
+
+        /**
+         * @param namesJson ["name", ...]
+         */
+        @JavascriptInterface
+        public void loadAssetFiles(final int id, final String namesJson) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "loadAssetFiles", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        List<String> names = parseNames(namesJson);
+                        if (names == null) {
+                            resolve(id, ErrorCode.INVALID_ARGS, "null");
+                            return;
+                        }
+                        List<Result<String>> results = readInternalFiles(names, IoScheduler.Priority.INTERACTIVE);
+                        ErrorCode[] codes = new ErrorCode[results.size()];
+                        String[] data = new String[results.size()];
+                        for (int i = 0; i < codes.length; i++) {
+                            codes[i] = results.get(i).code;
+                            data[i] = results.get(i).value;
+                        }
+                        resolveBatch(id, names, codes, data);
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("loadAssetFiles", start, BridgeMetrics.length(namesJson), BridgeMetrics.ASYNC);
+            }
         }
 
+        /**
+         * @param batchJson [{"name": "", "data": ""}, ...]
+         * @param atomic    store all files or, if any fails, none
+         */
         @JavascriptInterface
-        public void showMessage(String message) {
-            showToast(message);
+        public void storeAssetFiles(final int id, final String batchJson, final boolean atomic) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "storeAssetFiles", start);
+            try {
+                runAsync(id, IoScheduler.Priority.WRITE, BATCH_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        List<String> names = new ArrayList<String>();
+                        List<String> data = new ArrayList<String>();
+                        if (!parseBatch(batchJson, names, data)) {
+                            resolve(id, ErrorCode.INVALID_ARGS, "null");
+                            return;
+                        }
+                        resolveBatch(id, names, writeInternalFiles(names, data, atomic), null);
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("storeAssetFiles", start, BridgeMetrics.length(batchJson), BridgeMetrics.ASYNC);
+            }
         }
 
+        /**
+         * @param namesJson ["name", ...]
+         */
         @JavascriptInterface
-        public void logMessage(String message) {
-            Log.i(TAG, message);
+        public void deleteAssetFiles(final int id, final String namesJson) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "deleteAssetFiles", start);
+            try {
+                runAsync(id, IoScheduler.Priority.WRITE, BATCH_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        List<String> names = parseNames(namesJson);
+                        if (names == null) {
+                            resolve(id, ErrorCode.INVALID_ARGS, "null");
+                            return;
+                        }
+                        resolveBatch(id, names, deleteInternalFiles(names), null);
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("deleteAssetFiles", start, BridgeMetrics.length(namesJson), BridgeMetrics.ASYNC);
+            }
+        }
+
+        /**
+         * Read [{"name": "", "data": ""}, ...] into {@code names} and {@code data}, streaming, so
+         * a large batch is not held twice as a tree of objects.
+         *
+         * @return false if the batch is malformed
+         */
+        private boolean parseBatch(String batchJson, List<String> names, List<String> data) {
+            if (batchJson == null) {
+                return false;
+            }
+            try {
+                JsonReader reader = new JsonReader(batchJson);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String name = null;
+                    String content = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        if (key.equals("name")) {
+                            name = reader.nextString();
+                        } else if (key.equals("data")) {
+                            content = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if (name == null || content == null) {
+                        return false;
+                    }
+                    names.add(name);
+                    data.add(content);
+                }
+                reader.endArray();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return the names of a json array, or null if it is not one.
+         */
+        private List<String> parseNames(String namesJson) {
+            if (namesJson == null) {
+                return null;
+            }
+            try {
+                JsonReader reader = new JsonReader(namesJson);
+                List<String> names = new ArrayList<String>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    names.add(reader.nextString());
+                }
+                reader.endArray();
+                return names;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @param data if not null, added to each entry as "data", null where the file failed
+         */
+        private void resolveBatch(int id, List<String> names, ErrorCode[] codes, String[] data) {
+            JsonWriter writer = JsonWriter.obtain().beginArray();
+            ErrorCode batchCode = ErrorCode.NO_ERROR;
+            for (int i = 0; i < codes.length; i++) {
+                writer.beginObject()
+                        .name("name").value(names.get(i))
+                        .name("code").value(codes[i].name());
+                if (data != null) {
+                    writer.name("data").value(data[i]);
+                }
+                writer.endObject();
+                if (batchCode == ErrorCode.NO_ERROR) {
+                    batchCode = codes[i];
+                }
+            }
+            resolve(id, batchCode, writer.endArray().finish());
         }
 
+        /**
+         * Does not read notes, so snippets are only there for notes in memory, "" for the others.
+         * Use {@link #searchAsync} for all snippets.
+         *
+         * @return [{"name": "", "score": 0.0, "snippet": ""}, ...], best match first
+         */
         @JavascriptInterface
-        public void logError(String error) {
-            Log.e(TAG, error);
+        public String search(String query, int limit) {
+            long start = BridgeMetrics.begin();
+            return respond("search", start, BridgeMetrics.length(query), toJson(query, mSearchIndex.search(query, limit), false));
         }
 
+        /**
+         * Resolves with what {@link #search} returns, with every snippet. The hits are read on the
+         * IO executor without filling the note cache.
+         */
         @JavascriptInterface
-        public void logWTF(String wtf) {
-            Log.wtf(TAG, wtf);
+        public void searchAsync(final int id, final String query, final int limit) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "searchAsync", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        resolve(id, ErrorCode.NO_ERROR, toJson(query, mSearchIndex.search(query, limit), true));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("searchAsync", start, BridgeMetrics.length(query), BridgeMetrics.ASYNC);
+            }
+        }
+
+        /**
+         * @param read whether to read notes not in memory for their snippet
+         */
+        private String toJson(String query, List<SearchIndex.Hit> hits, boolean read) {
+            JsonWriter writer = JsonWriter.obtain().beginArray();
+            for (SearchIndex.Hit hit : hits) {
+                String text = read ? peekInternalFile(hit.name).value : getInternalFileInMemory(hit.name);
+                writer.beginObject()
+                        .name("name").value(hit.name)
+                        .name("score").value(hit.score)
+                        .name("snippet").value(SearchIndex.snippet(text, query))
+                        .endObject();
+            }
+            return writer.endArray().finish();
         }
 
         @JavascriptInterface
-        public String loadAssetFile(String name) {
-            Log.w("JsPlatform", "Js trying to load internal file: " + name);
-            return loadInternalFile(name);
+        public void rebuildSearchIndex() {
+            long start = BridgeMetrics.begin();
+            try {
+                runOnIOExecutor(IoScheduler.Priority.BACKGROUND, SEARCH_INDEX_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        MainActivity.this.rebuildSearchIndex();
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("rebuildSearchIndex", start, 0, 0);
+            }
         }
 
         @JavascriptInterface
-        public boolean storeAssetFile(String name, String data) {
-            Log.w("JsPlatform", "Js trying to store internal file: " + name);
-            return storeInternalFile(name, data);
+        public String getIoStats() {
+            long start = BridgeMetrics.begin();
+            JsonWriter writer = JsonWriter.obtain().beginObject();
+            for (IoScheduler.Priority priority : IoScheduler.Priority.values()) {
+                writer.name(priority.name().toLowerCase()).beginObject()
+                        .name("queueDepth").value(mIOExecutor.getQueueDepth(priority))
+                        .name("started").value(mIOExecutor.getStartedCount(priority))
+                        .name("averageWaitUs").value(mIOExecutor.getAverageWait(priority) / 1000)
+                        .name("maxWaitUs").value(mIOExecutor.getMaxWait(priority) / 1000)
+                        .endObject();
+            }
+            return respond("getIoStats", start, 0, writer.endObject().finish());
         }
 
         @JavascriptInterface
-        public boolean deleteAssetFile(String name) {
-            Log.w("JsPlatform", "Js trying to delete internal file: " + name);
-            return deleteInternalFile(name);
+        public void setNoteEncryption(boolean enabled) {
+            long start = BridgeMetrics.begin();
+            try {
+                MainActivity.this.setNoteEncryption(enabled);
+            } finally {
+                mBridgeMetrics.end("setNoteEncryption", start, 0, 0);
+            }
         }
 
         @JavascriptInterface
-        public String listAssetFiles() {
+        public boolean isNoteEncryptionEnabled() {
+            long start = BridgeMetrics.begin();
             try {
-                JSONArray array = new JSONArray(listInternalFiles());
-                return array.toString();
-            } catch (JSONException e) {
-                Log.e("JsPlatform", e.getMessage());
+                return mJournal.isEncrypted();
+            } finally {
+                mBridgeMetrics.end("isNoteEncryptionEnabled", start, 0, 0);
             }
-            return "";
+        }
+
+        /**
+         * @return timed spans of the startup phases, see {@link StartupTracer#toJson()}.
+         */
+        @JavascriptInterface
+        public String getStartupReport() {
+            long start = BridgeMetrics.begin();
+            return respond("getStartupReport", start, 0, mStartup.toJson());
+        }
+
+        /**
+         * @return calls, latency and payload histograms of every bridge method since the start or
+         * the last reset, see {@link BridgeMetrics#write}.
+         */
+        @JavascriptInterface
+        public String getMetrics() {
+            long start = BridgeMetrics.begin();
+            JsonWriter writer = JsonWriter.obtain().beginObject();
+            mBridgeMetrics.write(writer);
+            return respond("getMetrics", start, 0, writer.endObject().finish());
+        }
+
+        @JavascriptInterface
+        public void resetMetrics() {
+            long start = BridgeMetrics.begin();
+            try {
+                mBridgeMetrics.reset();
+            } finally {
+                // Recorded after the reset, so the new period starts with this call.
+                mBridgeMetrics.end("resetMetrics", start, 0, 0);
+            }
+        }
+
+        /**
+         * Write {@link #getMetrics()} with the build and device it was taken on to
+         * {@code <external files>/metrics/<name>.json}, to pull and compare between builds.
+         * Resolves with the path.
+         */
+        @JavascriptInterface
+        public void dumpMetrics(final int id, final String name) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "dumpMetrics", start);
+            try {
+                if (!NoteArchive.isValidName(name)) {
+                    resolve(id, ErrorCode.INVALID_ARGS, "null");
+                    return;
+                }
+                JsonWriter writer = JsonWriter.obtain().setIndent("  ").beginObject()
+                        .name("versionName").value(BuildConfig.VERSION_NAME)
+                        .name("versionCode").value(BuildConfig.VERSION_CODE)
+                        .name("buildType").value(BuildConfig.BUILD_TYPE)
+                        .name("device").value(Build.MANUFACTURER + " " + Build.MODEL)
+                        .name("sdk").value(Build.VERSION.SDK_INT);
+                mBridgeMetrics.write(writer);
+                final String metrics = writer.endObject().finish();
+                runAsync(id, IoScheduler.Priority.BACKGROUND, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        File dir = getExternalFilesDir("metrics");
+                        // External storage is another file system, the temp file must be on it too.
+                        File tempDir = dir != null ? new File(dir, ".tmp") : null;
+                        if (tempDir == null || (!tempDir.isDirectory() && !tempDir.mkdirs())) {
+                            resolve(id, ErrorCode.UNKNOWN, "null");
+                            return;
+                        }
+                        File file = new File(dir, name + ".json");
+                        ErrorCode code = AtomicFileWriter.write(file, tempDir, metrics);
+                        resolve(id, code, code == ErrorCode.NO_ERROR ? JsonWriter.quote(file.getPath()) : "null");
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("dumpMetrics", start, BridgeMetrics.length(name), BridgeMetrics.ASYNC);
+            }
+        }
+
+        /**
+         * Sync the notes with a Zebra Note Book server from now on, in the background after
+         * startup and whenever the app is left, or stop syncing with an empty url. See
+         * {@link SyncEngine} for the protocol.
+         *
+         * @param url   e.g. "https://znb.example.com/api". Only debug builds take http, and only
+         *              to a mock server on localhost or the emulator's host (10.0.2.2), the token
+         *              would go out in clear.
+         * @param token sent as a bearer token, kept in the key store
+         */
+        @JavascriptInterface
+        public boolean setSyncServer(final String url, final String token) {
+            long start = BridgeMetrics.begin();
+            try {
+                final boolean enable = url != null && !url.isEmpty();
+                if (enable && !url.startsWith("https://") && !(BuildConfig.DEBUG && url.startsWith("http://"))) {
+                    return false;
+                }
+                runOnIOExecutor(IoScheduler.Priority.INTERACTIVE, SYNC_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        KeyStoreWrapper keyStore = getKeyStore();
+                        if (keyStore != null) {
+                            if (enable && token != null) {
+                                keyStore.saveToSharedPreferences(KEY_SYNC_TOKEN, token);
+                            } else {
+                                keyStore.removeFromSharedPreferences(KEY_SYNC_TOKEN);
+                            }
+                        }
+                        mSync.setServer(enable ? url : null, token);
+                    }
+                });
+                if (enable) {
+                    syncInBackground();
+                }
+                return true;
+            } finally {
+                mBridgeMetrics.end("setSyncServer", start, BridgeMetrics.length(url) + BridgeMetrics.length(token), 0);
+            }
+        }
+
+        /**
+         * Sync now. Resolves with {pulled, pushed, merged, overwritten, bytesSent, bytesReceived},
+         * or null with NETWORK_ERROR if the server could not be reached, INVALID_ARGS if none is set.
+         */
+        @JavascriptInterface
+        public void syncNow(final int id) {
+            long start = BridgeMetrics.begin();
+            mBridgeMetrics.beginAsync(id, "syncNow", start);
+            try {
+                runAsync(id, IoScheduler.Priority.INTERACTIVE, SYNC_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        Result<SyncEngine.Report> result = syncNotes();
+                        resolve(id, result.code, toJson(result.value));
+                    }
+                });
+            } finally {
+                mBridgeMetrics.end("syncNow", start, 0, BridgeMetrics.ASYNC);
+            }
+        }
+
+        @JavascriptInterface
+        public String getNoteCacheStats() {
+            long start = BridgeMetrics.begin();
+            return respond("getNoteCacheStats", start, 0, JsonWriter.obtain().beginObject()
+                    .name("hits").value(mNoteCache.hitCount())
+                    .name("misses").value(mNoteCache.missCount())
+                    .name("size").value(mNoteCache.size())
+                    .name("maxSize").value(mNoteCache.maxSize())
+                    .endObject().finish());
+        }
+
+        @JavascriptInterface
+        public String getWebAssetStats() {
+            long start = BridgeMetrics.begin();
+            return respond("getWebAssetStats", start, 0, JsonWriter.obtain().beginObject()
+                    .name("hits").value(mWebAssets.hitCount())
+                    .name("misses").value(mWebAssets.missCount())
+                    .endObject().finish());
         }
 
         @JavascriptInterface
         public void showFileImporter(String type) {
-            Intent intent = new Intent();
-            intent.setAction(Intent.ACTION_GET_CONTENT);
-            intent.addCategory(Intent.CATEGORY_OPENABLE);
-            intent.setType(type);
-            MainActivity.this.showAppSelector(intent, REQUEST_CODE_JS_IMPORT_FILE);
+            long start = BridgeMetrics.begin();
+            try {
+                Intent intent = new Intent();
+                intent.setAction(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType(type);
+                MainActivity.this.showAppSelector(intent, REQUEST_CODE_JS_IMPORT_FILE);
+            } finally {
+                mBridgeMetrics.end("showFileImporter", start, BridgeMetrics.length(type), 0);
+            }
+        }
+
+        /**
+         * Let the user pick any number of documents. They are imported in parallel, reported through
+         * platform._onImportStarted(ids), _onImportProgress(id, bytesRead, totalBytes) and
+         * _onImportResult(id, errorCode), and stay staged until fetched or released.
+         */
+        @JavascriptInterface
+        public void showMultiFileImporter(String type) {
+            long start = BridgeMetrics.begin();
+            try {
+                Intent intent = new Intent();
+                intent.setAction(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType(type);
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                MainActivity.this.showAppSelector(intent, REQUEST_CODE_JS_IMPORT_FILES);
+            } finally {
+                mBridgeMetrics.end("showMultiFileImporter", start, BridgeMetrics.length(type), 0);
+            }
+        }
+
+        @JavascriptInterface
+        public void cancelImport(int id) {
+            long start = BridgeMetrics.begin();
+            try {
+                mImports.cancel(id);
+            } finally {
+                mBridgeMetrics.end("cancelImport", start, 0, 0);
+            }
+        }
+
+        @JavascriptInterface
+        public String getImportedData(int id) {
+            long start = BridgeMetrics.begin();
+            File file = mImports.getStaged(id);
+            if (file == null) {
+                return respond("getImportedData", start, 0, null);
+            }
+            try (InputStream input = new FileInputStream(file)) {
+                return respond("getImportedData", start, 0, Utf8StreamReader.read(input, file.length()).value);
+            } catch (IOException e) {
+                AsyncLog.e(TAG, e.getMessage());
+                return respond("getImportedData", start, 0, null);
+            } finally {
+                mImports.release(id);
+            }
+        }
+
+        @JavascriptInterface
+        public int openImportedDataReader(int id, int chunkSize) {
+            long start = BridgeMetrics.begin();
+            try {
+                File file = mImports.getStaged(id);
+                if (file == null) {
+                    return ChunkedTransfer.INVALID_HANDLE;
+                }
+                try {
+                    // The open handle keeps the data after the staged file is gone.
+                    return mTransfer.openRead(ChunkedTransfer.fromFile(file), chunkSize);
+                } catch (IOException e) {
+                    AsyncLog.e(TAG, e.getMessage());
+                    return ChunkedTransfer.INVALID_HANDLE;
+                } finally {
+                    mImports.release(id);
+                }
+            } finally {
+                mBridgeMetrics.end("openImportedDataReader", start, 0, 0);
+            }
+        }
+
+        @JavascriptInterface
+        public void releaseImport(int id) {
+            long start = BridgeMetrics.begin();
+            try {
+                mImports.release(id);
+            } finally {
+                mBridgeMetrics.end("releaseImport", start, 0, 0);
+            }
         }
 
+        /**
+         * Share a note with another app. Flushing and copying the note run on mIOExecutor, the
+         * result arrives through platform._onFileExporterResult.
+         */
         @JavascriptInterface
-        public void showFileExporter(String name, String type) {
-            Uri uri = FileProvider.getUriForFile(MainActivity.this, "com.hz.zebra.fileprovider", new File(getFilesDir() + "/" + name));
+        public void showFileExporter(final String name, final String type) {
+            long start = BridgeMetrics.begin();
+            try {
+                if (name == null) {
+                    onFileExporterResult(ErrorCode.INVALID_ARGS);
+                    return;
+                }
+                try {
+                    mIOExecutor.submit(IoScheduler.Priority.INTERACTIVE, name, new Runnable() {
+                        @Override
+                        public void run() {
+                            shareNote(name, type);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    AsyncLog.e(TAG, "Export of " + name + " rejected");
+                    onFileExporterResult(ErrorCode.UNKNOWN);
+                }
+            } finally {
+                mBridgeMetrics.end("showFileExporter", start, BridgeMetrics.length(name) + BridgeMetrics.length(type), 0);
+            }
+        }
 
-            Intent intent = new Intent();
+        private void shareNote(String name, String type) {
+            // The exported file must be the complete note.
+            ErrorCode flushed = mWriteBehind.flush(name);
+            if (flushed != ErrorCode.NO_ERROR) {
+                showToast(getErrorCodeString(flushed));
+                onFileExporterResult(flushed);
+                return;
+            }
+            mJournal.compact(name);
+            File file = getShareableFile(name);
+            if (file == null) {
+                showToast(getErrorCodeString(ErrorCode.UNKNOWN));
+                onFileExporterResult(ErrorCode.UNKNOWN);
+                return;
+            }
+            Uri uri = FileProvider.getUriForFile(MainActivity.this, "com.hz.zebra.fileprovider", file);
+
+            final Intent intent = new Intent();
             intent.setAction(Intent.ACTION_SEND);
             intent.setType(type);
             intent.putExtra(Intent.EXTRA_STREAM, uri);
-            MainActivity.this.showAppSelector(intent, REQUEST_CODE_JS_EXPORT_FILE);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!showAppSelector(intent, REQUEST_CODE_JS_EXPORT_FILE)) {
+                        onFileExporterResult(ErrorCode.UNKNOWN);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Let the user pick where to save a note, then write it there. Progress and the result
+         * arrive through platform._onFileExporterProgress and platform._onFileExporterResult.
+         */
+        @JavascriptInterface
+        public void showDocumentExporter(String name, String type) {
+            long start = BridgeMetrics.begin();
+            try {
+                if (name == null) {
+                    onFileExporterResult(ErrorCode.INVALID_ARGS);
+                    return;
+                }
+                mPendingExport = createNoteExportSource(name);
+                showDocumentCreator(name, type);
+            } finally {
+                mBridgeMetrics.end("showDocumentExporter", start, BridgeMetrics.length(name) + BridgeMetrics.length(type), 0);
+            }
+        }
+
+        /**
+         * Let the user pick where to save a zip of all notes, then write it there. Reported like
+         * {@link #showDocumentExporter(String, String)}.
+         */
+        @JavascriptInterface
+        public void exportAllAsArchive() {
+            long start = BridgeMetrics.begin();
+            try {
+                mPendingExport = createArchiveExportSource();
+                showDocumentCreator("zebra-backup.zip", "application/zip");
+            } finally {
+                mBridgeMetrics.end("exportAllAsArchive", start, 0, 0);
+            }
+        }
+
+        /**
+         * @param level lowest level logged, android.util.Log's levels: 2 (verbose) to 7 (assert).
+         *              Release builds never log below info.
+         * @param toFile also keep the log in rotating files, for {@link #exportLogs()}
+         */
+        @JavascriptInterface
+        public void setLogging(int level, boolean toFile) {
+            long start = BridgeMetrics.begin();
+            try {
+                MainActivity.this.setLogging(level, toFile);
+            } finally {
+                mBridgeMetrics.end("setLogging", start, 0, 0);
+            }
+        }
+
+        @JavascriptInterface
+        public int getLogLevel() {
+            long start = BridgeMetrics.begin();
+            try {
+                return AsyncLog.getLevel();
+            } finally {
+                mBridgeMetrics.end("getLogLevel", start, 0, 0);
+            }
+        }
+
+        /**
+         * Let the user pick where to save the log files kept since {@link #setLogging(int, boolean)}
+         * enabled them, e.g. for a bug report. The result arrives like the file exporter's.
+         */
+        @JavascriptInterface
+        public void exportLogs() {
+            long start = BridgeMetrics.begin();
+            try {
+                mPendingExport = createLogExportSource();
+                showDocumentCreator("zebra-log.txt", "text/plain");
+            } finally {
+                mBridgeMetrics.end("exportLogs", start, 0, 0);
+            }
+        }
+
+        /**
+         * Let the user pick a zip from {@link #exportAllAsArchive()} and restore its notes,
+         * overwriting notes of the same name. Progress and the result arrive through
+         * platform._onArchiveRestoreProgress(bytesRead, totalBytes) and
+         * platform._onArchiveRestoreResult(success, errorCode, count).
+         */
+        @JavascriptInterface
+        public void showArchiveRestorer() {
+            long start = BridgeMetrics.begin();
+            try {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("application/zip");
+                try {
+                    startActivityForResult(intent, REQUEST_CODE_JS_RESTORE_ARCHIVE);
+                } catch (ActivityNotFoundException e) {
+                    // No documents provider, like in showDocumentCreator.
+                    showToast("No suitable app!");
+                    onArchiveRestoreResult(ErrorCode.UNKNOWN, 0);
+                }
+            } finally {
+                mBridgeMetrics.end("showArchiveRestorer", start, 0, 0);
+            }
         }
 
         @JavascriptInterface
         public String getRequestedData() {
+            long start = BridgeMetrics.begin();
             String data = mJsRequestedData;
             mJsRequestedData = null;
-            return data;
+            return respond("getRequestedData", start, 0, data);
         }
 
         @JavascriptInterface
         public void saveSubPair(String subpwd, String key) {
-            mKeyStore.saveToSharedPreferences(KEY_SUB_PWD, subpwd);
-            mKeyStore.saveToSharedPreferences(KEY_KEY, key);
+            long start = BridgeMetrics.begin();
+            try {
+                KeyStoreWrapper keyStore = getKeyStore();
+                if (keyStore != null) {
+                    keyStore.saveToSharedPreferences(KEY_SUB_PWD, subpwd);
+                    keyStore.saveToSharedPreferences(KEY_KEY, key);
+                }
+            } finally {
+                mBridgeMetrics.end("saveSubPair", start, BridgeMetrics.length(subpwd) + BridgeMetrics.length(key), 0);
+            }
         }
 
         @JavascriptInterface
         public void clearSubPair() {
-            mKeyStore.removeFromSharedPreferences(KEY_SUB_PWD);
-            mKeyStore.removeFromSharedPreferences(KEY_KEY);
+            long start = BridgeMetrics.begin();
+            try {
+                KeyStoreWrapper keyStore = getKeyStore();
+                if (keyStore != null) {
+                    keyStore.removeFromSharedPreferences(KEY_SUB_PWD);
+                    keyStore.removeFromSharedPreferences(KEY_KEY);
+                }
+            } finally {
+                mBridgeMetrics.end("clearSubPair", start, 0, 0);
+            }
         }
 
         @JavascriptInterface
         public boolean hasSubPair() {
-            return mKeyStore.loadFromSharedPreferences(KEY_SUB_PWD) != null;
+            long start = BridgeMetrics.begin();
+            try {
+                KeyStoreWrapper keyStore = getKeyStore();
+                return keyStore != null && keyStore.loadFromSharedPreferences(KEY_SUB_PWD) != null;
+            } finally {
+                mBridgeMetrics.end("hasSubPair", start, 0, 0);
+            }
         }
 
         @JavascriptInterface
         public String getSubPair() {
+            long start = BridgeMetrics.begin();
             /*
              * {
              *     "subpwd":"",
              *     "key":""
              * }
              */
-            if(hasSubPair()){
-                String subpwd = mKeyStore.loadFromSharedPreferences(KEY_SUB_PWD);
-                String key = mKeyStore.loadFromSharedPreferences(KEY_KEY);
-                String result = String.format("{\"subpwd\":\"%s\", \"key\":\"%s\"}", subpwd, key);
-                Log.w("JsPlatform", result);
-                return result;
-            } else{
-                return null;
+            KeyStoreWrapper keyStore = getKeyStore();
+            if (keyStore == null) {
+                return respond("getSubPair", start, 0, null);
+            }
+            String[] pair = keyStore.loadFromSharedPreferences(new String[]{KEY_SUB_PWD, KEY_KEY});
+            String subpwd = pair[0];
+            String key = pair[1];
+            if (subpwd == null) {
+                return respond("getSubPair", start, 0, null);
             }
+            return respond("getSubPair", start, 0, JsonWriter.obtain().beginObject()
+                    .name("subpwd").value(subpwd)
+                    .name("key").value(key)
+                    .endObject().finish());
         }
     }
 }
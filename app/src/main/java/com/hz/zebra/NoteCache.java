@@ -0,0 +1,75 @@
+package com.hz.zebra;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+/**
+ * In-memory cache of decoded internal files, bounded by the approximate heap size of the strings.
+ * <p>
+ * Writers call {@link #update(String, String)} and {@link #invalidate(String)}. Readers that miss
+ * and go to disk must take a {@link #generation()} before reading and publish the result with
+ * {@link #putIfUnchanged(String, String, long)}, so a slow read can never overwrite a newer store.
+ */
+class NoteCache extends LruCache<String, String> {
+    // Never take more than this, whatever the heap size is.
+    private static final int MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private long mGeneration;
+
+    public NoteCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * A cache using an eighth of the heap, up to {@link #MAX_CACHE_BYTES}.
+     */
+    public static NoteCache create() {
+        long heap = Runtime.getRuntime().maxMemory();
+        return new NoteCache((int) Math.min(heap / 8, MAX_CACHE_BYTES));
+    }
+
+    @Override
+    protected int sizeOf(String key, String value) {
+        // Two bytes per char plus a rough per-entry overhead.
+        return 2 * (key.length() + value.length()) + 64;
+    }
+
+    public synchronized long generation() {
+        return mGeneration;
+    }
+
+    public synchronized void update(String name, String data) {
+        mGeneration++;
+        put(name, data);
+    }
+
+    public synchronized void invalidate(String name) {
+        mGeneration++;
+        remove(name);
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        evictAll();
+    }
+
+    /**
+     * Publish a value read from disk, unless a writer touched the cache since {@code generation}.
+     */
+    public synchronized void putIfUnchanged(String name, String data, long generation) {
+        if (generation == mGeneration) {
+            put(name, data);
+        }
+    }
+
+    /**
+     * Release memory according to {@link ComponentCallbacks2#onTrimMemory(int)} level.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize() / 2);
+        }
+    }
+}
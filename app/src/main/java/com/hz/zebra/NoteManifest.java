@@ -0,0 +1,396 @@
+package com.hz.zebra;
+
+import com.hz.zebra.core.AsyncLog;
+import com.hz.zebra.core.ErrorCode;
+import com.hz.zebra.core.Result;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Metadata of every note, so a notebook list can be shown without opening the notes.
+ * <p>
+ * Kept in memory, updated by the storage paths and saved to one compact file. Each entry records
+ * the storage stamp of the note it was made from; on launch {@link #reconcile(Source)} rebuilds
+ * the entries whose stamp no longer matches and drops those of deleted notes. It also counts the
+ * notes referencing each {@link BlobStore} blob, for collecting the unreferenced ones.
+ */
+class NoteManifest {
+    private static final String TAG = "NoteManifest";
+    private static final int FILE_MAGIC = 0x5a4d4e46; // "ZMNF"
+    private static final int FILE_VERSION = 2;
+    private static final int TITLE_LENGTH = 64;
+    private static final int PREVIEW_LENGTH = 120;
+    private static final Pattern JSON_TITLE = Pattern.compile("\"title\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    static class Entry {
+        public final String name;
+        // UTF-8 bytes of the content
+        public final long size;
+        public final long modified;
+        public final String hash;
+        public final String title;
+        public final String preview;
+        // hashes of the blobs the note references
+        final Set<String> blobs;
+        final long stamp;
+
+        Entry(String name, long size, long modified, String hash, String title, String preview, Set<String> blobs,
+              long stamp) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.title = title;
+            this.preview = preview;
+            this.blobs = blobs;
+            this.stamp = stamp;
+        }
+    }
+
+    interface Source {
+        String[] list();
+
+        /**
+         * @return a value that changes whenever the stored note changes.
+         */
+        long stamp(String name);
+
+        long lastModified(String name);
+
+        Result<String> read(String name);
+    }
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // How many notes reference each blob.
+    private final Map<String, Integer> mBlobReferences = new HashMap<String, Integer>();
+    private List<Entry> mSorted;
+    private boolean mDirty;
+
+    public NoteManifest(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Record a note just stored.
+     *
+     * @param stamp    the storage stamp matching {@code data}
+     * @param modified when the note changed, kept as it was if the content did not
+     */
+    public void update(String name, String data, long stamp, long modified) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        String hash = sha256(bytes);
+        String title = extractTitle(data);
+        String preview = extractPreview(data, title);
+        Set<String> blobs = BlobStore.extractReferences(data);
+        synchronized (this) {
+            Entry old = mEntries.get(name);
+            if (old != null && old.hash.equals(hash)) {
+                // e.g. a compaction, which only changes the stamp
+                modified = old.modified;
+            }
+            put(new Entry(name, bytes.length, modified, hash, title, preview, blobs, stamp));
+            mSorted = null;
+            mDirty = true;
+        }
+    }
+
+    public synchronized void remove(String name) {
+        Entry old = mEntries.remove(name);
+        if (old != null) {
+            countReferences(old, -1);
+            mSorted = null;
+            mDirty = true;
+        }
+    }
+
+    private void put(Entry entry) {
+        Entry old = mEntries.put(entry.name, entry);
+        if (old != null) {
+            countReferences(old, -1);
+        }
+        countReferences(entry, 1);
+    }
+
+    private void countReferences(Entry entry, int delta) {
+        for (String blob : entry.blobs) {
+            Integer count = mBlobReferences.get(blob);
+            int updated = (count != null ? count : 0) + delta;
+            if (updated > 0) {
+                mBlobReferences.put(blob, updated);
+            } else {
+                mBlobReferences.remove(blob);
+            }
+        }
+    }
+
+    /**
+     * @return how many notes reference the blob.
+     */
+    public synchronized int getBlobReferenceCount(String hash) {
+        Integer count = mBlobReferences.get(hash);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return the hashes of all blobs at least one note references.
+     */
+    public synchronized Set<String> getReferencedBlobs() {
+        return new HashSet<String>(mBlobReferences.keySet());
+    }
+
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return entries, most recently modified first.
+     */
+    public synchronized List<Entry> list(int offset, int limit) {
+        if (mSorted == null) {
+            mSorted = new ArrayList<Entry>(mEntries.values());
+            Collections.sort(mSorted, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    if (a.modified != b.modified) {
+                        return a.modified > b.modified ? -1 : 1;
+                    }
+                    return a.name.compareTo(b.name);
+                }
+            });
+        }
+        int from = Math.max(0, Math.min(offset, mSorted.size()));
+        int to = limit < 0 ? mSorted.size() : (int) Math.min((long) from + limit, mSorted.size());
+        return new ArrayList<Entry>(mSorted.subList(from, to));
+    }
+
+    /**
+     * Bring the manifest in line with the stored notes, reading only notes that changed.
+     *
+     * @return how many entries were rebuilt or dropped.
+     */
+    public int reconcile(Source source) {
+        String[] names = source.list();
+        if (names == null) {
+            return 0;
+        }
+
+        int changed = 0;
+        Set<String> present = new HashSet<String>();
+        for (String name : names) {
+            present.add(name);
+            long stamp = source.stamp(name);
+            Entry entry;
+            synchronized (this) {
+                entry = mEntries.get(name);
+            }
+            if (entry != null && entry.stamp == stamp) {
+                continue;
+            }
+            Result<String> result = source.read(name);
+            if (result.isOk()) {
+                update(name, result.value, stamp, source.lastModified(name));
+                changed++;
+            }
+        }
+
+        synchronized (this) {
+            for (String name : new ArrayList<String>(mEntries.keySet())) {
+                if (!present.contains(name)) {
+                    remove(name);
+                    changed++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    static String extractTitle(String data) {
+        // Notebooks are json with a title field, anything else uses its first line.
+        if (data.startsWith("{")) {
+            Matcher matcher = JSON_TITLE.matcher(data);
+            if (matcher.find()) {
+                return truncate(matcher.group(1).replace("\\\"", "\"").replace("\\\\", "\\"), TITLE_LENGTH);
+            }
+        }
+        int start = 0;
+        while (start < data.length()) {
+            int end = data.indexOf('\n', start);
+            if (end < 0) {
+                end = data.length();
+            }
+            String line = data.substring(start, end).trim();
+            while (line.startsWith("#")) {
+                line = line.substring(1).trim();
+            }
+            if (!line.isEmpty()) {
+                return truncate(line, TITLE_LENGTH);
+            }
+            start = end + 1;
+        }
+        return "";
+    }
+
+    static String extractPreview(String data, String title) {
+        int from = title.isEmpty() ? -1 : data.indexOf(title);
+        from = from < 0 ? 0 : from + title.length();
+        StringBuilder sb = new StringBuilder(PREVIEW_LENGTH);
+        boolean space = true;
+        for (int i = from; i < data.length() && sb.length() < PREVIEW_LENGTH; i++) {
+            char c = data.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!space) {
+                    sb.append(' ');
+                    space = true;
+                }
+            } else {
+                sb.append(c);
+                space = false;
+            }
+        }
+        return truncate(sb.toString().trim(), PREVIEW_LENGTH);
+    }
+
+    private static String truncate(String text, int length) {
+        if (text.length() <= length) {
+            return text;
+        }
+        int end = length;
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write the manifest atomically.
+     */
+    public ErrorCode save(File tempDir) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(mEntries.values());
+            mDirty = false;
+        }
+
+        File temp = null;
+        try {
+            temp = File.createTempFile("manifest", ".tmp", tempDir);
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+                output.writeInt(FILE_MAGIC);
+                output.writeInt(FILE_VERSION);
+                output.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    output.writeUTF(entry.name);
+                    output.writeLong(entry.size);
+                    output.writeLong(entry.modified);
+                    output.writeUTF(entry.hash);
+                    output.writeUTF(entry.title);
+                    output.writeUTF(entry.preview);
+                    output.writeInt(entry.blobs.size());
+                    for (String blob : entry.blobs) {
+                        output.writeUTF(blob);
+                    }
+                    output.writeLong(entry.stamp);
+                }
+                output.flush();
+                file.getFD().sync();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Rename to " + mFile + " failed!");
+            }
+            return ErrorCode.NO_ERROR;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            if (temp != null) {
+                temp.delete();
+            }
+            synchronized (this) {
+                mDirty = true;
+            }
+            return ErrorCode.UNKNOWN;
+        }
+    }
+
+    public ErrorCode load() {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        try (InputStream file = new FileInputStream(mFile)) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(file));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                // An older manifest is rebuilt by reconcile().
+                return ErrorCode.UNKNOWN;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = input.readUTF();
+                long size = input.readLong();
+                long modified = input.readLong();
+                String hash = input.readUTF();
+                String title = input.readUTF();
+                String preview = input.readUTF();
+                int blobCount = input.readInt();
+                Set<String> blobs = new HashSet<String>();
+                for (int j = 0; j < blobCount; j++) {
+                    blobs.add(input.readUTF());
+                }
+                Entry entry = new Entry(name, size, modified, hash, title, preview, blobs, input.readLong());
+                entries.put(entry.name, entry);
+            }
+        } catch (FileNotFoundException e) {
+            return ErrorCode.FILE_NOT_FOUND;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, "Manifest unreadable: " + e.getMessage());
+            return ErrorCode.UNKNOWN;
+        }
+
+        synchronized (this) {
+            mEntries.clear();
+            mBlobReferences.clear();
+            for (Entry entry : entries.values()) {
+                put(entry);
+            }
+            mSorted = null;
+            mDirty = false;
+        }
+        return ErrorCode.NO_ERROR;
+    }
+}
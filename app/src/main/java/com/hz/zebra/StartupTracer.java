@@ -0,0 +1,79 @@
+package com.hz.zebra;
+
+import com.hz.zebra.core.AsyncLog;
+import com.hz.zebra.core.JsonWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records timed spans of the startup phases, relative to the creation of the tracer.
+ * <p>
+ * Spans may be begun and ended on any thread, e.g. for work moved off the main thread.
+ */
+class StartupTracer {
+    private static final String TAG = "Startup";
+
+    class Span {
+        final String name;
+        final String thread;
+        final long start;
+        long end = -1;
+
+        Span(String name) {
+            this.name = name;
+            this.thread = Thread.currentThread().getName();
+            this.start = System.nanoTime();
+        }
+
+        public void end() {
+            synchronized (StartupTracer.this) {
+                if (end < 0) {
+                    end = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    private final long mOrigin = System.nanoTime();
+    private final List<Span> mSpans = new ArrayList<Span>();
+
+    public synchronized Span begin(String name) {
+        Span span = new Span(name);
+        mSpans.add(span);
+        return span;
+    }
+
+    /**
+     * Record an instant, e.g. an event we only get a callback for.
+     */
+    public void mark(String name) {
+        begin(name).end();
+    }
+
+    /**
+     * @return {"spans": [{name, thread, startMs, durationMs}]}, a running span has no duration.
+     */
+    public synchronized String toJson() {
+        JsonWriter writer = JsonWriter.obtain().beginObject().name("spans").beginArray();
+        for (Span span : mSpans) {
+            writer.beginObject()
+                    .name("name").value(span.name)
+                    .name("thread").value(span.thread)
+                    .name("startMs").value((span.start - mOrigin) / 1e6);
+            if (span.end >= 0) {
+                writer.name("durationMs").value((span.end - span.start) / 1e6);
+            }
+            writer.endObject();
+        }
+        return writer.endArray().endObject().finish();
+    }
+
+    public synchronized void log() {
+        for (Span span : mSpans) {
+            AsyncLog.i(TAG, String.format("%-16s %8.1f ms %s %s", span.name, (span.start - mOrigin) / 1e6,
+                    span.end >= 0 ? String.format("+%.1f ms", (span.end - span.start) / 1e6) : "running",
+                    span.thread));
+        }
+    }
+}
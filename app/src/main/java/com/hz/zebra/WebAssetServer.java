@@ -0,0 +1,338 @@
+package com.hz.zebra;
+
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.util.LruCache;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import com.hz.zebra.core.AsyncLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the web app from the apk's assets, for {@code WebViewClient.shouldInterceptRequest},
+ * instead of letting the WebView read them itself. The page stays at {@link #BASE_URL}, so its
+ * origin, and with it the web storage it kept so far, does not change.
+ * <p>
+ * Assets are kept in a memory cache once read. {@link #prefetch} reads a page and the scripts,
+ * styles and fonts it links before the WebView asks for them. Assets are served as they are in the
+ * apk: the WebView does not decode a Content-Encoding of intercepted responses, so gzipped copies
+ * would only cost apk size and inflating time.
+ */
+class WebAssetServer {
+    private static final String TAG = "WebAssetServer";
+    // Where the page always lived, its origin owns the page's localStorage and IndexedDB.
+    public static final String BASE_URL = "file:///android_asset";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Bundlers put a content hash in the names of files that never change under that name.
+    private static final Pattern HASHED_NAME = Pattern.compile("[.-][0-9a-f]{8,}\\.");
+    private static final Pattern LINK = Pattern.compile("(?:src|href)\\s*=\\s*[\"']([^\"'#?]+)");
+    private static final Map<String, String> sMimeTypes = new HashMap<String, String>();
+
+    static {
+        sMimeTypes.put("html", "text/html");
+        sMimeTypes.put("htm", "text/html");
+        sMimeTypes.put("js", "application/javascript");
+        sMimeTypes.put("mjs", "application/javascript");
+        sMimeTypes.put("css", "text/css");
+        sMimeTypes.put("json", "application/json");
+        sMimeTypes.put("map", "application/json");
+        sMimeTypes.put("webmanifest", "application/manifest+json");
+        sMimeTypes.put("txt", "text/plain");
+        sMimeTypes.put("xml", "text/xml");
+        sMimeTypes.put("svg", "image/svg+xml");
+        sMimeTypes.put("png", "image/png");
+        sMimeTypes.put("jpg", "image/jpeg");
+        sMimeTypes.put("jpeg", "image/jpeg");
+        sMimeTypes.put("gif", "image/gif");
+        sMimeTypes.put("webp", "image/webp");
+        sMimeTypes.put("ico", "image/x-icon");
+        sMimeTypes.put("woff", "font/woff");
+        sMimeTypes.put("woff2", "font/woff2");
+        sMimeTypes.put("ttf", "font/ttf");
+        sMimeTypes.put("otf", "font/otf");
+        sMimeTypes.put("wasm", "application/wasm");
+    }
+
+    private static class Asset {
+        final byte[] data;
+
+        Asset(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final AssetManager mAssets;
+    private final String mDir;
+    private final LruCache<String, Asset> mCache;
+    // Reads in progress, so a request waits for a prefetch of the same asset instead of repeating it.
+    private final Map<String, FutureTask<Asset>> mLoading = new HashMap<String, FutureTask<Asset>>();
+
+    /**
+     * @param dir        asset dir served under {@code BASE_URL/dir/}, e.g. "web"
+     * @param cacheBytes how much asset data to keep in memory
+     */
+    public WebAssetServer(AssetManager assets, String dir, int cacheBytes) {
+        mAssets = assets;
+        mDir = dir;
+        mCache = new LruCache<String, Asset>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Asset value) {
+                return value.data.length;
+            }
+        };
+    }
+
+    /**
+     * @return the url an asset path below the served dir is served at.
+     */
+    public String getUrl(String path) {
+        return BASE_URL + "/" + mDir + "/" + path;
+    }
+
+    /**
+     * @return null if the request is not for an asset in the served dir, the WebView reads it
+     * itself then
+     */
+    public WebResourceResponse intercept(WebResourceRequest request) {
+        Uri url = request.getUrl();
+        if (!"file".equals(url.getScheme()) || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+        String path = toAssetPath(url.getPath());
+        if (path == null) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        try {
+            Asset asset = load(path);
+            if (asset == null) {
+                return new WebResourceResponse("text/plain", null, 404, "Not Found", headers, null);
+            }
+            InputStream data = new ByteArrayInputStream(asset.data);
+            headers.put("Cache-Control", HASHED_NAME.matcher(path).find()
+                    ? "max-age=31536000, immutable" : "no-cache");
+            String mimeType = getMimeType(path);
+            return new WebResourceResponse(mimeType, isText(mimeType) ? "utf-8" : null, 200, "OK", headers, data);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return new WebResourceResponse("text/plain", null, 500, "Internal Error", headers, null);
+        }
+    }
+
+    /**
+     * Read a page and the assets it links into the cache, on {@code executor}.
+     *
+     * @param page path below the served dir, e.g. "index.html"
+     * @param done called once all of them are read
+     */
+    public void prefetch(final String page, final Executor executor, final Runnable done) {
+        execute(executor, new Runnable() {
+            @Override
+            public void run() {
+                Set<String> links = new LinkedHashSet<String>();
+                try {
+                    Asset asset = load(page);
+                    if (asset != null) {
+                        links = findLinks(page, new String(asset.data, StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                }
+                if (links.isEmpty()) {
+                    done.run();
+                    return;
+                }
+
+                final AtomicInteger remaining = new AtomicInteger(links.size());
+                for (final String link : links) {
+                    execute(executor, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                load(link);
+                            } catch (IOException e) {
+                                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                            }
+                            if (remaining.decrementAndGet() == 0) {
+                                done.run();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static void execute(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return the asset paths {@code page} links, relative to the served dir.
+     */
+    private Set<String> findLinks(String page, String html) {
+        Set<String> links = new LinkedHashSet<String>();
+        int slash = page.lastIndexOf('/');
+        String base = slash >= 0 ? page.substring(0, slash + 1) : "";
+        Matcher matcher = LINK.matcher(html);
+        while (matcher.find()) {
+            String link = matcher.group(1).trim();
+            String path;
+            if (link.startsWith("file://")) {
+                path = toAssetPath(Uri.parse(link).getPath());
+            } else if (link.startsWith("/")) {
+                path = link.startsWith("//") ? null : toAssetPath(link);
+            } else if (link.contains(":")) {
+                // Another scheme or origin.
+                path = null;
+            } else {
+                path = normalize(base + link);
+            }
+            if (path != null) {
+                links.add(path);
+            }
+        }
+        return links;
+    }
+
+    /**
+     * @param urlPath e.g. /android_asset/web/js/app.js
+     * @return e.g. js/app.js, or null if it is outside the served dir
+     */
+    private String toAssetPath(String urlPath) {
+        String prefix = Uri.parse(BASE_URL).getPath() + "/" + mDir + "/";
+        if (urlPath == null || !urlPath.startsWith(prefix)) {
+            return null;
+        }
+        String path = urlPath.substring(prefix.length());
+        return normalize(path.isEmpty() || path.endsWith("/") ? path + "index.html" : path);
+    }
+
+    private static String normalize(String path) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                // Nothing outside the served dir.
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(segment);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * @return the asset, or null if there is none at this path.
+     */
+    private Asset load(final String path) throws IOException {
+        Asset asset = mCache.get(path);
+        if (asset != null) {
+            return asset;
+        }
+
+        FutureTask<Asset> task;
+        boolean owner = false;
+        synchronized (mLoading) {
+            task = mLoading.get(path);
+            if (task == null) {
+                task = new FutureTask<Asset>(new Callable<Asset>() {
+                    @Override
+                    public Asset call() throws IOException {
+                        return readAsset(path);
+                    }
+                });
+                mLoading.put(path, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            task.run();
+        }
+        try {
+            asset = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            if (owner) {
+                synchronized (mLoading) {
+                    mLoading.remove(path);
+                }
+            }
+        }
+        return asset;
+    }
+
+    private Asset readAsset(String path) throws IOException {
+        Asset asset;
+        try {
+            asset = new Asset(readFully(mAssets.open(mDir + "/" + path, AssetManager.ACCESS_STREAMING)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        mCache.put(path, asset);
+        return asset;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(stream.available(), BUFFER_SIZE));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    static String getMimeType(String path) {
+        int dot = path.lastIndexOf('.');
+        String type = dot >= 0 ? sMimeTypes.get(path.substring(dot + 1).toLowerCase()) : null;
+        return type != null ? type : "application/octet-stream";
+    }
+
+    private static boolean isText(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.equals("application/javascript")
+                || mimeType.equals("application/json") || mimeType.equals("image/svg+xml")
+                || mimeType.equals("application/manifest+json");
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+}
@@ -0,0 +1,102 @@
+package com.hz.zebra.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Reading a file encrypted by {@link SegmentedCipher} against reading it in plain text: as a
+ * stream, from the file with segments decrypted ahead on several threads, and only its last 4 KB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherFileCost {
+    @Param({"1048576", "33554432"})
+    public int size;
+
+    private SegmentedCipher mCipher;
+    private File mPlain;
+    private File mSealed;
+    private byte[] mBuffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        mCipher = new SegmentedCipher(generator.generateKey());
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        mPlain = File.createTempFile("plain", null);
+        mSealed = File.createTempFile("sealed", null);
+        try (OutputStream output = new FileOutputStream(mPlain)) {
+            output.write(data);
+        }
+        try (OutputStream output = mCipher.encrypt(new FileOutputStream(mSealed))) {
+            output.write(data);
+        }
+        mBuffer = new byte[SegmentedCipher.DEFAULT_SEGMENT_SIZE];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPlain.delete();
+        mSealed.delete();
+    }
+
+    private long drain(InputStream input) throws IOException {
+        try {
+            long total = 0;
+            int n;
+            while ((n = input.read(mBuffer)) != -1) {
+                total += n;
+            }
+            return total;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public long plain() throws IOException {
+        return drain(new FileInputStream(mPlain));
+    }
+
+    @Benchmark
+    public long decryptStream() throws IOException {
+        return drain(mCipher.decrypt(new FileInputStream(mSealed)));
+    }
+
+    @Benchmark
+    public long decryptFile() throws IOException {
+        return drain(mCipher.decrypt(mSealed, 0));
+    }
+
+    @Benchmark
+    public long decryptLast4K() throws IOException {
+        return drain(mCipher.decrypt(mSealed, size - 4096));
+    }
+}
@@ -0,0 +1,103 @@
+package com.hz.zebra.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Encoding and decoding of a note in memory: compression by {@link NoteCodec}, encryption by
+ * {@link SegmentedCipher} and UTF-8 decoding by {@link Utf8StreamReader}, without disk access.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecThroughput {
+    @Param({"65536", "1048576"})
+    public int size;
+
+    @Param({"1", "3", "6", "9"})
+    public int level;
+
+    private NoteCodec mCodec;
+    private SegmentedCipher mCipher;
+    private byte[] mUtf8;
+    private byte[] mEncoded;
+    private byte[] mEncrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        mCodec = new NoteCodec(NoteCodec.DEFLATE, level, 0);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        mCipher = new SegmentedCipher(generator.generateKey());
+        mUtf8 = Notebooks.generate(size).getBytes(StandardCharsets.UTF_8);
+        mEncoded = encode();
+        mEncrypted = encrypt();
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(mUtf8.length);
+        try (OutputStream output = mCodec.encode(bytes, mUtf8.length)) {
+            output.write(mUtf8);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public String decode() throws IOException {
+        try (InputStream input = NoteCodec.decode(new ByteArrayInputStream(mEncoded))) {
+            long length = NoteCodec.getLength(input);
+            return Utf8StreamReader.read(input, length != NoteCodec.UNKNOWN_LENGTH ? length : mUtf8.length).value;
+        }
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(mUtf8.length + 1024);
+        try (OutputStream output = mCipher.encrypt(bytes)) {
+            output.write(mUtf8);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public int decrypt() throws IOException {
+        byte[] buffer = new byte[SegmentedCipher.DEFAULT_SEGMENT_SIZE];
+        int total = 0;
+        try (InputStream input = mCipher.decrypt(new ByteArrayInputStream(mEncrypted))) {
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public String decodeUtf8() {
+        return Utf8StreamReader.read(new ByteArrayInputStream(mUtf8), mUtf8.length).value;
+    }
+}
@@ -0,0 +1,98 @@
+package com.hz.zebra.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Stores and reads of one note through {@link NoteJournal}, the way the app does: compressed
+ * from 16 KB on, optionally encrypted. Writes include the fsync of the atomic replace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalThroughput {
+    private static final String NAME = "note";
+
+    @Param({"4096", "262144", "4194304"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    private File mDir;
+    private ExecutorService mExecutor;
+    private NoteJournal mJournal;
+    private String mNote;
+    private String mEdited;
+    private boolean mFlip;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDir = Notebooks.createTempDir();
+        File notes = new File(mDir, "notes");
+        File logs = new File(mDir, "journal");
+        File temp = new File(mDir, "temp");
+        notes.mkdirs();
+        logs.mkdirs();
+        temp.mkdirs();
+        mExecutor = Executors.newSingleThreadExecutor();
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        mJournal = new NoteJournal(notes, logs, temp, mExecutor, 0.5f,
+                new SegmentedCipher(generator.generateKey()),
+                new NoteCodec(NoteCodec.DEFLATE, Deflater.BEST_SPEED, 16 * 1024));
+        mJournal.setEncrypted(encrypted);
+        mNote = Notebooks.generate(size);
+        // Same length, so both versions cost the same to write.
+        mEdited = "X" + mNote.substring(1);
+        mJournal.writeSnapshot(NAME, mNote);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        Notebooks.delete(mDir);
+    }
+
+    @Benchmark
+    public ErrorCode write() {
+        mFlip = !mFlip;
+        return mJournal.writeSnapshot(NAME, mFlip ? mEdited : mNote);
+    }
+
+    @Benchmark
+    public String read() {
+        return mJournal.read(NAME).value;
+    }
+
+    @Benchmark
+    public String readAfterEdit() {
+        // Replaces the opening brace with itself, the read applies the logged edits until the
+        // journal compacts the note.
+        mJournal.append(NAME, Collections.singletonList(new NoteJournal.Edit(0, 1, "{")));
+        return mJournal.read(NAME).value;
+    }
+}
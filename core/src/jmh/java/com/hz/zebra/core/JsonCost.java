@@ -0,0 +1,126 @@
+package com.hz.zebra.core;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per bridge response of {@link JsonWriter} and {@link JsonReader} against org.json, which
+ * the bridge used before: a page of note metadata and a note's content out, a batch of notes in.
+ * Compare gc.alloc.rate.norm as well as the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCost {
+    @Param({"100"})
+    public int notes;
+
+    @Param({"65536"})
+    public int noteSize;
+
+    private String mNote;
+    private String mBatch;
+
+    @Setup
+    public void setUp() {
+        mNote = Notebooks.generate(noteSize);
+        JSONArray batch = new JSONArray();
+        for (int i = 0; i < 16; i++) {
+            JSONObject file = new JSONObject();
+            file.put("name", "note-" + i);
+            file.put("data", Notebooks.generate(noteSize / 16 + i));
+            batch.put(file);
+        }
+        mBatch = batch.toString();
+    }
+
+    @Benchmark
+    public String listWithJsonWriter() {
+        JsonWriter writer = JsonWriter.obtain().beginObject()
+                .name("total").value(notes)
+                .name("files").beginArray();
+        for (int i = 0; i < notes; i++) {
+            writer.beginObject()
+                    .name("name").value("note-" + i)
+                    .name("size").value(noteSize)
+                    .name("modified").value(1600000000000L + i)
+                    .name("title").value("Note " + i)
+                    .name("preview").value("First line of note " + i)
+                    .endObject();
+        }
+        return writer.endArray().endObject().finish();
+    }
+
+    @Benchmark
+    public String listWithOrgJson() {
+        JSONArray files = new JSONArray();
+        for (int i = 0; i < notes; i++) {
+            JSONObject file = new JSONObject();
+            file.put("name", "note-" + i);
+            file.put("size", noteSize);
+            file.put("modified", 1600000000000L + i);
+            file.put("title", "Note " + i);
+            file.put("preview", "First line of note " + i);
+            files.put(file);
+        }
+        JSONObject result = new JSONObject();
+        result.put("total", notes);
+        result.put("files", files);
+        return result.toString();
+    }
+
+    @Benchmark
+    public String quoteWithJsonWriter() {
+        return JsonWriter.quote(mNote);
+    }
+
+    @Benchmark
+    public String quoteWithOrgJson() {
+        return JSONObject.quote(mNote);
+    }
+
+    @Benchmark
+    public int batchWithJsonReader() throws IOException {
+        JsonReader reader = new JsonReader(mBatch);
+        int chars = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                chars += reader.nextName().length() + reader.nextString().length();
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return chars;
+    }
+
+    @Benchmark
+    public int batchWithOrgJson() {
+        JSONArray batch = new JSONArray(mBatch);
+        int chars = 0;
+        for (int i = 0; i < batch.length(); i++) {
+            JSONObject file = batch.getJSONObject(i);
+            chars += "name".length() + file.getString("name").length();
+            chars += "data".length() + file.getString("data").length();
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hz.zebra.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Inputs of the benchmarks, shaped like what the web app stores.
+ */
+class Notebooks {
+    // Cells of json with markdown, like the notebooks the web app stores.
+    static String generate(int size) {
+        Random random = new Random(42);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 2 + random.nextInt(9);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = sb.toString();
+        }
+
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("{\"title\":\"Benchmark\",\"cells\":[");
+        int cell = 0;
+        while (sb.length() < size) {
+            sb.append("{\"id\":").append(cell++).append(",\"type\":\"markdown\",\"source\":\"## ");
+            for (int i = 0; i < 80; i++) {
+                sb.append(words[(int) (Math.pow(random.nextDouble(), 3) * words.length)]);
+                sb.append(i % 15 == 14 ? "\\n" : " ");
+            }
+            sb.append("斑马\"},");
+        }
+        sb.append("{}]}");
+        return sb.toString();
+    }
+
+    static File createTempDir() throws IOException {
+        return Files.createTempDirectory("zebra-jmh").toFile();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
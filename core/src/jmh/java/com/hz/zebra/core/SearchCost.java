@@ -0,0 +1,117 @@
+package com.hz.zebra.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SearchIndex} over a synthetic corpus: a query, re-indexing an edited note, and saving
+ * and loading the whole index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchCost {
+    private static final int WORDS_PER_NOTE = 300;
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int QUERY_COUNT = 1000;
+
+    @Param({"10000"})
+    public int notes;
+
+    private String[] mWords;
+    private String[] mNotes;
+    private String[] mQueries;
+    private File mDir;
+    private SearchIndex mIndex;
+    private int mNext;
+
+    // Zipf-like: low indices are far more common, like real text.
+    private String word(Random random) {
+        return mWords[(int) (Math.pow(random.nextDouble(), 3) * mWords.length)];
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        mWords = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < mWords.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 3 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            mWords[i] = sb.toString();
+        }
+        mNotes = new String[notes];
+        for (int i = 0; i < notes; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < WORDS_PER_NOTE; j++) {
+                sb.append(word(random)).append(j % 12 == 11 ? ".\n" : " ");
+            }
+            mNotes[i] = sb.toString();
+        }
+        mQueries = new String[QUERY_COUNT];
+        for (int i = 0; i < mQueries.length; i++) {
+            mQueries[i] = mWords[random.nextInt(2000)] + " " + mWords[random.nextInt(VOCABULARY_SIZE)];
+        }
+
+        mDir = Notebooks.createTempDir();
+        mIndex = new SearchIndex(new File(mDir, "search.idx"));
+        for (int i = 0; i < notes; i++) {
+            mIndex.update("note" + i, mNotes[i], i);
+        }
+        mIndex.save(mDir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Notebooks.delete(mDir);
+    }
+
+    @Benchmark
+    public List<SearchIndex.Hit> search() {
+        mNext = (mNext + 1) % QUERY_COUNT;
+        return mIndex.search(mQueries[mNext], 20);
+    }
+
+    @Benchmark
+    public void update() {
+        mNext = (mNext + 1) % notes;
+        mIndex.update("note" + mNext, mNotes[(mNext + 1) % notes], mNext);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public ErrorCode save() {
+        return mIndex.save(mDir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public ErrorCode load() {
+        return new SearchIndex(new File(mDir, "search.idx")).load();
+    }
+}
@@ -0,0 +1,110 @@
+package com.hz.zebra.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Cost per call of turning notes into what leaves the process and back: backup archives, journal
+ * edits, search tokens and the settings css.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationCost {
+    @Param({"16"})
+    public int notes;
+
+    @Param({"65536"})
+    public int noteSize;
+
+    private String[] mNames;
+    private byte[][] mNotes;
+    private String mNote;
+    private List<NoteJournal.Edit> mEdits;
+    private Map<String, String> mSettings;
+
+    @Setup
+    public void setUp() {
+        mNames = new String[notes];
+        mNotes = new byte[notes][];
+        for (int i = 0; i < notes; i++) {
+            mNames[i] = "note-" + i;
+            mNotes[i] = Notebooks.generate(noteSize + i).getBytes(StandardCharsets.UTF_8);
+        }
+        mNote = Notebooks.generate(noteSize);
+        // Typing: one char inserted at a time, spread over the note.
+        mEdits = new ArrayList<NoteJournal.Edit>();
+        for (int i = 0; i < 64; i++) {
+            mEdits.add(new NoteJournal.Edit(i * (noteSize / 64), 0, "x"));
+        }
+        mSettings = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 32; i++) {
+            mSettings.put("--setting-" + i, "value-" + i);
+        }
+    }
+
+    @Benchmark
+    public int exportArchive() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new NoteArchive(Deflater.BEST_SPEED).export(new NoteArchive.Notes() {
+            @Override
+            public String[] list() {
+                return mNames;
+            }
+
+            @Override
+            public InputStream open(String name) {
+                return new ByteArrayInputStream(mNotes[Integer.parseInt(name.substring(5))]);
+            }
+
+            @Override
+            public long lastModified(String name) {
+                return 0;
+            }
+        }, output, new NoteArchive.Progress() {
+            @Override
+            public void onProgress(long bytes, long totalBytes) {
+            }
+        });
+        return output.size();
+    }
+
+    @Benchmark
+    public String applyEdits() {
+        return NoteJournal.apply(mNote, mEdits).value;
+    }
+
+    @Benchmark
+    public List<String> tokenize() {
+        return SearchIndex.tokenize(mNote);
+    }
+
+    @Benchmark
+    public String generateSettings() {
+        return JsSettingsUtils.generate(mSettings);
+    }
+}
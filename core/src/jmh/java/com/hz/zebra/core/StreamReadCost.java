@@ -0,0 +1,51 @@
+package com.hz.zebra.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a note into a String with {@link Utf8StreamReader} against the old
+ * {@link StreamUtils#readStringFromStream(java.io.InputStream)}, from memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// The 50 MB input is decoded into a 100 MB char array, next to the old reader's copies.
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class StreamReadCost {
+    // A small note, a large note and the 50 MB import the reader has to survive.
+    @Param({"1024", "1048576", "52428800"})
+    public int size;
+
+    private byte[] mUtf8;
+
+    @Setup
+    public void setUp() {
+        mUtf8 = Notebooks.generate(size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String utf8StreamReader() {
+        return Utf8StreamReader.read(new ByteArrayInputStream(mUtf8), mUtf8.length).value;
+    }
+
+    @Benchmark
+    public String readStringFromStream() {
+        return StreamUtils.readStringFromStream(new ByteArrayInputStream(mUtf8)).value;
+    }
+}
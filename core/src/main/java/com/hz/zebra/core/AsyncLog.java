@@ -0,0 +1,432 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging off the calling thread, into a {@link Sink} the platform provides, e.g. logcat.
+ * <p>
+ * A call below the level returns right away, after one volatile read. The platform sets a floor
+ * with {@link #init}, e.g. no debug entries in release builds, that the runtime level cannot go
+ * below. Messages with arguments are formatted with {@link String#format} only once they
+ * are written. Entries go into a bounded lock-free ring buffer, which a background thread drains
+ * into logcat and, if enabled, into rotating files under {@link #setFileDir}. When the buffer is
+ * full, or a tag logs more than {@link #TAG_RATE_LIMIT} entries in a second, entries are dropped
+ * and counted, the count is written with the next entry.
+ */
+public class AsyncLog {
+    // The priorities of android.util.Log.
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    public interface Sink {
+        /**
+         * Called on the drain thread only.
+         */
+        void println(int level, String tag, String message);
+    }
+
+    private static final String TAG = "AsyncLog";
+    private static final int CAPACITY = 1024;
+    private static final int TAG_RATE_LIMIT = 50;
+    // Idle wait of the drain thread, errors wake it up right away.
+    private static final long IDLE_PARK_NS = 100 * 1000 * 1000;
+    private static final String FILE_NAME = "zebra.log";
+    private static final long MAX_FILE_SIZE = 512 * 1024;
+    // Rotated files kept besides the current one, zebra.1.log is the newest.
+    private static final int ROTATED_FILES = 2;
+
+    private static class Entry {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final int level;
+        final String tag;
+        final String format;
+        final Object[] args;
+        final Throwable error;
+        int suppressed;
+
+        Entry(int level, String tag, String format, Object[] args, Throwable error) {
+            this.level = level;
+            this.tag = tag;
+            this.format = format;
+            this.args = args;
+            this.error = error;
+        }
+
+        String message() {
+            String message = format;
+            if (args != null && args.length > 0) {
+                try {
+                    message = String.format(Locale.ROOT, format, args);
+                } catch (IllegalFormatException e) {
+                    message = format + " (bad format: " + e.getMessage() + ")";
+                }
+            }
+            if (error != null) {
+                StringWriter trace = new StringWriter();
+                error.printStackTrace(new PrintWriter(trace));
+                message += "\n" + trace;
+            }
+            if (suppressed > 0) {
+                message += " (" + suppressed + " entries before dropped)";
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Allows {@link #TAG_RATE_LIMIT} entries per second. Threads racing at the turn of a second
+     * may let a few more through, which is fine for logging.
+     */
+    private static class TagLimiter {
+        final AtomicLong second = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger dropped = new AtomicInteger();
+
+        boolean tryAcquire(long now) {
+            long current = now / 1000;
+            long last = second.get();
+            if (current != last && second.compareAndSet(last, current)) {
+                count.set(0);
+            }
+            return count.incrementAndGet() <= TAG_RATE_LIMIT;
+        }
+    }
+
+    // Bounded multi producer, single consumer queue: a slot is free for the producer claiming
+    // position p when its sequence is p, and full for the consumer when it is p + 1.
+    private static final Entry[] sEntries = new Entry[CAPACITY];
+    private static final AtomicLongArray sSequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong sTail = new AtomicLong();
+    private static long sHead;
+    private static final AtomicInteger sDropped = new AtomicInteger();
+    private static final ConcurrentMap<String, TagLimiter> sLimiters = new ConcurrentHashMap<String, TagLimiter>();
+
+    private static volatile Sink sSink = new Sink() {
+        @Override
+        public void println(int level, String tag, String message) {
+            (level >= WARN ? System.err : System.out).println(tag + ": " + message);
+        }
+    };
+    private static volatile int sMinLevel = VERBOSE;
+    // Never below sMinLevel.
+    private static volatile int sLevel = VERBOSE;
+    private static volatile boolean sIdle;
+    private static final Thread sDrainer;
+
+    private static volatile File sFileDir;
+    // Only touched by the drain thread.
+    private static File sOpenDir;
+    private static Writer sWriter;
+    private static long sFileSize;
+    private static final SimpleDateFormat sTimeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.ROOT);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sSequences.set(i, i);
+        }
+        sDrainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "async-log");
+        sDrainer.setDaemon(true);
+        sDrainer.setPriority(Thread.MIN_PRIORITY);
+        sDrainer.start();
+    }
+
+    /**
+     * Until called, entries go to stdout and stderr.
+     *
+     * @param minLevel nothing below it is logged, whatever {@link #setLevel(int)} asks for
+     */
+    public static void init(Sink sink, int minLevel) {
+        sSink = sink;
+        sMinLevel = minLevel;
+        sLevel = Math.max(sLevel, minLevel);
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * @param level lowest level logged from now on, raised to the floor set by {@link #init}
+     */
+    public static void setLevel(int level) {
+        sLevel = Math.max(level, sMinLevel);
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Also write entries to files in {@code dir}, or stop with null.
+     */
+    public static void setFileDir(File dir) {
+        sFileDir = dir;
+        LockSupport.unpark(sDrainer);
+    }
+
+    public static void v(String tag, String message) {
+        log(VERBOSE, tag, message, null, null);
+    }
+
+    public static void v(String tag, String format, Object... args) {
+        log(VERBOSE, tag, format, args, null);
+    }
+
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null, null);
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        log(DEBUG, tag, format, args, null);
+    }
+
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null, null);
+    }
+
+    public static void i(String tag, String format, Object... args) {
+        log(INFO, tag, format, args, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null, null);
+    }
+
+    public static void w(String tag, String format, Object... args) {
+        log(WARN, tag, format, args, null);
+    }
+
+    public static void e(String tag, String message) {
+        log(ERROR, tag, message, null, null);
+    }
+
+    public static void e(String tag, String format, Object... args) {
+        log(ERROR, tag, format, args, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        log(ERROR, tag, message, null, error);
+    }
+
+    public static void wtf(String tag, String message) {
+        log(ASSERT, tag, message, null, null);
+    }
+
+    private static void log(int level, String tag, String format, Object[] args, Throwable error) {
+        if (!isLoggable(level)) {
+            return;
+        }
+        TagLimiter limiter = sLimiters.get(tag);
+        if (limiter == null) {
+            TagLimiter created = new TagLimiter();
+            limiter = sLimiters.putIfAbsent(tag, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        // Errors are rare and the ones that matter, they are never limited.
+        if (level < ERROR && !limiter.tryAcquire(System.currentTimeMillis())) {
+            limiter.dropped.incrementAndGet();
+            return;
+        }
+
+        Entry entry = new Entry(level, tag, String.valueOf(format), args, error);
+        entry.suppressed = limiter.dropped.getAndSet(0);
+        if (!offer(entry)) {
+            sDropped.incrementAndGet();
+            limiter.dropped.addAndGet(entry.suppressed);
+        }
+        if (level >= ERROR || sIdle) {
+            LockSupport.unpark(sDrainer);
+        }
+    }
+
+    private static boolean offer(Entry entry) {
+        long position = sTail.get();
+        while (true) {
+            int index = (int) (position & (CAPACITY - 1));
+            long sequence = sSequences.get(index);
+            if (sequence == position) {
+                if (sTail.compareAndSet(position, position + 1)) {
+                    sEntries[index] = entry;
+                    // Publishes the entry to the consumer.
+                    sSequences.set(index, position + 1);
+                    return true;
+                }
+                position = sTail.get();
+            } else if (sequence < position) {
+                // Full.
+                return false;
+            } else {
+                // Another producer took it.
+                position = sTail.get();
+            }
+        }
+    }
+
+    private static Entry poll() {
+        int index = (int) (sHead & (CAPACITY - 1));
+        if (sSequences.get(index) != sHead + 1) {
+            return null;
+        }
+        Entry entry = sEntries[index];
+        sEntries[index] = null;
+        sSequences.set(index, sHead + CAPACITY);
+        sHead++;
+        return entry;
+    }
+
+    private static void drain() {
+        while (true) {
+            Entry entry = poll();
+            if (entry == null) {
+                flushFile();
+                if (sFileDir != sOpenDir) {
+                    closeFile();
+                    sOpenDir = sFileDir;
+                }
+                sIdle = true;
+                // Recheck, an entry offered before sIdle was set did not unpark.
+                entry = poll();
+                if (entry == null) {
+                    LockSupport.parkNanos(IDLE_PARK_NS);
+                }
+                sIdle = false;
+                if (entry == null) {
+                    continue;
+                }
+            }
+            write(entry);
+        }
+    }
+
+    private static void write(Entry entry) {
+        int dropped = sDropped.getAndSet(0);
+        if (dropped > 0) {
+            sSink.println(WARN, TAG, dropped + " entries dropped, the buffer was full");
+        }
+        String message = entry.message();
+        sSink.println(entry.level, entry.tag, message);
+        writeFile(entry, message);
+    }
+
+    private static void writeFile(Entry entry, String message) {
+        File dir = sFileDir;
+        if (dir != sOpenDir) {
+            closeFile();
+            sOpenDir = dir;
+        }
+        if (dir == null) {
+            return;
+        }
+        try {
+            if (sWriter == null) {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Failed to create " + dir);
+                }
+                File file = new File(dir, FILE_NAME);
+                sFileSize = file.length();
+                sWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            String line = sTimeFormat.format(new Date(entry.time)) + ' ' + "VDIWEA".charAt(Math.min(5, Math.max(0, entry.level - VERBOSE)))
+                    + '/' + entry.tag + " [" + entry.thread + "] " + message + '\n';
+            sWriter.write(line);
+            sFileSize += line.length();
+            if (sFileSize >= MAX_FILE_SIZE) {
+                closeFile();
+                rotate(dir);
+            }
+        } catch (IOException e) {
+            sSink.println(ERROR, TAG, String.valueOf(e.getMessage()));
+            closeFile();
+            // Do not retry for every entry.
+            sFileDir = null;
+            sOpenDir = null;
+        }
+    }
+
+    private static void rotate(File dir) {
+        new File(dir, rotatedName(ROTATED_FILES)).delete();
+        for (int i = ROTATED_FILES - 1; i >= 1; i--) {
+            new File(dir, rotatedName(i)).renameTo(new File(dir, rotatedName(i + 1)));
+        }
+        new File(dir, FILE_NAME).renameTo(new File(dir, rotatedName(1)));
+    }
+
+    private static String rotatedName(int index) {
+        return "zebra." + index + ".log";
+    }
+
+    private static void flushFile() {
+        if (sWriter != null) {
+            try {
+                sWriter.flush();
+            } catch (IOException e) {
+                sSink.println(ERROR, TAG, String.valueOf(e.getMessage()));
+                closeFile();
+            }
+        }
+    }
+
+    private static void closeFile() {
+        if (sWriter != null) {
+            try {
+                sWriter.close();
+            } catch (IOException e) {
+                sSink.println(ERROR, TAG, String.valueOf(e.getMessage()));
+            }
+            sWriter = null;
+        }
+    }
+
+    /**
+     * Copy the log files of {@code dir}, oldest first, e.g. to attach to a bug report. Entries
+     * still buffered may be missing.
+     */
+    public static void export(File dir, OutputStream output) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        for (int i = ROTATED_FILES; i >= 0; i--) {
+            File file = new File(dir, i == 0 ? FILE_NAME : rotatedName(i));
+            if (!file.isFile()) {
+                continue;
+            }
+            try (InputStream input = new FileInputStream(file)) {
+                int n;
+                while ((n = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+}
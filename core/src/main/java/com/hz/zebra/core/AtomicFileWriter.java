@@ -0,0 +1,178 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Replaces a file so that readers, and the file after a crash, see either the old or the new
+ * content, never a mix: the data goes to a temp file, is fsynced and then renamed over the target.
+ * <p>
+ * The temp directory must be on the same file system as the target, e.g. a {@code Context.getDir}.
+ */
+public class AtomicFileWriter {
+    private static final String TAG = "AtomicFileWriter";
+    private static final String TEMP_PREFIX = "zebra";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public static ErrorCode write(File target, File tempDir, String data) {
+        return write(target, tempDir, data, null);
+    }
+
+    public static ErrorCode write(File target, File tempDir, String data, Checksum checksum) {
+        return write(target, tempDir, data, checksum, null, null);
+    }
+
+    /**
+     * @param checksum if not null, updated with every byte written to the file
+     * @param cipher   if not null, encrypts the data
+     * @param codec    if not null, may compress the data before it is encrypted
+     */
+    public static ErrorCode write(File target, File tempDir, String data, Checksum checksum,
+                                  SegmentedCipher cipher, NoteCodec codec) {
+        if (target == null || tempDir == null || data == null) {
+            return ErrorCode.INVALID_ARGS;
+        }
+
+        File temp = null;
+        try {
+            temp = prepare(tempDir, data, checksum, cipher, codec);
+            if (!temp.renameTo(target)) {
+                AsyncLog.e(TAG, "Rename to " + target + " failed!");
+                deleteQuietly(temp);
+                return ErrorCode.UNKNOWN;
+            }
+            return ErrorCode.NO_ERROR;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            deleteQuietly(temp);
+            return ErrorCode.UNKNOWN;
+        }
+    }
+
+    /**
+     * The first half of {@link #write(File, File, String, Checksum, SegmentedCipher, NoteCodec)}:
+     * write the data to a synced temp file, for the caller to rename where it belongs.
+     */
+    public static File prepare(File tempDir, String data, Checksum checksum, SegmentedCipher cipher,
+                               NoteCodec codec) throws IOException {
+        File temp = createTempFile(tempDir);
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            OutputStream stream = wrap(output, checksum, cipher, codec, NoteCodec.utf8Length(data));
+            // Encoded a buffer at a time, there is never a second copy of the whole note.
+            try (Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
+                writer.write(data);
+            }
+            output.getFD().sync();
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * @return a new empty file in {@code tempDir}, removed by {@link #cleanTempDir(File)} if it is
+     * left behind.
+     */
+    public static File createTempFile(File tempDir) throws IOException {
+        return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, tempDir);
+    }
+
+    /**
+     * Replace {@code target} with a copy of {@code source}, compressed and encrypted as
+     * {@code codec} and {@code cipher} ask for, either may be null.
+     */
+    public static ErrorCode copy(File source, File target, File tempDir, SegmentedCipher cipher, NoteCodec codec) {
+        File temp = null;
+        try {
+            temp = createTempFile(tempDir);
+            try (InputStream input = new FileInputStream(source); FileOutputStream output = new FileOutputStream(temp)) {
+                try (OutputStream stream = wrap(output, null, cipher, codec, source.length())) {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int n;
+                    while ((n = input.read(buffer)) != -1) {
+                        stream.write(buffer, 0, n);
+                    }
+                }
+                output.getFD().sync();
+            }
+
+            if (!temp.renameTo(target)) {
+                AsyncLog.e(TAG, "Rename to " + target + " failed!");
+                deleteQuietly(temp);
+                return ErrorCode.UNKNOWN;
+            }
+            return ErrorCode.NO_ERROR;
+        } catch (FileNotFoundException e) {
+            deleteQuietly(temp);
+            return ErrorCode.FILE_NOT_FOUND;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            deleteQuietly(temp);
+            return ErrorCode.UNKNOWN;
+        }
+    }
+
+    /**
+     * Stack the encoding streams on a file. Closing the result finishes them all but leaves the
+     * file open, so it can still be synced.
+     */
+    private static OutputStream wrap(FileOutputStream output, Checksum checksum, SegmentedCipher cipher,
+                                     NoteCodec codec, long length) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FilterOutputStream(output) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }, COPY_BUFFER_SIZE);
+        if (checksum != null) {
+            stream = new CheckedOutputStream(stream, checksum);
+        }
+        if (cipher != null) {
+            stream = cipher.encrypt(stream);
+        }
+        if (codec != null) {
+            stream = codec.encode(stream, length);
+        }
+        return stream;
+    }
+
+    /**
+     * Remove temp files left behind by writes interrupted by a crash, ours or any other ending in .tmp.
+     */
+    public static void cleanTempDir(File tempDir) {
+        File[] files = tempDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            AsyncLog.w(TAG, "Failed to delete " + file);
+        }
+    }
+}
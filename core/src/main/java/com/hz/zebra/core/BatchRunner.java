@@ -0,0 +1,85 @@
+package com.hz.zebra.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the items of a batch in parallel, from a task that itself runs on the executor.
+ * <p>
+ * The calling thread works through the items too and helpers only take what is left, so a batch
+ * finishes even if no other thread of the executor is free, and waiting for the helpers can never
+ * deadlock the pool.
+ */
+public class BatchRunner {
+    public interface Item {
+        /**
+         * Process item {@code index}. Must not throw, failures belong in the item's result.
+         */
+        void run(int index);
+    }
+
+    private final int mCount;
+    private final Item mItem;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private int mDone;
+
+    private BatchRunner(int count, Item item) {
+        mCount = count;
+        mItem = item;
+    }
+
+    /**
+     * Run items {@code 0 .. count - 1} on the calling thread and up to {@code parallelism - 1}
+     * helpers on {@code executor}, returning once all are done.
+     */
+    public static void run(Executor executor, int count, int parallelism, Item item) {
+        final BatchRunner batch = new BatchRunner(count, item);
+        int helpers = Math.min(parallelism, count) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        batch.work();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The calling thread does it alone.
+                break;
+            }
+        }
+        batch.work();
+        batch.await();
+    }
+
+    private void work() {
+        int index;
+        while ((index = mNext.getAndIncrement()) < mCount) {
+            try {
+                mItem.run(index);
+            } finally {
+                synchronized (this) {
+                    if (++mDone == mCount) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void await() {
+        boolean interrupted = false;
+        // Only items a helper is running are left, they finish without needing this thread.
+        while (mDone < mCount) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle based, chunk by chunk transfer of large documents across the js bridge, so the native
+ * side never holds more than one chunk of a document that is not already in memory.
+ * <p>
+ * A chunk is {@code chunkSize} chars, one more if it would otherwise end between the two halves
+ * of a surrogate pair, since a lone surrogate does not survive the bridge. Chunk boundaries only
+ * depend on the content, so chunks can be read in any order; going backwards re-reads from the start.
+ */
+public class ChunkedTransfer {
+    private static final String TAG = "ChunkedTransfer";
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    // Larger chunks are clamped, the buffer of every read handle is allocated up front.
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int INVALID_HANDLE = -1;
+    // Handles js forgot to close must not pile up forever.
+    private static final int MAX_HANDLES = 64;
+
+    /**
+     * Where the content of a read handle comes from. {@link #open()} restarts from the beginning.
+     */
+    public interface Source extends Closeable {
+        Reader open() throws IOException;
+    }
+
+    public interface Committer {
+        /**
+         * Take over a completely written and synced upload.
+         */
+        ErrorCode commit(String name, File file);
+    }
+
+    private abstract static class Handle implements Closeable {
+    }
+
+    private static class ReadHandle extends Handle {
+        final Source source;
+        final char[] buffer;
+        Reader reader;
+        int nextIndex;
+        boolean eof;
+
+        ReadHandle(Source source, int chunkSize) {
+            this.source = source;
+            this.buffer = new char[chunkSize + 1];
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    private static class WriteHandle extends Handle {
+        final String name;
+        final File file;
+        final FileOutputStream output;
+        final Writer writer;
+
+        WriteHandle(String name, File file) throws IOException {
+            this.name = name;
+            this.file = file;
+            this.output = new FileOutputStream(file);
+            this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private final File mTempDir;
+    private final Map<Integer, Handle> mHandles = new ConcurrentHashMap<Integer, Handle>();
+    private final AtomicInteger mNextHandle = new AtomicInteger(1);
+
+    /**
+     * @param tempDir where uploads are staged, on the same file system as their destination
+     */
+    public ChunkedTransfer(File tempDir) {
+        mTempDir = tempDir;
+    }
+
+    public static Source fromString(final String data) {
+        return new Source() {
+            @Override
+            public Reader open() {
+                return new StringReader(data);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * A source reading the file as it is now, even if it is replaced while the handle is open.
+     */
+    public static Source fromFile(File file) throws IOException {
+        return fromFile(file, false, null);
+    }
+
+    /**
+     * Like {@link #fromFile(File)}, for a stored note: decompressed and, if needed, decrypted.
+     *
+     * @param cipher decrypts the file if it is encrypted, may be null if it is not
+     */
+    public static Source fromNoteFile(File file, SegmentedCipher cipher) throws IOException {
+        return fromFile(file, true, cipher);
+    }
+
+    private static Source fromFile(File file, final boolean note, final SegmentedCipher cipher) throws IOException {
+        final FileInputStream input = new FileInputStream(file);
+        final boolean encrypted = cipher != null && SegmentedCipher.isEncrypted(file);
+        return new Source() {
+            @Override
+            public Reader open() throws IOException {
+                InputStream stream;
+                if (encrypted) {
+                    stream = cipher.decrypt(input.getChannel(), 0, null);
+                } else {
+                    input.getChannel().position(0);
+                    stream = input;
+                }
+                if (note) {
+                    stream = NoteCodec.decode(stream);
+                }
+                return new InputStreamReader(stream, StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+    }
+
+    /**
+     * @param chunkSize chars per chunk, {@link #DEFAULT_CHUNK_SIZE} if not positive and at most
+     *                  {@link #MAX_CHUNK_SIZE}
+     */
+    public int openRead(Source source, int chunkSize) {
+        if (chunkSize <= 0) {
+            chunkSize = DEFAULT_CHUNK_SIZE;
+        } else if (chunkSize > MAX_CHUNK_SIZE) {
+            chunkSize = MAX_CHUNK_SIZE;
+        }
+        return register(new ReadHandle(source, chunkSize));
+    }
+
+    /**
+     * @return chunk {@code index}, or ok(null) past the end.
+     */
+    public Result<String> readChunk(int handle, int index) {
+        Handle h = mHandles.get(handle);
+        if (!(h instanceof ReadHandle) || index < 0) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+
+        ReadHandle read = (ReadHandle) h;
+        synchronized (read) {
+            try {
+                if (read.reader == null || index < read.nextIndex) {
+                    read.reader = read.source.open();
+                    read.nextIndex = 0;
+                    read.eof = false;
+                }
+                int length = 0;
+                while (read.nextIndex <= index) {
+                    if (read.eof) {
+                        return Result.ok(null);
+                    }
+                    length = nextChunk(read);
+                    read.nextIndex++;
+                }
+                return Result.ok(length > 0 ? new String(read.buffer, 0, length) : null);
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                return Result.error(ErrorCode.UNKNOWN);
+            }
+        }
+    }
+
+    private static int nextChunk(ReadHandle read) throws IOException {
+        int chunkSize = read.buffer.length - 1;
+        int length = fill(read.reader, read.buffer, 0, chunkSize);
+        if (length < chunkSize) {
+            read.eof = true;
+        } else if (Character.isHighSurrogate(read.buffer[length - 1])) {
+            int low = read.reader.read();
+            if (low != -1) {
+                read.buffer[length++] = (char) low;
+            } else {
+                read.eof = true;
+            }
+        }
+        return length;
+    }
+
+    private static int fill(Reader reader, char[] buffer, int offset, int count) throws IOException {
+        int total = 0;
+        while (total < count) {
+            int n = reader.read(buffer, offset + total, count - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Start an upload that replaces {@code name} once committed.
+     */
+    public int openWrite(String name) {
+        if (name == null) {
+            return INVALID_HANDLE;
+        }
+        try {
+            File file = File.createTempFile("upload", ".tmp", mTempDir);
+            return register(new WriteHandle(name, file));
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return INVALID_HANDLE;
+        }
+    }
+
+    public ErrorCode writeChunk(int handle, String data) {
+        Handle h = mHandles.get(handle);
+        if (!(h instanceof WriteHandle) || data == null) {
+            return ErrorCode.INVALID_ARGS;
+        }
+
+        WriteHandle write = (WriteHandle) h;
+        synchronized (write) {
+            try {
+                write.writer.write(data);
+                return ErrorCode.NO_ERROR;
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                return ErrorCode.UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Finish an upload and hand it to {@code committer}. The handle is closed in any case.
+     */
+    public ErrorCode commit(int handle, Committer committer) {
+        Handle h = mHandles.remove(handle);
+        if (!(h instanceof WriteHandle)) {
+            if (h != null) {
+                closeQuietly(h);
+            }
+            return ErrorCode.INVALID_ARGS;
+        }
+
+        WriteHandle write = (WriteHandle) h;
+        synchronized (write) {
+            try {
+                write.writer.flush();
+                write.output.getFD().sync();
+                write.writer.close();
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                closeQuietly(write);
+                deleteQuietly(write.file);
+                return ErrorCode.UNKNOWN;
+            }
+        }
+
+        ErrorCode code = committer.commit(write.name, write.file);
+        // Gone if the committer took it over.
+        deleteQuietly(write.file);
+        return code;
+    }
+
+    /**
+     * Close a handle, abandoning the upload of a write handle.
+     */
+    public void close(int handle) {
+        Handle h = mHandles.remove(handle);
+        if (h != null) {
+            closeQuietly(h);
+            if (h instanceof WriteHandle) {
+                deleteQuietly(((WriteHandle) h).file);
+            }
+        }
+    }
+
+    public void closeAll() {
+        List<Integer> handles = new ArrayList<Integer>(mHandles.keySet());
+        for (int handle : handles) {
+            close(handle);
+        }
+    }
+
+    private int register(Handle handle) {
+        if (mHandles.size() >= MAX_HANDLES) {
+            AsyncLog.e(TAG, "Too many open handles");
+            closeQuietly(handle);
+            if (handle instanceof WriteHandle) {
+                deleteQuietly(((WriteHandle) handle).file);
+            }
+            return INVALID_HANDLE;
+        }
+        int id = mNextHandle.getAndIncrement();
+        mHandles.put(id, handle);
+        return id;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            AsyncLog.w(TAG, "Failed to delete " + file);
+        }
+    }
+}
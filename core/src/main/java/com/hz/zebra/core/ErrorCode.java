@@ -0,0 +1,10 @@
+package com.hz.zebra.core;
+
+public enum ErrorCode {
+    NO_ERROR,
+    UNKNOWN,
+    INVALID_ARGS,
+    FILE_NOT_FOUND,
+    CANCELLED,
+    NETWORK_ERROR
+}
@@ -0,0 +1,203 @@
+package com.hz.zebra.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs IO tasks on a pool as wide as the device has cores, highest priority first.
+ * <p>
+ * Tasks with the same key, usually a file name, run strictly one after another in submission
+ * order; tasks with different keys or no key run in parallel. A keyed task only competes for a
+ * thread once every earlier task of its key has finished.
+ */
+public class IoScheduler implements Executor {
+    private static final String TAG = "IoScheduler";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Priority {
+        // Reads somebody is waiting for.
+        INTERACTIVE,
+        // Writes of user data.
+        WRITE,
+        // Compaction, indexing, export and everything else.
+        BACKGROUND
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        final Priority priority;
+        final String key;
+        final Runnable runnable;
+        final long sequence;
+        long submitTime;
+
+        Task(Priority priority, String key, Runnable runnable) {
+            this.priority = priority;
+            this.key = key;
+            this.runnable = runnable;
+            this.sequence = mSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            int p = priority.ordinal();
+            long wait = System.nanoTime() - submitTime;
+            mQueued.decrementAndGet(p);
+            mWaitTotal.addAndGet(p, wait);
+            mStarted.incrementAndGet(p);
+            long max;
+            while (wait > (max = mWaitMax.get(p)) && !mWaitMax.compareAndSet(p, max, wait)) {
+                // Retry until we are not the max or have set it.
+            }
+
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                AsyncLog.e(TAG, "Task failed", e);
+            } finally {
+                if (key != null) {
+                    onKeyedTaskDone(key);
+                }
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor mPool;
+    private final AtomicLong mSequence = new AtomicLong();
+    // Tasks waiting for an earlier task of their key. A key is present while one of its tasks runs.
+    private final Map<String, Queue<Task>> mKeys = new HashMap<String, Queue<Task>>();
+
+    // Per priority statistics.
+    private final AtomicLongArray mQueued = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray mStarted = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray mWaitTotal = new AtomicLongArray(Priority.values().length);
+    private final AtomicLongArray mWaitMax = new AtomicLongArray(Priority.values().length);
+
+    public IoScheduler() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public IoScheduler(int threads) {
+        mPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "zebra-io-" + mCount.getAndIncrement());
+            }
+        });
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run an unkeyed background task.
+     */
+    @Override
+    public void execute(Runnable runnable) {
+        submit(Priority.BACKGROUND, null, runnable);
+    }
+
+    /**
+     * @param key tasks with the same key run in submission order, null for no ordering
+     * @throws RejectedExecutionException after {@link #shutdown()}
+     */
+    public void submit(Priority priority, String key, Runnable runnable) {
+        if (mPool.isShutdown()) {
+            throw new RejectedExecutionException("IoScheduler is shut down");
+        }
+
+        Task task = new Task(priority, key, runnable);
+        task.submitTime = System.nanoTime();
+        mQueued.incrementAndGet(priority.ordinal());
+        if (key != null) {
+            synchronized (mKeys) {
+                Queue<Task> waiting = mKeys.get(key);
+                if (waiting != null) {
+                    waiting.add(task);
+                    return;
+                }
+                mKeys.put(key, new ArrayDeque<Task>());
+            }
+        }
+        try {
+            mPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            mQueued.decrementAndGet(priority.ordinal());
+            if (key != null) {
+                onKeyedTaskDone(key);
+            }
+            throw e;
+        }
+    }
+
+    private void onKeyedTaskDone(String key) {
+        Task next;
+        synchronized (mKeys) {
+            Queue<Task> waiting = mKeys.get(key);
+            next = waiting.poll();
+            if (next == null) {
+                mKeys.remove(key);
+                return;
+            }
+        }
+        try {
+            mPool.execute(next);
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile, still finish what was accepted.
+            next.run();
+        }
+    }
+
+    /**
+     * Accept no new tasks, those already submitted still run.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return mPool.isShutdown();
+    }
+
+    /**
+     * @return tasks submitted but not started yet, including those waiting for their key.
+     */
+    public long getQueueDepth(Priority priority) {
+        return mQueued.get(priority.ordinal());
+    }
+
+    /**
+     * @return average time from submission to start, in nanoseconds.
+     */
+    public long getAverageWait(Priority priority) {
+        long started = mStarted.get(priority.ordinal());
+        return started > 0 ? mWaitTotal.get(priority.ordinal()) / started : 0;
+    }
+
+    public long getMaxWait(Priority priority) {
+        return mWaitMax.get(priority.ordinal());
+    }
+
+    public long getStartedCount(Priority priority) {
+        return mStarted.get(priority.ordinal());
+    }
+}
@@ -0,0 +1,24 @@
+package com.hz.zebra.core;
+
+import java.util.Map;
+
+public class JsSettingsUtils {
+    public static String generate(Map<String, String> map) {
+        String before = "zebra-settings {";
+        String after = "}";
+        String insert = ":";
+        String separator = ";";
+
+        StringBuilder content = new StringBuilder();
+        content.append(before);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            content.append(entry.getKey());
+            content.append(insert);
+            content.append(entry.getValue());
+            content.append(separator);
+        }
+        content.append(after);
+
+        return content.toString();
+    }
+}
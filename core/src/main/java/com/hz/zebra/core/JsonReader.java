@@ -0,0 +1,388 @@
+package com.hz.zebra.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads JSON text token by token, without building a tree of objects, e.g. for batch requests
+ * with the content of many notes where only a few fields are needed.
+ * <p>
+ * The caller walks the document with {@link #beginArray()}, {@link #hasNext()},
+ * {@link #nextName()} and the like, and skips what it does not need with {@link #skipValue()}.
+ * Malformed text or a token other than the one asked for throws {@link IOException}.
+ */
+public class JsonReader {
+    public enum Token {
+        BEGIN_ARRAY,
+        END_ARRAY,
+        BEGIN_OBJECT,
+        END_OBJECT,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    private final String mIn;
+    private int mPos;
+    // Whether the innermost open container is an object, and whether it had an element yet.
+    private boolean[] mObject = new boolean[8];
+    private boolean[] mStarted = new boolean[8];
+    private int mDepth;
+    private boolean mExpectName;
+    private boolean mDone;
+    // For strings with escapes, reused so a batch of notes grows it only a few times.
+    private StringBuilder mBuffer;
+
+    public JsonReader(String in) {
+        mIn = in;
+    }
+
+    public Token peek() throws IOException {
+        int c = peekChar();
+        if (mDepth == 0 && mDone) {
+            if (c != -1) {
+                throw error("Trailing data");
+            }
+            return Token.END_DOCUMENT;
+        }
+        if (c == ']' || c == '}') {
+            return c == ']' ? Token.END_ARRAY : Token.END_OBJECT;
+        }
+        if (mDepth > 0 && mStarted[mDepth - 1] && !mExpectName) {
+            // Between elements, only a comma after a complete value.
+            if (c != ',') {
+                throw error("Expected ',' or end of container");
+            }
+            mPos++;
+            mStarted[mDepth - 1] = false;
+            if (mObject[mDepth - 1]) {
+                mExpectName = true;
+            }
+            c = peekChar();
+        }
+        if (mExpectName) {
+            if (c != '"') {
+                throw error("Expected a name");
+            }
+            return Token.NAME;
+        }
+        switch (c) {
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            case -1:
+                throw error("Unexpected end of input");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw error("Unexpected character");
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        mPos++;
+        push(false);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        mPos++;
+        pop();
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        mPos++;
+        push(true);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        mPos++;
+        pop();
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        String name = readString();
+        if (peekChar() != ':') {
+            throw error("Expected ':'");
+        }
+        mPos++;
+        mExpectName = false;
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        expect(Token.STRING);
+        String value = readString();
+        afterValue();
+        return value;
+    }
+
+    /**
+     * @return the string, or null for a JSON null.
+     */
+    public String nextStringOrNull() throws IOException {
+        if (peek() == Token.NULL) {
+            nextNull();
+            return null;
+        }
+        return nextString();
+    }
+
+    public long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        int start = mPos;
+        String number = readNumber();
+        try {
+            long value = Long.parseLong(number);
+            afterValue();
+            return value;
+        } catch (NumberFormatException e) {
+            double value = Double.parseDouble(number);
+            if (value != (long) value) {
+                mPos = start;
+                throw error("Not an integer: " + number);
+            }
+            afterValue();
+            return (long) value;
+        }
+    }
+
+    public int nextInt() throws IOException {
+        int start = mPos;
+        long value = nextLong();
+        if (value != (int) value) {
+            mPos = start;
+            throw error("Not an int: " + value);
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() throws IOException {
+        expect(Token.NUMBER);
+        double value = Double.parseDouble(readNumber());
+        afterValue();
+        return value;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        boolean value = mIn.startsWith("true", mPos);
+        literal(value ? "true" : "false");
+        afterValue();
+        return value;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        literal("null");
+        afterValue();
+    }
+
+    /**
+     * Skip the next value, with everything nested in it.
+     */
+    public void skipValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case STRING:
+                nextString();
+                break;
+            case NUMBER:
+                nextDouble();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw error("No value to skip");
+        }
+    }
+
+    private void expect(Token token) throws IOException {
+        Token next = peek();
+        if (next != token) {
+            throw error("Expected " + token + " but was " + next);
+        }
+    }
+
+    private void push(boolean object) {
+        if (mDepth == mObject.length) {
+            mObject = Arrays.copyOf(mObject, mDepth * 2);
+            mStarted = Arrays.copyOf(mStarted, mDepth * 2);
+        }
+        mObject[mDepth] = object;
+        mStarted[mDepth] = false;
+        mDepth++;
+        mExpectName = object;
+    }
+
+    private void pop() {
+        mDepth--;
+        mExpectName = false;
+        afterValue();
+    }
+
+    private void afterValue() {
+        if (mDepth == 0) {
+            mDone = true;
+        } else {
+            mStarted[mDepth - 1] = true;
+        }
+    }
+
+    /**
+     * @return the next char that is not white space, or -1 at the end, without consuming it.
+     */
+    private int peekChar() {
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            mPos++;
+        }
+        return -1;
+    }
+
+    private void literal(String literal) throws IOException {
+        if (!mIn.startsWith(literal, mPos)) {
+            throw error("Expected " + literal);
+        }
+        mPos += literal.length();
+    }
+
+    private String readNumber() throws IOException {
+        int start = mPos;
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                mPos++;
+            } else {
+                break;
+            }
+        }
+        String number = mIn.substring(start, mPos);
+        try {
+            Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            mPos = start;
+            throw error("Malformed number");
+        }
+        return number;
+    }
+
+    private String readString() throws IOException {
+        // At the opening quote.
+        int start = ++mPos;
+        StringBuilder sb = null;
+        while (mPos < mIn.length()) {
+            char c = mIn.charAt(mPos);
+            if (c == '"') {
+                String value = sb == null ? mIn.substring(start, mPos) : sb.append(mIn, start, mPos).toString();
+                mPos++;
+                return value;
+            }
+            if (c < 0x20) {
+                throw error("Unescaped control character");
+            }
+            if (c != '\\') {
+                mPos++;
+                continue;
+            }
+            if (sb == null) {
+                if (mBuffer == null) {
+                    mBuffer = new StringBuilder(256);
+                }
+                sb = mBuffer;
+                sb.setLength(0);
+            }
+            sb.append(mIn, start, mPos);
+            if (++mPos >= mIn.length()) {
+                break;
+            }
+            char escaped = mIn.charAt(mPos++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(escaped);
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (mPos + 4 > mIn.length()) {
+                        throw error("Unterminated escape");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(mIn.charAt(mPos++), 16);
+                        if (digit < 0) {
+                            throw error("Malformed escape");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    sb.append((char) code);
+                    break;
+                default:
+                    throw error("Malformed escape");
+            }
+            start = mPos;
+        }
+        throw error("Unterminated string");
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at " + mPos);
+    }
+}
@@ -0,0 +1,298 @@
+package com.hz.zebra.core;
+
+import java.util.Arrays;
+
+/**
+ * Writes JSON text straight into a {@link StringBuilder}, without building a tree of objects first.
+ * <p>
+ * Writers come from {@link #obtain()} and their builder goes back to a per thread pool with
+ * {@link #finish()}, so a response of any size costs one builder per thread and the final string.
+ * Strings are escaped for JSON and for being pasted into javascript source: U+2028 and U+2029,
+ * line terminators in javascript but not in JSON, are escaped too.
+ * <p>
+ * Misuse, e.g. a value where a name is expected or finishing with open containers, throws
+ * {@link IllegalStateException}.
+ */
+public class JsonWriter {
+    // Builders that grew past this are left to the garbage collector instead of pooled.
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+    private static final ThreadLocal<StringBuilder> sPool = new ThreadLocal<StringBuilder>();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Valid in JSON strings but line terminators in javascript.
+    private static final char LINE_SEPARATOR = 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+    // What the innermost open container expects next.
+    private static final int EMPTY_ARRAY = 1;
+    private static final int ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int OBJECT = 4;
+    private static final int NAME = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int DOCUMENT = 7;
+
+    private StringBuilder mOut;
+    private int[] mStack = new int[8];
+    private int mDepth;
+    private String mIndent;
+
+    private JsonWriter(StringBuilder out) {
+        mOut = out;
+        mStack[mDepth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * @return a writer into a pooled builder, give it back with {@link #finish()}
+     */
+    public static JsonWriter obtain() {
+        StringBuilder out = sPool.get();
+        if (out != null) {
+            // Taken until finish, a writer obtained meanwhile gets its own builder.
+            sPool.set(null);
+        } else {
+            out = new StringBuilder(256);
+        }
+        return new JsonWriter(out);
+    }
+
+    /**
+     * @return {@code value} as a JSON string literal, or "null".
+     */
+    public static String quote(String value) {
+        return obtain().value(value).finish();
+    }
+
+    /**
+     * Write each value on its own line, indented by {@code indent} per level, e.g. for files that
+     * are read by people.
+     */
+    public JsonWriter setIndent(String indent) {
+        mIndent = indent.isEmpty() ? null : indent;
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        push(EMPTY_ARRAY);
+        mOut.append('[');
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        return close(EMPTY_ARRAY, ARRAY, ']');
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        push(EMPTY_OBJECT);
+        mOut.append('{');
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        return close(EMPTY_OBJECT, OBJECT, '}');
+    }
+
+    public JsonWriter name(String name) {
+        int context = peek();
+        if (context != EMPTY_OBJECT && context != OBJECT) {
+            throw new IllegalStateException("Name outside of an object");
+        }
+        if (context == OBJECT) {
+            mOut.append(',');
+        }
+        newline();
+        mStack[mDepth - 1] = NAME;
+        string(name);
+        mOut.append(':');
+        if (mIndent != null) {
+            mOut.append(' ');
+        }
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        mOut.append(value);
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException for NaN and infinities, JSON has no literal for them
+     */
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Not a JSON number: " + value);
+        }
+        beforeValue();
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            mOut.append((long) value);
+        } else {
+            mOut.append(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        mOut.append(value);
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        mOut.append("null");
+        return this;
+    }
+
+    /**
+     * Write JSON produced elsewhere as the next value, as is.
+     */
+    public JsonWriter jsonValue(String json) {
+        beforeValue();
+        mOut.append(json);
+        return this;
+    }
+
+    public JsonWriter value(Iterable<String> values) {
+        beginArray();
+        for (String value : values) {
+            value(value);
+        }
+        return endArray();
+    }
+
+    public JsonWriter value(String[] values) {
+        return value(Arrays.asList(values));
+    }
+
+    /**
+     * @return the JSON text. The writer must not be used afterwards.
+     */
+    public String finish() {
+        if (mDepth != 1 || mStack[0] != DOCUMENT) {
+            throw new IllegalStateException("Incomplete document");
+        }
+        String json = mOut.toString();
+        if (mOut.capacity() <= MAX_POOLED_CAPACITY) {
+            mOut.setLength(0);
+            sPool.set(mOut);
+        }
+        mOut = null;
+        return json;
+    }
+
+    private void beforeValue() {
+        switch (peek()) {
+            case EMPTY_DOCUMENT:
+                mStack[mDepth - 1] = DOCUMENT;
+                break;
+            case EMPTY_ARRAY:
+                mStack[mDepth - 1] = ARRAY;
+                newline();
+                break;
+            case ARRAY:
+                mOut.append(',');
+                newline();
+                break;
+            case NAME:
+                mStack[mDepth - 1] = OBJECT;
+                break;
+            case DOCUMENT:
+                throw new IllegalStateException("Only one top level value");
+            default:
+                throw new IllegalStateException("Value without a name");
+        }
+    }
+
+    private JsonWriter close(int empty, int nonEmpty, char bracket) {
+        int context = peek();
+        if (context != empty && context != nonEmpty) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        mDepth--;
+        if (context == nonEmpty) {
+            newline();
+        }
+        mOut.append(bracket);
+        return this;
+    }
+
+    private int peek() {
+        if (mOut == null) {
+            throw new IllegalStateException("Writer is finished");
+        }
+        return mStack[mDepth - 1];
+    }
+
+    private void push(int context) {
+        if (mDepth == mStack.length) {
+            mStack = Arrays.copyOf(mStack, mDepth * 2);
+        }
+        mStack[mDepth++] = context;
+    }
+
+    private void newline() {
+        if (mIndent == null) {
+            return;
+        }
+        mOut.append('\n');
+        for (int i = 1; i < mDepth; i++) {
+            mOut.append(mIndent);
+        }
+    }
+
+    private void string(String value) {
+        StringBuilder out = mOut;
+        out.append('"');
+        int length = value.length();
+        // Copy runs that need no escaping in one go.
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != LINE_SEPARATOR && c != PARAGRAPH_SEPARATOR) {
+                continue;
+            }
+            out.append(value, last, i);
+            last = i + 1;
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf])
+                            .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+                    break;
+            }
+        }
+        out.append(value, last, length);
+        out.append('"');
+    }
+}
@@ -0,0 +1,498 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Backs up all notes into one zip and restores them from it.
+ * <p>
+ * Export compresses the notes on all cores and writes each one as soon as it and the ones before
+ * it are done, so the zip grows while the rest is still being compressed. Restore streams the zip
+ * into staging files and only hands them over once the whole archive checked out, so a broken or
+ * hostile archive changes no note.
+ */
+public class NoteArchive {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_DEFLATED = 8;
+    private static final long MAX_ZIP32 = 0xffffffffL;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    public static final long UNKNOWN_SIZE = -1;
+    // Restores refuse notes bigger than this, so a zip bomb can't fill the disk.
+    public static final long MAX_RESTORED_NOTE_SIZE = 256L * 1024 * 1024;
+    // All staged notes together, every note is staged before the first one is committed.
+    public static final long MAX_RESTORED_TOTAL_SIZE = 1024L * 1024 * 1024;
+
+    public interface Notes {
+        String[] list();
+
+        /**
+         * @return the complete, decoded note. Called from several threads at once.
+         */
+        InputStream open(String name) throws IOException;
+
+        long lastModified(String name);
+    }
+
+    public interface Restorer {
+        /**
+         * Take over a restored note, like {@link ChunkedTransfer.Committer}.
+         */
+        ErrorCode commit(String name, File file);
+    }
+
+    public interface Progress {
+        /**
+         * @param totalBytes or {@link #UNKNOWN_SIZE}
+         */
+        void onProgress(long bytes, long totalBytes);
+    }
+
+    private static class Entry {
+        byte[] name;
+        long time;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        byte[] data;
+    }
+
+    private final int mLevel;
+    private final int mThreads;
+
+    /**
+     * @param level a {@link Deflater} level
+     */
+    public NoteArchive(int level) {
+        mLevel = level;
+        mThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Write every note into {@code output} as a zip. At most two compressed notes per thread wait
+     * in memory to be written.
+     *
+     * @param progress called with the bytes written so far
+     * @return the number of notes written
+     */
+    public int export(final Notes notes, OutputStream output, Progress progress) throws IOException {
+        String[] names = notes.list();
+        if (names == null) {
+            names = new String[0];
+        }
+        if (names.length > MAX_ENTRIES) {
+            throw new IOException("Too many notes for a zip: " + names.length);
+        }
+
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+        List<Entry> written = new ArrayList<Entry>(names.length);
+        ExecutorService workers = Executors.newFixedThreadPool(mThreads);
+        Queue<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+        try {
+            int next = 0;
+            while (next < names.length || !pending.isEmpty()) {
+                while (next < names.length && pending.size() < 2 * mThreads) {
+                    final String name = names[next++];
+                    pending.add(workers.submit(new Callable<Entry>() {
+                        @Override
+                        public Entry call() throws IOException {
+                            return compress(notes, name);
+                        }
+                    }));
+                }
+                Entry entry = await(pending.remove());
+                writeLocal(counter, entry);
+                entry.data = null;
+                written.add(entry);
+                progress.onProgress(counter.count, UNKNOWN_SIZE);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        long centralOffset = counter.count;
+        for (Entry entry : written) {
+            writeCentral(counter, entry);
+        }
+        writeEnd(counter, written.size(), counter.count - centralOffset, centralOffset);
+        counter.flush();
+        progress.onProgress(counter.count, counter.count);
+        return written.size();
+    }
+
+    private Entry compress(Notes notes, String name) throws IOException {
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.time = notes.lastModified(name);
+
+        CRC32 crc = new CRC32();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // Zip entries are raw deflate, without the zlib wrapper.
+        Deflater deflater = new Deflater(mLevel, true);
+        try (InputStream input = new CheckedInputStream(notes.open(name), crc)) {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                deflated.write(buffer, 0, n);
+                entry.size += n;
+            }
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        entry.crc = crc.getValue();
+        entry.data = bytes.toByteArray();
+        entry.compressedSize = entry.data.length;
+        if (entry.size > MAX_ZIP32 || entry.compressedSize > MAX_ZIP32) {
+            throw new IOException(name + " is too large for a zip");
+        }
+        return entry;
+    }
+
+    private static Entry await(Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void writeLocal(CountingOutputStream output, Entry entry) throws IOException {
+        entry.offset = output.count;
+        if (entry.offset > MAX_ZIP32) {
+            throw new IOException("Archive too large for a zip without zip64");
+        }
+        ByteBuffer header = littleEndian(30);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) VERSION);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) METHOD_DEFLATED);
+        header.putInt(dosTime(entry.time));
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) 0);
+        output.write(header.array());
+        output.write(entry.name);
+        output.write(entry.data);
+    }
+
+    private static void writeCentral(OutputStream output, Entry entry) throws IOException {
+        ByteBuffer header = littleEndian(46);
+        header.putInt(CENTRAL_HEADER);
+        header.putShort((short) VERSION);
+        header.putShort((short) VERSION);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) METHOD_DEFLATED);
+        header.putInt(dosTime(entry.time));
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+        // Extra field, comment, disk, internal and external attributes are all empty.
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt((int) entry.offset);
+        output.write(header.array());
+        output.write(entry.name);
+    }
+
+    private static void writeEnd(OutputStream output, int entries, long centralSize, long centralOffset)
+            throws IOException {
+        if (centralOffset + centralSize > MAX_ZIP32) {
+            throw new IOException("Archive too large for a zip without zip64");
+        }
+        ByteBuffer end = littleEndian(22);
+        end.putInt(END_OF_CENTRAL_DIRECTORY);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) entries);
+        end.putShort((short) entries);
+        end.putInt((int) centralSize);
+        end.putInt((int) centralOffset);
+        end.putShort((short) 0);
+        output.write(end.array());
+    }
+
+    private static ByteBuffer littleEndian(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int dosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time > 0 ? time : System.currentTimeMillis());
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01, the earliest DOS date.
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Read a zip written by {@link #export} and restore its notes, overwriting notes of the same
+     * name. Every entry is streamed into {@code stagingDir}, checked against its CRC, the size limits
+     * and UTF-8, and nothing is committed before the last entry passed.
+     *
+     * @param totalBytes size of {@code input} for progress, or {@link #UNKNOWN_SIZE}
+     * @param progress   called with the archive bytes read so far
+     * @return the number of notes restored
+     * @throws IOException if the archive is invalid, nothing was restored then, or if committing a
+     *                     note failed, the notes before it are restored then
+     */
+    public static int restore(InputStream input, long totalBytes, File stagingDir, Restorer restorer,
+                              Progress progress) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+        Map<String, File> staged = new LinkedHashMap<String, File>();
+        long totalSize = 0;
+        try {
+            try (ZipInputStream zip = new ZipInputStream(counter, StandardCharsets.UTF_8)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    String name = entry.getName();
+                    if (!isValidName(name)) {
+                        throw new IOException("Invalid note name in archive: " + name);
+                    }
+                    if (staged.containsKey(name)) {
+                        throw new IOException("Duplicate note in archive: " + name);
+                    }
+                    if (staged.size() >= MAX_ENTRIES) {
+                        throw new IOException("Too many notes in archive");
+                    }
+
+                    File file = File.createTempFile("restore", null, stagingDir);
+                    staged.put(name, file);
+                    Utf8Validator validator = new Utf8Validator();
+                    long size = 0;
+                    long lastReport = 0;
+                    try (FileOutputStream output = new FileOutputStream(file)) {
+                        int n;
+                        // ZipInputStream checks the CRC once the entry is read to its end.
+                        while ((n = zip.read(buffer)) != -1) {
+                            size += n;
+                            totalSize += n;
+                            if (size > MAX_RESTORED_NOTE_SIZE) {
+                                throw new IOException(name + " exceeds " + MAX_RESTORED_NOTE_SIZE + " bytes");
+                            }
+                            if (totalSize > MAX_RESTORED_TOTAL_SIZE) {
+                                throw new IOException("Archive exceeds " + MAX_RESTORED_TOTAL_SIZE + " bytes");
+                            }
+                            validator.update(buffer, n);
+                            output.write(buffer, 0, n);
+                            long now = System.currentTimeMillis();
+                            if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                                lastReport = now;
+                                progress.onProgress(counter.count, totalBytes);
+                            }
+                        }
+                        output.getFD().sync();
+                    }
+                    validator.finish();
+                }
+            }
+        } catch (IOException e) {
+            for (File file : staged.values()) {
+                file.delete();
+            }
+            throw e;
+        } catch (IllegalArgumentException e) {
+            // Thrown by ZipInputStream for entry names that are not UTF-8.
+            for (File file : staged.values()) {
+                file.delete();
+            }
+            throw new IOException(e);
+        }
+
+        int restored = 0;
+        IOException failure = null;
+        for (Map.Entry<String, File> entry : staged.entrySet()) {
+            if (failure == null) {
+                ErrorCode code = restorer.commit(entry.getKey(), entry.getValue());
+                if (code == ErrorCode.NO_ERROR) {
+                    restored++;
+                } else {
+                    failure = new IOException("Failed to restore " + entry.getKey() + ": " + code);
+                }
+            }
+            // Committers take the file over on success, this only removes what is left.
+            entry.getValue().delete();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        progress.onProgress(counter.count, counter.count);
+        return restored;
+    }
+
+    /**
+     * @return whether {@code name} is a plain file name, which is all notes can be.
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH
+                || name.equals(".") || name.equals("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || c == ':' || c < 0x20) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that bytes fed in chunks are UTF-8, without keeping them.
+     */
+    private static class Utf8Validator {
+        private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // Room for a chunk plus the incomplete sequence left over from the one before.
+        private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE + 4);
+        private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+
+        void update(byte[] data, int length) throws IOException {
+            mBytes.put(data, 0, length);
+            mBytes.flip();
+            decode(false);
+            mBytes.compact();
+        }
+
+        void finish() throws IOException {
+            mBytes.flip();
+            decode(true);
+            mChars.clear();
+            if (mDecoder.flush(mChars).isError()) {
+                throw new IOException("Note is not UTF-8");
+            }
+        }
+
+        private void decode(boolean last) throws IOException {
+            while (true) {
+                mChars.clear();
+                CoderResult result = mDecoder.decode(mBytes, mChars, last);
+                if (result.isError()) {
+                    throw new IOException("Note is not UTF-8");
+                }
+                if (result.isUnderflow()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
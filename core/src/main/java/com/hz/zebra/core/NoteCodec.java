@@ -0,0 +1,209 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Chooses how note bytes are stored: as they are, or compressed behind a header naming the codec.
+ * <p>
+ * Header layout: magic, codec id, level, two reserved bytes, original length. Files without the
+ * header are plain, which is how every note was stored before, so they keep loading. The magic
+ * starts with a NUL byte, which no text note starts with.
+ */
+public class NoteCodec {
+    private static final int MAGIC = 0x005a4344; // "\0ZCD"
+    private static final int HEADER_SIZE = 16;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final long UNKNOWN_LENGTH = -1;
+
+    public interface Codec {
+        /**
+         * @return the id stored in the header, never {@link #NONE}.
+         */
+        int id();
+
+        /**
+         * @return a stream compressing into {@code output}, closing it finishes and closes output.
+         */
+        OutputStream encode(OutputStream output, int level) throws IOException;
+
+        InputStream decode(InputStream input) throws IOException;
+    }
+
+    private static final Map<Integer, Codec> sCodecs = new HashMap<Integer, Codec>();
+
+    static {
+        register(new Codec() {
+            @Override
+            public int id() {
+                return DEFLATE;
+            }
+
+            @Override
+            public OutputStream encode(OutputStream output, int level) {
+                final Deflater deflater = new Deflater(level);
+                return new DeflaterOutputStream(output, deflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            // Frees the native memory now, not whenever the GC runs.
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decode(InputStream input) {
+                return new InflaterInputStream(input);
+            }
+        });
+    }
+
+    public static void register(Codec codec) {
+        synchronized (sCodecs) {
+            sCodecs.put(codec.id(), codec);
+        }
+    }
+
+    private static Codec get(int id) throws IOException {
+        synchronized (sCodecs) {
+            Codec codec = sCodecs.get(id);
+            if (codec == null) {
+                throw new IOException("Unknown codec " + id);
+            }
+            return codec;
+        }
+    }
+
+    private final int mCodec;
+    private final int mLevel;
+    private final long mThreshold;
+
+    /**
+     * @param codec     codec for files of at least {@code threshold} bytes, or {@link #NONE}
+     * @param level     codec specific, e.g. a {@link Deflater} level
+     * @param threshold smaller files are stored as they are, compressing them is not worth it
+     */
+    public NoteCodec(int codec, int level, long threshold) {
+        mCodec = codec;
+        mLevel = level;
+        mThreshold = threshold;
+    }
+
+    /**
+     * @return whether {@link #encode(OutputStream, long)} compresses data of this length.
+     */
+    public boolean compresses(long length) {
+        return mCodec != NONE && length >= mThreshold;
+    }
+
+    /**
+     * Stream data into {@code output} the way this codec stores it. Closing the returned stream
+     * closes {@code output}.
+     *
+     * @param length how many bytes will be written, recorded so reads can size their buffers
+     */
+    public OutputStream encode(OutputStream output, long length) throws IOException {
+        if (!compresses(length)) {
+            return output;
+        }
+        Codec codec = get(mCodec);
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(MAGIC);
+        header.writeByte(codec.id());
+        header.writeByte(mLevel);
+        header.writeShort(0);
+        header.writeLong(length);
+        return codec.encode(output, mLevel);
+    }
+
+    /**
+     * Decode a stream written by any codec, or a plain one.
+     *
+     * @return the decoded stream, see {@link #getLength(InputStream)}.
+     */
+    public static InputStream decode(InputStream input) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+        buffered.mark(HEADER_SIZE);
+        byte[] head = new byte[HEADER_SIZE];
+        int read = 0;
+        int n;
+        while (read < HEADER_SIZE && (n = buffered.read(head, read, HEADER_SIZE - read)) != -1) {
+            read += n;
+        }
+        ByteBuffer header = ByteBuffer.wrap(head);
+        if (read < HEADER_SIZE || header.getInt() != MAGIC) {
+            buffered.reset();
+            return buffered;
+        }
+
+        Codec codec = get(header.get() & 0xff);
+        header.position(8);
+        return new DecodedInputStream(codec.decode(buffered), header.getLong());
+    }
+
+    /**
+     * @return the decoded length if {@code decoded} came from {@link #decode(InputStream)} and the
+     * writer knew it, otherwise {@link #UNKNOWN_LENGTH}.
+     */
+    public static long getLength(InputStream decoded) {
+        return decoded instanceof DecodedInputStream ? ((DecodedInputStream) decoded).length : UNKNOWN_LENGTH;
+    }
+
+    /**
+     * @return whether {@code decoded} came from {@link #decode(InputStream)} and was not plain.
+     */
+    public static boolean isEncoded(InputStream decoded) {
+        return decoded instanceof DecodedInputStream;
+    }
+
+    /**
+     * @return how many bytes the UTF-8 encoding of {@code text} takes, without encoding it.
+     */
+    public static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate is encoded as '?'.
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static class DecodedInputStream extends FilterInputStream {
+        final long length;
+
+        DecodedInputStream(InputStream input, long length) {
+            super(input);
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,666 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps earlier versions of every note, without a full copy per version.
+ * <p>
+ * Each version is cut into content-defined chunks: a rolling hash over the last bytes decides where
+ * chunks end, so an edit only changes the chunks around it and the others are found again. Chunks
+ * are stored once by their SHA-256, deflated, shared by all notes. A note's history file lists the
+ * chunks it uses, each once, and its versions as runs of indices into that list, so a version
+ * that only changed a few chunks is a record of a few bytes.
+ * <p>
+ * History file layout: records of {@code [length][payload][CRC32 of payload]}, a torn record at the
+ * end is dropped. Versions closer together than the amend interval replace each other, so a
+ * note being typed into keeps one version per interval, the newest always included.
+ * <p>
+ * While {@link #setEncrypted(boolean)} is on, chunks are deflated and then encrypted like the notes.
+ * Their file names and the history files stay as they are: they hold digests, sizes and times but
+ * no text.
+ */
+public class NoteHistory {
+    private static final String TAG = "NoteHistory";
+    private static final String HISTORY_SUFFIX = ".hist";
+    private static final int RECORD_CHUNK = 1;
+    private static final int RECORD_VERSION = 2;
+    private static final int DIGEST_SIZE = 32;
+    // Chunks are 1 to 8 KB, 2 KB plus the minimum on average: smaller ones cost less per edit
+    // but more files and table entries per version.
+    static final int MIN_CHUNK = 1024;
+    static final int MAX_CHUNK = 8 * 1024;
+    private static final long BOUNDARY_MASK = 0xffe0000000000000L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed, chunk boundaries must be the same in every run.
+        Random random = new Random(0x5a45425241L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public static class Version {
+        public final int id;
+        public final long time;
+        // UTF-8 bytes
+        public final long size;
+        final byte[] hash;
+        // [start, count] runs of chunk indices
+        final int[] runs;
+
+        Version(int id, long time, long size, byte[] hash, int[] runs) {
+            this.id = id;
+            this.time = time;
+            this.size = size;
+            this.hash = hash;
+            this.runs = runs;
+        }
+    }
+
+    /**
+     * The parsed history file of one note.
+     */
+    private static class History {
+        final List<byte[]> chunks = new ArrayList<byte[]>();
+        final Map<String, Integer> indices = new HashMap<String, Integer>();
+        final List<Version> versions = new ArrayList<Version>();
+
+        void addChunk(byte[] digest) {
+            indices.put(toHex(digest), chunks.size());
+            chunks.add(digest);
+        }
+
+        void addVersion(Version version, boolean amend) {
+            if (amend && !versions.isEmpty()) {
+                versions.set(versions.size() - 1, version);
+            } else {
+                versions.add(version);
+            }
+        }
+
+        Version last() {
+            return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        }
+    }
+
+    private final File mDir;
+    private final File mChunkDir;
+    private final File mTempDir;
+    private final long mAmendIntervalMs;
+    private final SegmentedCipher mCipher;
+    private boolean mEncrypted;
+    private final Map<String, History> mHistories = new HashMap<String, History>();
+
+    /**
+     * @param dir             where histories and chunks live
+     * @param tempDir         temp dir on the same file system
+     * @param amendIntervalMs a version this soon after the last one replaces it
+     * @param cipher          encrypts and decrypts chunks
+     */
+    public NoteHistory(File dir, File tempDir, long amendIntervalMs, SegmentedCipher cipher) {
+        mDir = dir;
+        mChunkDir = new File(dir, "chunks");
+        mTempDir = tempDir;
+        mAmendIntervalMs = amendIntervalMs;
+        mCipher = cipher;
+    }
+
+    /**
+     * Encrypt chunks stored from now on. Existing ones are converted by {@link #recode()}.
+     */
+    public synchronized void setEncrypted(boolean encrypted) {
+        mEncrypted = encrypted;
+    }
+
+    /**
+     * Rewrite the chunks not stored the way {@link #setEncrypted(boolean)} asks for.
+     *
+     * @return how many chunks were rewritten
+     */
+    public synchronized int recode() {
+        int recoded = 0;
+        File[] dirs = mChunkDir.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+        for (File dir : dirs) {
+            File[] chunks = dir.listFiles();
+            if (chunks == null) {
+                continue;
+            }
+            for (File chunk : chunks) {
+                if (SegmentedCipher.isEncrypted(chunk) == mEncrypted) {
+                    continue;
+                }
+                try {
+                    ByteArrayOutputStream deflated = new ByteArrayOutputStream((int) chunk.length());
+                    try (InputStream input = openChunk(chunk)) {
+                        copy(input, deflated);
+                    }
+                    writeChunk(chunk, deflated);
+                    recoded++;
+                } catch (IOException e) {
+                    // Left as it is, the next call tries again.
+                    AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                }
+            }
+        }
+        return recoded;
+    }
+
+    /**
+     * Record the current content of a note as its newest version, unless it did not change.
+     */
+    public synchronized ErrorCode record(String name, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = digest(bytes, 0, bytes.length);
+        try {
+            History history = load(name);
+            Version last = history.last();
+            if (last != null && Arrays.equals(last.hash, hash)) {
+                return ErrorCode.NO_ERROR;
+            }
+
+            List<Integer> indices = new ArrayList<Integer>();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            int start = 0;
+            while (start < bytes.length) {
+                int end = findBoundary(bytes, start);
+                byte[] digest = digest(bytes, start, end - start);
+                Integer index = history.indices.get(toHex(digest));
+                if (index == null) {
+                    storeChunk(digest, bytes, start, end - start);
+                    index = history.chunks.size();
+                    history.addChunk(digest);
+                    writeRecord(records, chunkRecord(digest));
+                }
+                indices.add(index);
+                start = end;
+            }
+
+            long now = System.currentTimeMillis();
+            boolean amend = last != null && now - last.time < mAmendIntervalMs;
+            int id = last == null ? 1 : amend ? last.id : last.id + 1;
+            Version version = new Version(id, now, bytes.length, hash, toRuns(indices));
+            writeRecord(records, versionRecord(version, amend));
+            append(name, records.toByteArray());
+            history.addVersion(version, amend);
+            return ErrorCode.NO_ERROR;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            // Parts of it may be written, let the next call re-read the file.
+            mHistories.remove(name);
+            return ErrorCode.UNKNOWN;
+        }
+    }
+
+    /**
+     * Forget all versions of a note. Its chunks go with the next {@link #prune}.
+     */
+    public synchronized void remove(String name) {
+        mHistories.remove(name);
+        File file = getHistoryFile(name);
+        if (file.exists() && !file.delete()) {
+            AsyncLog.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    /**
+     * @return the notes with a history.
+     */
+    public synchronized List<String> listNotes() {
+        List<String> names = new ArrayList<String>();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(HISTORY_SUFFIX)) {
+                    names.add(fileName.substring(0, fileName.length() - HISTORY_SUFFIX.length()));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return versions of a note, newest first.
+     */
+    public synchronized List<Version> list(String name) {
+        try {
+            List<Version> versions = new ArrayList<Version>(load(name).versions);
+            Collections.reverse(versions);
+            return versions;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return new ArrayList<Version>();
+        }
+    }
+
+    public synchronized Result<String> load(String name, int id) {
+        try {
+            History history = load(name);
+            Version version = null;
+            for (Version candidate : history.versions) {
+                if (candidate.id == id) {
+                    version = candidate;
+                }
+            }
+            if (version == null) {
+                return Result.error(ErrorCode.FILE_NOT_FOUND);
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) version.size);
+            for (int i = 0; i < version.runs.length; i += 2) {
+                for (int index = version.runs[i]; index < version.runs[i] + version.runs[i + 1]; index++) {
+                    readChunk(history.chunks.get(index), output);
+                }
+            }
+            byte[] bytes = output.toByteArray();
+            if (!Arrays.equals(digest(bytes, 0, bytes.length), version.hash)) {
+                AsyncLog.e(TAG, "Version " + id + " of " + name + " is corrupt");
+                return Result.error(ErrorCode.UNKNOWN);
+            }
+            return Result.ok(new String(bytes, StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            return Result.error(ErrorCode.FILE_NOT_FOUND);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Drop versions past the retention of every note, then the chunks no version uses any more.
+     * The newest version of a note is always kept.
+     *
+     * @param keepVersions how many versions per note to keep at most
+     * @param keepMs       drop versions older than this
+     * @return how many versions were dropped
+     */
+    public synchronized int prune(int keepVersions, long keepMs) {
+        long cutoff = System.currentTimeMillis() - keepMs;
+        int dropped = 0;
+        Set<String> used = new HashSet<String>();
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.endsWith(HISTORY_SUFFIX)) {
+                continue;
+            }
+            String name = fileName.substring(0, fileName.length() - HISTORY_SUFFIX.length());
+            try {
+                History history = load(name);
+                List<Version> kept = new ArrayList<Version>();
+                int count = history.versions.size();
+                for (int i = 0; i < count; i++) {
+                    Version version = history.versions.get(i);
+                    boolean newest = i == count - 1;
+                    if (newest || (count - i <= keepVersions && version.time >= cutoff)) {
+                        kept.add(version);
+                    }
+                }
+                dropped += count - kept.size();
+                History rewritten = rewrite(name, history, kept);
+                for (byte[] digest : rewritten.chunks) {
+                    used.add(toHex(digest));
+                }
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                // Keep every chunk it may use.
+                return dropped;
+            }
+        }
+        sweep(used);
+        return dropped;
+    }
+
+    /**
+     * Write a history file holding only the given versions and the chunks they use.
+     */
+    private History rewrite(String name, History history, List<Version> versions) throws IOException {
+        History rewritten = new History();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Version version : versions) {
+            List<Integer> indices = new ArrayList<Integer>();
+            for (int i = 0; i < version.runs.length; i += 2) {
+                for (int index = version.runs[i]; index < version.runs[i] + version.runs[i + 1]; index++) {
+                    byte[] digest = history.chunks.get(index);
+                    Integer mapped = rewritten.indices.get(toHex(digest));
+                    if (mapped == null) {
+                        mapped = rewritten.chunks.size();
+                        rewritten.addChunk(digest);
+                        writeRecord(records, chunkRecord(digest));
+                    }
+                    indices.add(mapped);
+                }
+            }
+            Version remapped = new Version(version.id, version.time, version.size, version.hash, toRuns(indices));
+            rewritten.addVersion(remapped, false);
+            writeRecord(records, versionRecord(remapped, false));
+        }
+
+        File temp = AtomicFileWriter.createTempFile(mTempDir);
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            records.writeTo(output);
+            output.getFD().sync();
+        }
+        if (!temp.renameTo(getHistoryFile(name))) {
+            temp.delete();
+            throw new IOException("Rename to " + getHistoryFile(name) + " failed!");
+        }
+        mHistories.put(name, rewritten);
+        return rewritten;
+    }
+
+    private void sweep(Set<String> used) {
+        File[] dirs = mChunkDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] chunks = dir.listFiles();
+            if (chunks == null) {
+                continue;
+            }
+            for (File chunk : chunks) {
+                if (!used.contains(chunk.getName()) && !chunk.delete()) {
+                    AsyncLog.w(TAG, "Failed to delete " + chunk);
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * @return the end of the chunk starting at {@code start}.
+     */
+    static int findBoundary(byte[] data, int start) {
+        int end = Math.min(data.length, start + MAX_CHUNK);
+        int i = start + MIN_CHUNK;
+        if (i >= end) {
+            return end;
+        }
+        long hash = 0;
+        // Bit n of the hash depends on the last n + 1 bytes, the top bits on the last 64.
+        for (int j = Math.max(start, i - 64); j < i; j++) {
+            hash = (hash << 1) + GEAR[data[j] & 0xff];
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private static int[] toRuns(List<Integer> indices) {
+        List<Integer> runs = new ArrayList<Integer>();
+        for (int i = 0; i < indices.size(); ) {
+            int start = indices.get(i);
+            int count = 1;
+            while (i + count < indices.size() && indices.get(i + count) == start + count) {
+                count++;
+            }
+            runs.add(start);
+            runs.add(count);
+            i += count;
+        }
+        int[] array = new int[runs.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = runs.get(i);
+        }
+        return array;
+    }
+
+    private History load(String name) throws IOException {
+        History history = mHistories.get(name);
+        if (history != null) {
+            return history;
+        }
+        history = new History();
+        File file = getHistoryFile(name);
+        if (file.exists()) {
+            long validLength = 0;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                byte[] payload;
+                while ((payload = readRecord(input)) != null) {
+                    try {
+                        parseRecord(history, payload);
+                    } catch (IOException e) {
+                        // Written by a newer version or damaged, keep what came before.
+                        AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                        break;
+                    }
+                    validLength += 4 + payload.length + 4;
+                }
+            }
+            if (validLength < file.length()) {
+                AsyncLog.w(TAG, "Dropping torn record of " + name);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+        mHistories.put(name, history);
+        return history;
+    }
+
+    private static void parseRecord(History history, byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        int type = input.readByte();
+        if (type == RECORD_CHUNK) {
+            byte[] digest = new byte[DIGEST_SIZE];
+            input.readFully(digest);
+            history.addChunk(digest);
+        } else if (type == RECORD_VERSION) {
+            boolean amend = input.readBoolean();
+            int id = input.readInt();
+            long time = input.readLong();
+            long size = input.readLong();
+            byte[] hash = new byte[DIGEST_SIZE];
+            input.readFully(hash);
+            int[] runs = new int[input.readInt() * 2];
+            for (int i = 0; i < runs.length; i++) {
+                runs[i] = input.readInt();
+            }
+            for (int i = 0; i < runs.length; i += 2) {
+                if (runs[i] < 0 || runs[i + 1] < 0 || runs[i] + runs[i + 1] > history.chunks.size()) {
+                    throw new IOException("Version " + id + " uses unknown chunks");
+                }
+            }
+            history.addVersion(new Version(id, time, size, hash, runs), amend);
+        } else {
+            throw new IOException("Unknown history record " + type);
+        }
+    }
+
+    private static byte[] chunkRecord(byte[] digest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + DIGEST_SIZE);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(RECORD_CHUNK);
+        output.write(digest);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] versionRecord(Version version, boolean amend) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(RECORD_VERSION);
+        output.writeBoolean(amend);
+        output.writeInt(version.id);
+        output.writeLong(version.time);
+        output.writeLong(version.size);
+        output.write(version.hash);
+        output.writeInt(version.runs.length / 2);
+        for (int value : version.runs) {
+            output.writeInt(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(OutputStream output, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the payload, or null at the end or at a torn record.
+     */
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length <= 0 || length > 16 * 1024 * 1024) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            return input.readInt() == (int) crc.getValue() ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void append(String name, byte[] records) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        try (FileOutputStream output = new FileOutputStream(getHistoryFile(name), true)) {
+            output.write(records);
+            output.getFD().sync();
+        }
+    }
+
+    private void storeChunk(byte[] digest, byte[] data, int offset, int length) throws IOException {
+        File chunk = getChunkFile(digest);
+        if (chunk.exists()) {
+            return;
+        }
+        File dir = chunk.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 64);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream output = new DeflaterOutputStream(deflated, deflater);
+            output.write(data, offset, length);
+            output.finish();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(chunk, deflated);
+    }
+
+    /**
+     * Replace a chunk file with the deflated chunk, encrypted if asked for.
+     */
+    private void writeChunk(File chunk, ByteArrayOutputStream deflated) throws IOException {
+        File temp = AtomicFileWriter.createTempFile(mTempDir);
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            if (mEncrypted) {
+                SegmentedCipher.EncryptingOutputStream output = mCipher.encrypt(file);
+                deflated.writeTo(output);
+                output.finish();
+            } else {
+                deflated.writeTo(file);
+            }
+            // The history record pointing at it is synced, and an existing chunk is never rewritten.
+            file.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(chunk)) {
+            temp.delete();
+            throw new IOException("Rename to " + chunk + " failed!");
+        }
+    }
+
+    /**
+     * @return the deflated chunk, decrypted if it is stored encrypted
+     */
+    private InputStream openChunk(File chunk) throws IOException {
+        return SegmentedCipher.isEncrypted(chunk) ? mCipher.decrypt(chunk, 0) : new FileInputStream(chunk);
+    }
+
+    private void readChunk(byte[] digest, OutputStream output) throws IOException {
+        try (InputStream input = new InflaterInputStream(openChunk(getChunkFile(digest)))) {
+            copy(input, output);
+        }
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[MAX_CHUNK];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+    }
+
+    private File getHistoryFile(String name) {
+        return new File(mDir, name + HISTORY_SUFFIX);
+    }
+
+    private File getChunkFile(byte[] digest) {
+        String hex = toHex(digest);
+        return new File(new File(mChunkDir, hex.substring(0, 2)), hex);
+    }
+
+    private static byte[] digest(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,665 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Stores each note as a base snapshot (the note file itself) plus an append-only log of edits.
+ * <p>
+ * Log layout: a header naming the snapshot it applies to (length and CRC32), then records of
+ * {@code [payload length][payload][CRC32 of payload]}. A log whose header does not match the
+ * snapshot is stale and ignored, a torn record at the end (crash mid-append) is dropped.
+ * <p>
+ * Once a log grows past {@code compactRatio} times its snapshot, the note is rewritten as a new
+ * snapshot on the IO executor and the log is removed.
+ * <p>
+ * Snapshots are compressed as the codec decides and encrypted while {@link #setEncrypted(boolean)}
+ * is on, and read in any form. Logs are never encrypted, callers must store full snapshots instead
+ * of appending then.
+ * <p>
+ * Every note has its own lock, so writes and fsyncs of different notes run in parallel.
+ */
+public class NoteJournal {
+    private static final String TAG = "NoteJournal";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int LOG_MAGIC = 0x5a4a4e4c; // "ZJNL"
+    private static final int LOG_HEADER_SIZE = 4 + 8 + 4;
+    // Logs smaller than this are never worth a compaction.
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * One splice on the note text. Offsets count UTF-16 code units, like js string indices.
+     */
+    public static class Edit {
+        public final int offset;
+        public final int remove;
+        public final String insert;
+
+        public Edit(int offset, int remove, String insert) {
+            this.offset = offset;
+            this.remove = remove;
+            this.insert = insert != null ? insert : "";
+        }
+    }
+
+    private static class Fingerprint {
+        final long length;
+        final int crc;
+
+        Fingerprint(long length, int crc) {
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private final File mNoteDir;
+    private final File mLogDir;
+    private final File mTempDir;
+    private final Executor mIOExecutor;
+    private final float mCompactRatio;
+    private final SegmentedCipher mCipher;
+    private final NoteCodec mCodec;
+    private volatile boolean mEncrypted;
+    private final StripedLock mLocks = new StripedLock(LOCK_STRIPES);
+    // Snapshots we have read or written, saves hashing the file again before the first append.
+    private final Map<String, Fingerprint> mSnapshots = new ConcurrentHashMap<String, Fingerprint>();
+
+    /**
+     * @param noteDir      where the snapshots live, i.e. the internal files dir
+     * @param logDir       where the logs live
+     * @param tempDir      temp dir for atomic snapshot writes
+     * @param ioExecutor   runs compactions
+     * @param compactRatio compact once log size exceeds this times the snapshot size
+     * @param cipher       encrypts and decrypts snapshots
+     * @param codec        compresses snapshots
+     */
+    public NoteJournal(File noteDir, File logDir, File tempDir, Executor ioExecutor, float compactRatio,
+                       SegmentedCipher cipher, NoteCodec codec) {
+        mNoteDir = noteDir;
+        mLogDir = logDir;
+        mTempDir = tempDir;
+        mIOExecutor = ioExecutor;
+        mCompactRatio = compactRatio;
+        mCipher = cipher;
+        mCodec = codec;
+    }
+
+    /**
+     * Encrypt snapshots written from now on. Existing ones are converted by {@link #recode(String)}.
+     */
+    public void setEncrypted(boolean encrypted) {
+        mEncrypted = encrypted;
+    }
+
+    public boolean isEncrypted() {
+        return mEncrypted;
+    }
+
+    /**
+     * Apply edits to a text, in order.
+     */
+    public static Result<String> apply(String text, List<Edit> edits) {
+        StringBuilder sb = new StringBuilder(text);
+        for (Edit edit : edits) {
+            if (edit.offset < 0 || edit.remove < 0 || edit.offset + edit.remove > sb.length()) {
+                return Result.error(ErrorCode.INVALID_ARGS);
+            }
+            sb.replace(edit.offset, edit.offset + edit.remove, edit.insert);
+        }
+        return Result.ok(sb.toString());
+    }
+
+    /**
+     * Read a note: its snapshot with all logged edits applied. Notes without a log are read
+     * without holding the note's lock, so reads do not wait for a write of the note.
+     */
+    public Result<String> read(String name) {
+        mLocks.lock(name);
+        try {
+            if (hasLog(name)) {
+                return readWithLog(name);
+            }
+        } finally {
+            mLocks.unlock(name);
+        }
+        Result<String> result = readSnapshot(new File(mNoteDir, name), null);
+        mLocks.lock(name);
+        try {
+            if (hasLog(name)) {
+                // An append raced the read, the log may not apply to the snapshot we got.
+                return readWithLog(name);
+            }
+        } finally {
+            mLocks.unlock(name);
+        }
+        return result;
+    }
+
+    /**
+     * @param crc if not null, updated with the bytes of the snapshot file
+     */
+    private Result<String> readSnapshot(File snapshot, CRC32 crc) {
+        long length = snapshot.length();
+        try {
+            InputStream raw;
+            if (SegmentedCipher.isEncrypted(snapshot)) {
+                // Segment by segment, a large note ahead on several threads.
+                raw = mCipher.decrypt(snapshot, 0, crc);
+            } else {
+                raw = new FileInputStream(snapshot);
+                if (crc != null) {
+                    raw = new CheckedInputStream(raw, crc);
+                }
+            }
+            try (InputStream input = NoteCodec.decode(raw)) {
+                long decodedLength = NoteCodec.getLength(input);
+                return Utf8StreamReader.read(input, decodedLength != NoteCodec.UNKNOWN_LENGTH ? decodedLength : length);
+            }
+        } catch (FileNotFoundException e) {
+            return Result.error(ErrorCode.FILE_NOT_FOUND);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    // Called holding the note's lock.
+    private Result<String> readWithLog(String name) {
+        File snapshot = new File(mNoteDir, name);
+        long length = snapshot.length();
+        CRC32 crc = new CRC32();
+        Result<String> result = readSnapshot(snapshot, crc);
+        if (!result.isOk()) {
+            return result;
+        }
+
+        Fingerprint fingerprint = new Fingerprint(length, (int) crc.getValue());
+        mSnapshots.put(name, fingerprint);
+
+        File log = getLogFile(name);
+        if (!log.exists()) {
+            return result;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            if (!readHeader(input, fingerprint)) {
+                AsyncLog.w(TAG, "Dropping stale log of " + name);
+                deleteLog(name);
+                return result;
+            }
+            String text = result.value;
+            long logLength = log.length();
+            long validLength = LOG_HEADER_SIZE;
+            List<Edit> edits;
+            while ((edits = readRecord(input)) != null) {
+                Result<String> applied = apply(text, edits);
+                if (!applied.isOk()) {
+                    AsyncLog.e(TAG, "Log of " + name + " does not fit its snapshot");
+                    return applied;
+                }
+                text = applied.value;
+                // For a file stream available() is exactly what is left.
+                validLength = logLength - input.available();
+            }
+            if (validLength < logLength) {
+                // Cut off the torn record, so later appends are not hidden behind it.
+                try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+                    file.setLength(validLength);
+                }
+            }
+            return Result.ok(text);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    /**
+     * Replace a note with a full new snapshot, dropping its log.
+     */
+    public ErrorCode writeSnapshot(String name, String data) {
+        mLocks.lock(name);
+        try {
+            return writeSnapshotLocked(name, data);
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    private ErrorCode writeSnapshotLocked(String name, String data) {
+        CRC32 crc = new CRC32();
+        ErrorCode code = AtomicFileWriter.write(new File(mNoteDir, name), mTempDir, data, crc,
+                mEncrypted ? mCipher : null, mCodec);
+        if (code != ErrorCode.NO_ERROR) {
+            mSnapshots.remove(name);
+            return code;
+        }
+        // If we crash before this, the log header no longer matches and the log is ignored.
+        deleteLog(name);
+        mSnapshots.put(name, new Fingerprint(new File(mNoteDir, name).length(), (int) crc.getValue()));
+        return ErrorCode.NO_ERROR;
+    }
+
+    /**
+     * A snapshot written but not yet in place, see {@link #commitSnapshots(List)}.
+     */
+    public static class PreparedSnapshot {
+        final String name;
+        final File file;
+        private final Fingerprint fingerprint;
+
+        private PreparedSnapshot(String name, File file, Fingerprint fingerprint) {
+            this.name = name;
+            this.file = file;
+            this.fingerprint = fingerprint;
+        }
+
+        public void discard() {
+            if (file.exists() && !file.delete()) {
+                AsyncLog.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Write a new snapshot of a note next to the current one. Several can be prepared at once.
+     */
+    public PreparedSnapshot prepareSnapshot(String name, String data) throws IOException {
+        CRC32 crc = new CRC32();
+        File file = AtomicFileWriter.prepare(mTempDir, data, crc, mEncrypted ? mCipher : null, mCodec);
+        return new PreparedSnapshot(name, file, new Fingerprint(file.length(), (int) crc.getValue()));
+    }
+
+    /**
+     * Put prepared snapshots in place and drop the logs of their notes, either all of them or, if
+     * any rename fails, none: the replaced files are kept aside until the last one is in place.
+     * Only a crash during the renames can leave some notes replaced. Prepared files are consumed
+     * either way.
+     */
+    public ErrorCode commitSnapshots(List<PreparedSnapshot> snapshots) {
+        List<String> names = new ArrayList<String>(snapshots.size());
+        for (PreparedSnapshot prepared : snapshots) {
+            names.add(prepared.name);
+        }
+        mLocks.lockAll(names);
+        try {
+            return commitSnapshotsLocked(snapshots);
+        } finally {
+            mLocks.unlockAll(names);
+        }
+    }
+
+    private ErrorCode commitSnapshotsLocked(List<PreparedSnapshot> snapshots) {
+        // Pairs of (file, what it was before), undone in reverse. A null backup means it did not exist.
+        List<File[]> undo = new ArrayList<File[]>();
+        try {
+            for (PreparedSnapshot prepared : snapshots) {
+                File target = new File(mNoteDir, prepared.name);
+                undo.add(new File[]{getLogFile(prepared.name), moveAside(getLogFile(prepared.name))});
+                undo.add(new File[]{target, moveAside(target)});
+                if (!prepared.file.renameTo(target)) {
+                    throw new IOException("Rename of " + prepared.file + " to " + target + " failed");
+                }
+            }
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                File file = undo.get(i)[0];
+                File backup = undo.get(i)[1];
+                if (file.exists() && !file.delete()) {
+                    AsyncLog.w(TAG, "Failed to delete " + file);
+                }
+                if (backup != null && !backup.renameTo(file)) {
+                    AsyncLog.e(TAG, "Failed to restore " + file + " from " + backup);
+                }
+            }
+            for (PreparedSnapshot prepared : snapshots) {
+                prepared.discard();
+            }
+            return ErrorCode.UNKNOWN;
+        }
+
+        for (File[] pair : undo) {
+            if (pair[1] != null && !pair[1].delete()) {
+                AsyncLog.w(TAG, "Failed to delete " + pair[1]);
+            }
+        }
+        for (PreparedSnapshot prepared : snapshots) {
+            mSnapshots.put(prepared.name, prepared.fingerprint);
+        }
+        return ErrorCode.NO_ERROR;
+    }
+
+    /**
+     * @return where the file was moved in the temp dir, or null if it does not exist.
+     */
+    private File moveAside(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        File backup = AtomicFileWriter.createTempFile(mTempDir);
+        if (!file.renameTo(backup)) {
+            backup.delete();
+            throw new IOException("Failed to move " + file + " aside");
+        }
+        return backup;
+    }
+
+    /**
+     * Replace a note with a complete, synced file on the same file system, dropping its log.
+     */
+    public ErrorCode replaceSnapshot(String name, File file) {
+        mLocks.lock(name);
+        try {
+            return replaceSnapshotLocked(name, file);
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    private ErrorCode replaceSnapshotLocked(String name, File file) {
+        mSnapshots.remove(name);
+        if (mEncrypted || mCodec.compresses(file.length())) {
+            ErrorCode code = AtomicFileWriter.copy(file, new File(mNoteDir, name), mTempDir,
+                    mEncrypted ? mCipher : null, mCodec);
+            if (!file.delete()) {
+                AsyncLog.w(TAG, "Failed to delete " + file);
+            }
+            if (code != ErrorCode.NO_ERROR) {
+                return code;
+            }
+        } else if (!file.renameTo(new File(mNoteDir, name))) {
+            AsyncLog.e(TAG, "Rename of " + file + " to " + name + " failed!");
+            return ErrorCode.UNKNOWN;
+        }
+        deleteLog(name);
+        return ErrorCode.NO_ERROR;
+    }
+
+    /**
+     * Rewrite a note if it is not stored the way {@link #setEncrypted(boolean)} asks for.
+     */
+    public ErrorCode recode(String name) {
+        mLocks.lock(name);
+        try {
+            File snapshot = new File(mNoteDir, name);
+            if (!snapshot.exists()) {
+                return ErrorCode.FILE_NOT_FOUND;
+            }
+            if (SegmentedCipher.isEncrypted(snapshot) == mEncrypted && !(mEncrypted && hasLog(name))) {
+                return ErrorCode.NO_ERROR;
+            }
+            Result<String> result = read(name);
+            if (!result.isOk()) {
+                return result.code;
+            }
+            return writeSnapshotLocked(name, result.value);
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    /**
+     * Open the snapshot of a note for reading, decrypted and decompressed. Logged edits are not
+     * included.
+     */
+    public InputStream openSnapshot(String name) throws IOException {
+        File snapshot = new File(mNoteDir, name);
+        InputStream input = SegmentedCipher.isEncrypted(snapshot)
+                ? mCipher.decrypt(snapshot, 0, null) : new FileInputStream(snapshot);
+        try {
+            return NoteCodec.decode(input);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the snapshot file holds the note's text as it is, e.g. to hand it to
+     * another app. Logged edits are not considered.
+     */
+    public boolean isStoredAsText(String name) throws IOException {
+        File snapshot = new File(mNoteDir, name);
+        if (SegmentedCipher.isEncrypted(snapshot)) {
+            return false;
+        }
+        try (InputStream input = NoteCodec.decode(new FileInputStream(snapshot))) {
+            return !NoteCodec.isEncoded(input);
+        }
+    }
+
+    /**
+     * Durably append edits to the log of an existing note, compacting it later if it got too big.
+     * The caller is responsible for the edits fitting the note as currently stored.
+     */
+    public ErrorCode append(final String name, List<Edit> edits) {
+        boolean compact;
+        mLocks.lock(name);
+        try {
+            File snapshot = new File(mNoteDir, name);
+            if (!snapshot.exists()) {
+                return ErrorCode.FILE_NOT_FOUND;
+            }
+
+            File log = getLogFile(name);
+            try (FileOutputStream output = new FileOutputStream(log, true)) {
+                DataOutputStream data = new DataOutputStream(output);
+                if (log.length() < LOG_HEADER_SIZE) {
+                    output.getChannel().truncate(0);
+                    Fingerprint fingerprint = getFingerprint(name, snapshot);
+                    data.writeInt(LOG_MAGIC);
+                    data.writeLong(fingerprint.length);
+                    data.writeInt(fingerprint.crc);
+                }
+                writeRecord(data, edits);
+                data.flush();
+                output.getFD().sync();
+            } catch (IOException e) {
+                AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+                return ErrorCode.UNKNOWN;
+            }
+
+            compact = log.length() > Math.max(MIN_COMPACT_BYTES, (long) (snapshot.length() * mCompactRatio));
+        } finally {
+            mLocks.unlock(name);
+        }
+
+        if (compact) {
+            try {
+                mIOExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compact(name);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Compacted on the next append or a full store.
+            }
+        }
+        return ErrorCode.NO_ERROR;
+    }
+
+    /**
+     * Fold the log of a note into a new snapshot.
+     */
+    public ErrorCode compact(String name) {
+        mLocks.lock(name);
+        try {
+            if (!getLogFile(name).exists()) {
+                return ErrorCode.NO_ERROR;
+            }
+            Result<String> result = read(name);
+            if (!result.isOk()) {
+                return result.code;
+            }
+            AsyncLog.w(TAG, "Compacting " + name);
+            return writeSnapshotLocked(name, result.value);
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    /**
+     * @return whether the note has edits not yet folded into its snapshot.
+     */
+    public boolean hasLog(String name) {
+        return getLogFile(name).exists();
+    }
+
+    /**
+     * @return a value that changes whenever the stored note changes, without reading it.
+     */
+    public long getStamp(String name) {
+        mLocks.lock(name);
+        try {
+            File snapshot = new File(mNoteDir, name);
+            File log = getLogFile(name);
+            long stamp = snapshot.length();
+            stamp = stamp * 31 + snapshot.lastModified();
+            stamp = stamp * 31 + log.length();
+            return stamp * 31 + log.lastModified();
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    /**
+     * @return when the note was last stored or patched in ms, 0 if it does not exist.
+     */
+    public long lastModified(String name) {
+        mLocks.lock(name);
+        try {
+            return Math.max(new File(mNoteDir, name).lastModified(), getLogFile(name).lastModified());
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    /**
+     * Forget everything journaled about a note. The snapshot itself is deleted by the caller.
+     */
+    public void delete(String name) {
+        mLocks.lock(name);
+        try {
+            mSnapshots.remove(name);
+            deleteLog(name);
+        } finally {
+            mLocks.unlock(name);
+        }
+    }
+
+    private File getLogFile(String name) {
+        return new File(mLogDir, name + LOG_SUFFIX);
+    }
+
+    private void deleteLog(String name) {
+        File log = getLogFile(name);
+        if (log.exists() && !log.delete()) {
+            AsyncLog.w(TAG, "Failed to delete " + log);
+        }
+    }
+
+    private Fingerprint getFingerprint(String name, File snapshot) throws IOException {
+        Fingerprint fingerprint = mSnapshots.get(name);
+        if (fingerprint != null && fingerprint.length == snapshot.length()) {
+            return fingerprint;
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream input = new CheckedInputStream(new FileInputStream(snapshot), crc)) {
+            while (input.read(buffer) != -1) {
+                // Only the checksum is needed.
+            }
+        }
+        fingerprint = new Fingerprint(snapshot.length(), (int) crc.getValue());
+        mSnapshots.put(name, fingerprint);
+        return fingerprint;
+    }
+
+    private static boolean readHeader(DataInputStream input, Fingerprint fingerprint) throws IOException {
+        try {
+            return input.readInt() == LOG_MAGIC
+                    && input.readLong() == fingerprint.length
+                    && input.readInt() == fingerprint.crc;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream output, List<Edit> edits) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeInt(edits.size());
+        for (Edit edit : edits) {
+            byte[] insert = edit.insert.getBytes(StandardCharsets.UTF_8);
+            payload.writeInt(edit.offset);
+            payload.writeInt(edit.remove);
+            payload.writeInt(insert.length);
+            payload.write(insert);
+        }
+
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        output.writeInt(record.length);
+        output.write(record);
+        output.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the edits of the next record, or null at the end of the log or at a torn record.
+     */
+    private static List<Edit> readRecord(DataInputStream input) throws IOException {
+        byte[] record;
+        try {
+            int length = input.readInt();
+            if (length < 0 || length > input.available()) {
+                return null;
+            }
+            record = new byte[length];
+            input.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if (input.readInt() != (int) crc.getValue()) {
+                AsyncLog.w(TAG, "Dropping corrupted log record");
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(record));
+        int count = payload.readInt();
+        List<Edit> edits = new ArrayList<Edit>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = payload.readInt();
+            int remove = payload.readInt();
+            byte[] insert = new byte[payload.readInt()];
+            payload.readFully(insert);
+            edits.add(new Edit(offset, remove, new String(insert, StandardCharsets.UTF_8)));
+        }
+        return edits;
+    }
+}
@@ -0,0 +1,23 @@
+package com.hz.zebra.core;
+
+public class Result<T> {
+    public T value;
+    public ErrorCode code;
+
+    public Result(T value, ErrorCode code) {
+        this.value = value;
+        this.code = code;
+    }
+
+    public boolean isOk() {
+        return code == ErrorCode.NO_ERROR;
+    }
+
+    public static <T> Result<T> ok(T value) {
+        return new Result<T>(value, ErrorCode.NO_ERROR);
+    }
+
+    public static <T> Result<T> error(ErrorCode code) {
+        return new Result<T>(null, code);
+    }
+}
@@ -0,0 +1,588 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Inverted index over the internal notes, ranked with BM25.
+ * <p>
+ * Posting lists are parallel primitive int arrays of doc ids and term frequencies. On disk every
+ * list is sorted and stored as varint deltas. Doc ids of removed notes are reused in memory and
+ * dropped on disk, where docs are renumbered densely.
+ * <p>
+ * Latin text is split into words, CJK text into single characters, both lower-cased. Every doc
+ * keeps the storage stamp of the text it was built from, so {@link #reconcile(Source)} can catch up
+ * with notes changed while the index was not saved, e.g. before a crash.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+    private static final int FILE_MAGIC = 0x5a534958; // "ZSIX"
+    private static final int FILE_VERSION = 2;
+    // Longer words are cut, they are never searched for whole and would not fit writeUTF.
+    static final int MAX_TOKEN_LENGTH = 64;
+
+    private static final float BM25_K1 = 1.2f;
+    private static final float BM25_B = 0.75f;
+    private static final int SNIPPET_RADIUS = 40;
+
+    public static class Hit {
+        public final String name;
+        public final float score;
+
+        Hit(String name, float score) {
+            this.name = name;
+            this.score = score;
+        }
+    }
+
+    public interface Source {
+        String[] list();
+
+        /**
+         * @return a value that changes whenever the stored note changes
+         */
+        long stamp(String name);
+
+        Result<String> read(String name);
+    }
+
+    /**
+     * Growable list of primitive ints.
+     */
+    static class IntList {
+        int[] values;
+        int size;
+
+        IntList(int capacity) {
+            values = new int[Math.max(capacity, 2)];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    private static class Postings {
+        final IntList docs = new IntList(4);
+        final IntList freqs = new IntList(4);
+
+        void add(int doc, int freq) {
+            docs.add(doc);
+            freqs.add(freq);
+        }
+
+        void remove(int doc) {
+            // Order does not matter in memory, move the last entry into the gap.
+            for (int i = 0; i < docs.size; i++) {
+                if (docs.values[i] == doc) {
+                    int last = --docs.size;
+                    freqs.size--;
+                    docs.values[i] = docs.values[last];
+                    freqs.values[i] = freqs.values[last];
+                    return;
+                }
+            }
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Integer> mDocIds = new HashMap<String, Integer>();
+    private final List<String> mDocNames = new ArrayList<String>();
+    private final IntList mDocLengths = new IntList(64);
+    private long[] mDocStamps = new long[64];
+    // Term ids per doc, to find its postings again when it is updated or removed.
+    private final List<int[]> mDocTerms = new ArrayList<int[]>();
+    private final IntList mFreeDocs = new IntList(16);
+    private final Map<String, Integer> mTermIds = new HashMap<String, Integer>();
+    private final List<Postings> mPostings = new ArrayList<Postings>();
+    private long mTotalLength;
+    private boolean mDirty;
+
+    /**
+     * @param file where the index is saved
+     */
+    public SearchIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Split text into lower-cased index terms.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        int length = lower.length();
+        for (int i = 0; i < length; ) {
+            int c = lower.codePointAt(i);
+            int next = i + Character.charCount(c);
+            if (isIdeographic(c)) {
+                if (start >= 0) {
+                    tokens.add(word(lower, start, i));
+                    start = -1;
+                }
+                tokens.add(lower.substring(i, next));
+            } else if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(word(lower, start, i));
+                start = -1;
+            }
+            i = next;
+        }
+        if (start >= 0) {
+            tokens.add(word(lower, start, length));
+        }
+        return tokens;
+    }
+
+    private static String word(String text, int start, int end) {
+        if (end - start > MAX_TOKEN_LENGTH) {
+            end = start + MAX_TOKEN_LENGTH;
+            // Don't cut surrogate pairs in half.
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isIdeographic(int c) {
+        if (c < 0x3040) {
+            return false;
+        }
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return Character.isIdeographic(c)
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    public synchronized int size() {
+        return mDocIds.size();
+    }
+
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Index a note, replacing what was indexed for it before.
+     *
+     * @param stamp the storage stamp matching {@code text}, or 0 if it is not stored yet
+     */
+    public synchronized void update(String name, String text, long stamp) {
+        remove(name);
+
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        List<String> tokens = tokenize(text);
+        for (String token : tokens) {
+            int[] count = counts.get(token);
+            if (count == null) {
+                counts.put(token, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+
+        int doc;
+        if (mFreeDocs.size > 0) {
+            doc = mFreeDocs.values[--mFreeDocs.size];
+        } else {
+            doc = mDocNames.size();
+            mDocNames.add(null);
+            mDocLengths.add(0);
+            mDocTerms.add(null);
+            ensureStampCapacity(doc + 1);
+        }
+        int[] terms = new int[counts.size()];
+        int i = 0;
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            int term = getOrAddTerm(entry.getKey());
+            mPostings.get(term).add(doc, entry.getValue()[0]);
+            terms[i++] = term;
+        }
+
+        mDocIds.put(name, doc);
+        mDocNames.set(doc, name);
+        mDocLengths.values[doc] = tokens.size();
+        mDocStamps[doc] = stamp;
+        mDocTerms.set(doc, terms);
+        mTotalLength += tokens.size();
+        mDirty = true;
+    }
+
+    public synchronized void remove(String name) {
+        Integer doc = mDocIds.remove(name);
+        if (doc == null) {
+            return;
+        }
+        for (int term : mDocTerms.get(doc)) {
+            mPostings.get(term).remove(doc);
+        }
+        // The slot is reused by the next update, saving drops it.
+        mDocNames.set(doc, null);
+        mDocTerms.set(doc, new int[0]);
+        mTotalLength -= mDocLengths.values[doc];
+        mDocLengths.values[doc] = 0;
+        mDocStamps[doc] = 0;
+        mFreeDocs.add(doc);
+        mDirty = true;
+    }
+
+    private void ensureStampCapacity(int size) {
+        if (mDocStamps.length < size) {
+            mDocStamps = Arrays.copyOf(mDocStamps, Math.max(size, mDocStamps.length * 2));
+        }
+    }
+
+    /**
+     * Re-index the notes whose stamp differs from the one they were indexed with and drop those
+     * that are gone, on the calling thread.
+     *
+     * @return how many notes were re-indexed or dropped
+     */
+    public int reconcile(Source source) {
+        String[] names = source.list();
+        if (names == null) {
+            return 0;
+        }
+
+        int changed = 0;
+        Set<String> present = new HashSet<String>();
+        for (String name : names) {
+            present.add(name);
+            // Taken before reading, a store meanwhile then only makes the next reconcile redo it.
+            long stamp = source.stamp(name);
+            synchronized (this) {
+                Integer doc = mDocIds.get(name);
+                if (doc != null && mDocStamps[doc] == stamp) {
+                    continue;
+                }
+            }
+            Result<String> result = source.read(name);
+            if (result.isOk()) {
+                update(name, result.value, stamp);
+                changed++;
+            }
+        }
+
+        synchronized (this) {
+            for (String name : new ArrayList<String>(mDocIds.keySet())) {
+                if (!present.contains(name)) {
+                    remove(name);
+                    changed++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    public synchronized void clear() {
+        mDocIds.clear();
+        mDocNames.clear();
+        mDocLengths.size = 0;
+        mFreeDocs.size = 0;
+        mDocTerms.clear();
+        mTermIds.clear();
+        mPostings.clear();
+        mTotalLength = 0;
+        mDirty = true;
+    }
+
+    /**
+     * @return up to {@code limit} notes matching any query term, best first.
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        List<Hit> hits = new ArrayList<Hit>();
+        if (query == null || limit <= 0 || mDocIds.isEmpty()) {
+            return hits;
+        }
+
+        int docCount = mDocIds.size();
+        float averageLength = Math.max(1f, (float) mTotalLength / docCount);
+        final float[] scores = new float[mDocNames.size()];
+        boolean matched = false;
+        for (String token : new LinkedHashSet<String>(tokenize(query))) {
+            Integer term = mTermIds.get(token);
+            if (term == null) {
+                continue;
+            }
+            Postings postings = mPostings.get(term);
+            int df = postings.docs.size;
+            if (df == 0) {
+                continue;
+            }
+            matched = true;
+            float idf = (float) Math.log(1 + (docCount - df + 0.5) / (df + 0.5));
+            for (int i = 0; i < df; i++) {
+                int doc = postings.docs.values[i];
+                int tf = postings.freqs.values[i];
+                float norm = BM25_K1 * (1 - BM25_B + BM25_B * mDocLengths.values[doc] / averageLength);
+                scores[doc] += idf * tf * (BM25_K1 + 1) / (tf + norm);
+            }
+        }
+        if (!matched) {
+            return hits;
+        }
+
+        // Keep the best `limit` docs in a min-heap.
+        PriorityQueue<Integer> best = new PriorityQueue<Integer>(limit + 1, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(scores[a], scores[b]);
+            }
+        });
+        for (int doc = 0; doc < scores.length; doc++) {
+            if (scores[doc] > 0) {
+                best.add(doc);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        while (!best.isEmpty()) {
+            int doc = best.poll();
+            hits.add(0, new Hit(mDocNames.get(doc), scores[doc]));
+        }
+        return hits;
+    }
+
+    /**
+     * Cut a short piece of text around the first occurrence of a query term.
+     */
+    public static String snippet(String text, String query) {
+        if (text == null) {
+            return "";
+        }
+        // Search text itself, lower casing can change its length and so the match's index.
+        int found = -1;
+        for (String token : tokenize(query)) {
+            int index = indexOfIgnoreCase(text, token, found < 0 ? text.length() : found);
+            if (index >= 0) {
+                found = index;
+            }
+        }
+        if (found < 0) {
+            found = 0;
+        }
+        int start = Math.max(0, found - SNIPPET_RADIUS);
+        int end = Math.min(text.length(), found + SNIPPET_RADIUS);
+        // Don't cut surrogate pairs in half.
+        if (start > 0 && Character.isLowSurrogate(text.charAt(start))) {
+            start--;
+        }
+        if (end < text.length() && Character.isLowSurrogate(text.charAt(end))) {
+            end++;
+        }
+        return text.substring(start, end).replace('\n', ' ');
+    }
+
+    /**
+     * @return the first index of {@code token} in {@code text} before {@code end}, or -1
+     */
+    private static int indexOfIgnoreCase(String text, String token, int end) {
+        int last = Math.min(end, text.length() - token.length() + 1);
+        for (int i = 0; i < last; i++) {
+            if (text.regionMatches(true, i, token, 0, token.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int getOrAddTerm(String token) {
+        Integer term = mTermIds.get(token);
+        if (term == null) {
+            term = mPostings.size();
+            mTermIds.put(token, term);
+            mPostings.add(new Postings());
+        }
+        return term;
+    }
+
+    /**
+     * Write the index atomically, renumbering docs densely.
+     */
+    public synchronized ErrorCode save(File tempDir) {
+        int[] newIds = new int[mDocNames.size()];
+        List<Integer> live = new ArrayList<Integer>();
+        for (int doc = 0; doc < mDocNames.size(); doc++) {
+            if (mDocNames.get(doc) != null) {
+                newIds[doc] = live.size();
+                live.add(doc);
+            }
+        }
+
+        File temp = null;
+        try {
+            temp = File.createTempFile("index", ".tmp", tempDir);
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+                output.writeInt(FILE_MAGIC);
+                output.writeInt(FILE_VERSION);
+                writeVarInt(output, live.size());
+                for (int doc : live) {
+                    output.writeUTF(mDocNames.get(doc));
+                    writeVarInt(output, mDocLengths.values[doc]);
+                    output.writeLong(mDocStamps[doc]);
+                }
+
+                int termCount = 0;
+                for (Postings postings : mPostings) {
+                    if (postings.docs.size > 0) {
+                        termCount++;
+                    }
+                }
+                writeVarInt(output, termCount);
+                long[] pairs = new long[16];
+                for (Map.Entry<String, Integer> entry : mTermIds.entrySet()) {
+                    Postings postings = mPostings.get(entry.getValue());
+                    int size = postings.docs.size;
+                    if (size == 0) {
+                        continue;
+                    }
+                    // Sort by new doc id, carrying the frequency along in the low bits.
+                    if (pairs.length < size) {
+                        pairs = new long[size];
+                    }
+                    for (int i = 0; i < size; i++) {
+                        pairs[i] = ((long) newIds[postings.docs.values[i]] << 32) | postings.freqs.values[i];
+                    }
+                    Arrays.sort(pairs, 0, size);
+
+                    output.writeUTF(entry.getKey());
+                    writeVarInt(output, size);
+                    int previous = 0;
+                    for (int i = 0; i < size; i++) {
+                        int doc = (int) (pairs[i] >>> 32);
+                        writeVarInt(output, doc - previous);
+                        writeVarInt(output, (int) pairs[i]);
+                        previous = doc;
+                    }
+                }
+                output.flush();
+                file.getFD().sync();
+            }
+            if (!temp.renameTo(mFile)) {
+                AsyncLog.e(TAG, "Rename to " + mFile + " failed!");
+                temp.delete();
+                return ErrorCode.UNKNOWN;
+            }
+            mDirty = false;
+            return ErrorCode.NO_ERROR;
+        } catch (IOException e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            if (temp != null) {
+                temp.delete();
+            }
+            return ErrorCode.UNKNOWN;
+        }
+    }
+
+    /**
+     * Replace the index with the saved one.
+     *
+     * @return FILE_NOT_FOUND if there is none, UNKNOWN if it is unreadable; the index is then empty.
+     */
+    public synchronized ErrorCode load() {
+        clear();
+        mDirty = false;
+        try (InputStream file = new FileInputStream(mFile)) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                return ErrorCode.UNKNOWN;
+            }
+
+            int docCount = readVarInt(input);
+            List<IntList> docTerms = new ArrayList<IntList>(docCount);
+            ensureStampCapacity(docCount);
+            for (int doc = 0; doc < docCount; doc++) {
+                String name = input.readUTF();
+                int length = readVarInt(input);
+                mDocStamps[doc] = input.readLong();
+                mDocIds.put(name, doc);
+                mDocNames.add(name);
+                mDocLengths.add(length);
+                mTotalLength += length;
+                docTerms.add(new IntList(8));
+            }
+
+            int termCount = readVarInt(input);
+            for (int term = 0; term < termCount; term++) {
+                String token = input.readUTF();
+                int size = readVarInt(input);
+                Postings postings = new Postings();
+                postings.docs.values = new int[Math.max(size, 2)];
+                postings.freqs.values = new int[Math.max(size, 2)];
+                int doc = 0;
+                for (int i = 0; i < size; i++) {
+                    doc += readVarInt(input);
+                    postings.add(doc, readVarInt(input));
+                    docTerms.get(doc).add(term);
+                }
+                mTermIds.put(token, term);
+                mPostings.add(postings);
+            }
+
+            for (IntList terms : docTerms) {
+                mDocTerms.add(Arrays.copyOf(terms.values, terms.size));
+            }
+            return ErrorCode.NO_ERROR;
+        } catch (FileNotFoundException e) {
+            return ErrorCode.FILE_NOT_FOUND;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            AsyncLog.e(TAG, "Index unreadable: " + e.getMessage());
+            clear();
+            return ErrorCode.UNKNOWN;
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    private static int readVarInt(DataInputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,589 @@
+package com.hz.zebra.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Checksum;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts files as a sequence of fixed size segments, each sealed with AES-GCM under its own
+ * random IV, so a file can be decrypted one segment at a time, from any offset or in parallel.
+ * <p>
+ * Layout: a header (magic, version, segment size), then per segment the IV, the ciphertext and
+ * the tag. Every segment authenticates the header, its own index and whether it is the last one,
+ * so segments can neither be reordered nor cut off.
+ */
+public class SegmentedCipher {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int MAGIC = 0x5a534547; // "ZSEG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+    private static final int OVERHEAD = IV_SIZE + TAG_BITS / 8;
+    // Reads of at least this many segments of a file are decrypted on several threads.
+    private static final int PARALLEL_SEGMENTS = 8;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    public interface KeySource {
+        /**
+         * @return the key, or null if it is not available.
+         */
+        SecretKey getKey();
+    }
+
+    private static ExecutorService sWorkers;
+
+    private final KeySource mKeySource;
+    private final int mSegmentSize;
+    private volatile int mThreads = Runtime.getRuntime().availableProcessors();
+    private SecretKey mKey;
+
+    public SegmentedCipher(final SecretKey key) {
+        this(new KeySource() {
+            @Override
+            public SecretKey getKey() {
+                return key;
+            }
+        }, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param keySource asked for the key on first use, e.g. because the key store loads late
+     */
+    public SegmentedCipher(KeySource keySource, int segmentSize) {
+        mKeySource = keySource;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * How many threads a large file is decrypted on at most, for tests on machines with few cores.
+     */
+    void setThreads(int threads) {
+        mThreads = threads;
+    }
+
+    private synchronized SecretKey getKey() throws IOException {
+        if (mKey == null) {
+            mKey = mKeySource.getKey();
+            if (mKey == null) {
+                throw new IOException("Encryption key not available");
+            }
+        }
+        return mKey;
+    }
+
+    /**
+     * @return whether the file starts like one of ours, an unreadable file is not.
+     */
+    public static boolean isEncrypted(File file) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static boolean isEncrypted(byte[] head, int length) {
+        return length >= 4 && ByteBuffer.wrap(head, 0, length).getInt() == MAGIC;
+    }
+
+    /**
+     * Encrypt everything written to the returned stream into {@code output}. Call
+     * {@link EncryptingOutputStream#finish()} or close it to write the last segment.
+     */
+    public EncryptingOutputStream encrypt(OutputStream output) throws IOException {
+        return new EncryptingOutputStream(output);
+    }
+
+    public class EncryptingOutputStream extends FilterOutputStream {
+        private final byte[] mHeader;
+        private final byte[] mBuffer = new byte[mSegmentSize];
+        private final Cipher mCipher;
+        private int mLength;
+        private long mIndex;
+        private boolean mFinished;
+
+        EncryptingOutputStream(OutputStream output) throws IOException {
+            super(output);
+            mHeader = header(mSegmentSize);
+            mCipher = newCipher();
+            out.write(mHeader);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mFinished) {
+                throw new IOException("Stream finished");
+            }
+            while (len > 0) {
+                if (mLength == mBuffer.length) {
+                    // Only now we know it is not the last segment.
+                    seal(false);
+                }
+                int n = Math.min(len, mBuffer.length - mLength);
+                System.arraycopy(b, off, mBuffer, mLength, n);
+                mLength += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            try {
+                // Let the provider pick the IV, key store keys insist on that.
+                mCipher.init(Cipher.ENCRYPT_MODE, getKey());
+                mCipher.updateAAD(aad(mHeader, mIndex, last));
+                byte[] sealed = mCipher.doFinal(mBuffer, 0, mLength);
+                byte[] iv = mCipher.getIV();
+                if (iv.length != IV_SIZE) {
+                    throw new IOException("Unexpected IV size " + iv.length);
+                }
+                out.write(iv);
+                out.write(sealed);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            mIndex++;
+            mLength = 0;
+        }
+
+        /**
+         * Write the last segment without closing the underlying stream.
+         */
+        public void finish() throws IOException {
+            if (!mFinished) {
+                seal(true);
+                mFinished = true;
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Decrypt a whole stream, one segment at a time.
+     */
+    public InputStream decrypt(InputStream input) throws IOException {
+        return new DecryptingInputStream(input);
+    }
+
+    /**
+     * Decrypt a file from {@code offset} on, skipping the segments before it.
+     */
+    public InputStream decrypt(File file, long offset) throws IOException {
+        return decrypt(file, offset, null);
+    }
+
+    /**
+     * Like {@link #decrypt(File, long)}, segments of a large file are read ahead and decrypted on
+     * several threads.
+     *
+     * @param checksum if not null, updated with the encrypted bytes as stored, from the header on.
+     *                 Only whole when reading from offset 0.
+     */
+    public InputStream decrypt(File file, long offset, Checksum checksum) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new FileDecryptingInputStream(raf.getChannel(), raf, offset, checksum);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #decrypt(File, long, Checksum)}, for a file the caller keeps open. The channel is
+     * read at absolute positions and not closed with the stream.
+     */
+    public InputStream decrypt(FileChannel channel, long offset, Checksum checksum) throws IOException {
+        return new FileDecryptingInputStream(channel, null, offset, checksum);
+    }
+
+    private class DecryptingInputStream extends InputStream {
+        // Buffered, we peek a byte to tell whether a full segment is the last one.
+        private final InputStream mInput;
+        private final byte[] mHeader;
+        private final int mSegmentSize;
+        private final Cipher mCipher;
+        private final byte[] mSealed;
+        private byte[] mPlain = new byte[0];
+        private int mPosition;
+        private long mIndex;
+        private boolean mLast;
+
+        DecryptingInputStream(InputStream input) throws IOException {
+            mHeader = readHeader(input);
+            mInput = new BufferedInputStream(input);
+            mSegmentSize = checkHeader(mHeader);
+            mSealed = new byte[mSegmentSize + OVERHEAD];
+            mCipher = newCipher();
+        }
+
+        private boolean nextSegment() throws IOException {
+            if (mLast) {
+                return false;
+            }
+            int length = readFully(mInput, mSealed, 0, mSealed.length);
+            if (length < OVERHEAD) {
+                throw new EOFException("Truncated segment " + mIndex);
+            }
+            // A short segment must be the last, a full one is the last if nothing follows.
+            boolean last = length < mSealed.length || isAtEnd();
+            mPlain = SegmentedCipher.this.open(mCipher, mHeader, mIndex, last, mSealed, 0, length);
+            mPosition = 0;
+            mLast = last;
+            mIndex++;
+            return true;
+        }
+
+        private boolean isAtEnd() throws IOException {
+            mInput.mark(1);
+            boolean end = mInput.read() < 0;
+            mInput.reset();
+            return end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mPosition == mPlain.length) {
+                if (!nextSegment()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, mPlain.length - mPosition);
+            System.arraycopy(mPlain, mPosition, b, off, n);
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            while (mPosition == mPlain.length) {
+                if (!nextSegment()) {
+                    return 0;
+                }
+            }
+            int skipped = (int) Math.min(n, mPlain.length - mPosition);
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+
+    private class FileDecryptingInputStream extends InputStream {
+        private final FileChannel mChannel;
+        // Closed with the stream if we opened it.
+        private final Closeable mOwned;
+        private final Checksum mChecksum;
+        private final byte[] mHeader;
+        private final int mSegmentSize;
+        private final long mStride;
+        private final long mCount;
+        private final int mLastLength;
+        // How many segments are decrypted ahead on the workers, 0 to decrypt on the reading thread.
+        private final int mAhead;
+        private final ArrayDeque<Future<byte[]>> mOpening = new ArrayDeque<Future<byte[]>>();
+        // Reused on the reading thread, segments decrypted ahead need their own.
+        private byte[] mSealed;
+        private Cipher mCipher;
+        private long mPosition;
+        private long mNextRead;
+        private byte[] mPlain = new byte[0];
+        private int mOffset;
+
+        FileDecryptingInputStream(FileChannel channel, Closeable owned, long offset, Checksum checksum)
+                throws IOException {
+            mChannel = channel;
+            mOwned = owned;
+            mChecksum = checksum;
+            mHeader = new byte[HEADER_SIZE];
+            if (readAt(0, mHeader) != HEADER_SIZE) {
+                throw new EOFException("Truncated header");
+            }
+            mSegmentSize = checkHeader(mHeader);
+            if (checksum != null) {
+                checksum.update(mHeader, 0, HEADER_SIZE);
+            }
+            mStride = mSegmentSize + OVERHEAD;
+            long body = channel.size() - HEADER_SIZE;
+            mCount = Math.max(1, (body + mStride - 1) / mStride);
+            mLastLength = (int) (body - (mCount - 1) * mStride);
+            if (mLastLength < OVERHEAD) {
+                throw new EOFException("Truncated segment " + (mCount - 1));
+            }
+            // Past the end we start at the last segment and skip all of it.
+            mNextRead = Math.min(offset / mSegmentSize, mCount - 1);
+            mPosition = HEADER_SIZE + mNextRead * mStride;
+            long segments = mCount - mNextRead;
+            int threads = (int) Math.min(mThreads, segments / PARALLEL_SEGMENTS);
+            mAhead = threads > 1 ? threads : 0;
+
+            long skip = offset - mNextRead * mSegmentSize;
+            while (skip > 0) {
+                long skipped = skip(skip);
+                if (skipped <= 0) {
+                    break;
+                }
+                skip -= skipped;
+            }
+        }
+
+        private int readAt(long position, byte[] buffer) throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buffer);
+            while (target.hasRemaining()) {
+                if (mChannel.read(target, position + target.position()) < 0) {
+                    break;
+                }
+            }
+            return target.position();
+        }
+
+        // Read the next segment from disk, in order, so the checksum sees the file as stored.
+        private int readSegment(byte[] sealed) throws IOException {
+            int length = mNextRead++ == mCount - 1 ? mLastLength : (int) mStride;
+            ByteBuffer target = ByteBuffer.wrap(sealed, 0, length);
+            while (target.hasRemaining()) {
+                if (mChannel.read(target, mPosition + target.position()) < 0) {
+                    throw new EOFException("File shrank while reading");
+                }
+            }
+            mPosition += length;
+            if (mChecksum != null) {
+                mChecksum.update(sealed, 0, length);
+            }
+            return length;
+        }
+
+        private boolean nextSegment() throws IOException {
+            if (mAhead == 0) {
+                if (mNextRead == mCount) {
+                    return false;
+                }
+                if (mCipher == null) {
+                    mCipher = newCipher();
+                    mSealed = new byte[(int) mStride];
+                }
+                long index = mNextRead;
+                int length = readSegment(mSealed);
+                mPlain = open(mCipher, mHeader, index, index == mCount - 1, mSealed, 0, length);
+                mOffset = 0;
+                return true;
+            }
+
+            while (mOpening.size() < mAhead && mNextRead < mCount) {
+                final long index = mNextRead;
+                final byte[] sealed = new byte[(int) mStride];
+                final int length = readSegment(sealed);
+                mOpening.add(getWorkers().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return open(newCipher(), mHeader, index, index == mCount - 1, sealed, 0, length);
+                    }
+                }));
+            }
+            Future<byte[]> next = mOpening.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                mPlain = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+            mOffset = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mOffset == mPlain.length) {
+                if (!nextSegment()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, mPlain.length - mOffset);
+            System.arraycopy(mPlain, mOffset, b, off, n);
+            mOffset += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            while (mOffset == mPlain.length) {
+                if (!nextSegment()) {
+                    return 0;
+                }
+            }
+            int skipped = (int) Math.min(n, mPlain.length - mOffset);
+            mOffset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<byte[]> opening : mOpening) {
+                opening.cancel(false);
+            }
+            mOpening.clear();
+            if (mOwned != null) {
+                mOwned.close();
+            }
+        }
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private byte[] open(Cipher cipher, byte[] header, long index, boolean last, byte[] sealed, int off,
+                        int length) throws IOException {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_BITS, sealed, off, IV_SIZE));
+            cipher.updateAAD(aad(header, index, last));
+            return cipher.doFinal(sealed, off + IV_SIZE, length - IV_SIZE);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Segment " + index + " failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            sWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "zebra-decrypt");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWorkers;
+    }
+
+    private static byte[] header(int segmentSize) {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(segmentSize).array();
+    }
+
+    private static byte[] readHeader(InputStream input) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        if (readFully(input, header, 0, HEADER_SIZE) != HEADER_SIZE) {
+            throw new EOFException("Truncated header");
+        }
+        return header;
+    }
+
+    /**
+     * @return the segment size the file was written with.
+     */
+    private static int checkHeader(byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not an encrypted file");
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported version");
+        }
+        int segmentSize = buffer.getInt();
+        if (segmentSize <= 0 || segmentSize > 16 * 1024 * 1024) {
+            throw new IOException("Bad segment size " + segmentSize);
+        }
+        return segmentSize;
+    }
+
+    private static byte[] aad(byte[] header, long index, boolean last) {
+        return ByteBuffer.allocate(HEADER_SIZE + 9).put(header).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = input.read(buffer, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,40 @@
+package com.hz.zebra.core;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class StreamUtils {
+    public static Result<String> readStringFromStream(InputStream input) {
+        if (input == null) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+
+        try {
+            StringBuilder sb = new StringBuilder();
+            byte[] buffer = new byte[1024];
+            int byteRead = 0;
+            while ((byteRead = input.read(buffer)) != -1) {
+                sb.append(new String(buffer, 0, byteRead));
+            }
+            return Result.ok(sb.toString());
+        } catch (Exception e) {
+            AsyncLog.e("FileUtils", e.getMessage());
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    public static ErrorCode writeStringToStream(OutputStream output, String data) {
+        if (output == null) {
+            return ErrorCode.INVALID_ARGS;
+        }
+
+        try {
+            output.write(data.getBytes(StandardCharsets.UTF_8));
+            return ErrorCode.NO_ERROR;
+        } catch (Exception e) {
+            AsyncLog.e("FileUtils", e.getMessage());
+            return ErrorCode.UNKNOWN;
+        }
+    }
+}
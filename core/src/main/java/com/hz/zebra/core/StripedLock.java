@@ -0,0 +1,63 @@
+package com.hz.zebra.core;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks picked by the hash of a key, e.g. a note name: work on the same key is
+ * serialized, work on different keys only waits in the rare case both hash to the same lock.
+ * <p>
+ * Several keys are locked in lock order, so callers locking overlapping sets cannot deadlock.
+ */
+public class StripedLock {
+    private final ReentrantLock[] mLocks;
+
+    /**
+     * @param stripes how many locks, more means fewer unrelated keys sharing one
+     */
+    public StripedLock(int stripes) {
+        mLocks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private int indexOf(String key) {
+        int hash = key.hashCode();
+        // Spread the bits, names often differ only at the end.
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % mLocks.length;
+    }
+
+    public void lock(String key) {
+        mLocks[indexOf(key)].lock();
+    }
+
+    public void unlock(String key) {
+        mLocks[indexOf(key)].unlock();
+    }
+
+    /**
+     * Lock every key, release them with {@link #unlockAll(Collection)} and the same keys.
+     */
+    public void lockAll(Collection<String> keys) {
+        for (int index : indicesOf(keys)) {
+            mLocks[index].lock();
+        }
+    }
+
+    public void unlockAll(Collection<String> keys) {
+        for (int index : indicesOf(keys).descendingSet()) {
+            mLocks[index].unlock();
+        }
+    }
+
+    private TreeSet<Integer> indicesOf(Collection<String> keys) {
+        TreeSet<Integer> indices = new TreeSet<Integer>();
+        for (String key : keys) {
+            indices.add(indexOf(key));
+        }
+        return indices;
+    }
+}
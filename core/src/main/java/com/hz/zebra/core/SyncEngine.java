@@ -0,0 +1,781 @@
+package com.hz.zebra.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the notes of this device in sync with a Zebra Note Book server, sending only what changed.
+ * <p>
+ * For every note the engine remembers the server version and content hash it last agreed on with
+ * the server, and a copy of that content as the base for merges. A sync first pulls the changes
+ * since the last cursor, then pushes the notes whose hash differs from their base. When both sides
+ * changed a note, the edits are merged with {@link ThreeWayMerge}; if they touch the same lines the
+ * side stored last wins.
+ * <p>
+ * Every request is JSON, gzip compressed both ways:
+ * <pre>
+ * GET  /changes?since=cursor  -> {"cursor": n, "notes": [{name, version, hash, modified, deleted}]}
+ * POST /fetch {"names": []}   -> {"notes": [{name, version, hash, modified, data}]}
+ * POST /push  {"notes": [{name, base, modified, data} or {name, base, deleted: true}]}
+ *                             -> {"results": [{name, status: "ok" or "conflict", version}]}
+ * </pre>
+ * Hashes are the SHA-256 of the note's UTF-8 bytes, in hex; modified times are in ms since the epoch.
+ * The server takes a push only if the note is still at version {@code base}, 0 for a new note.
+ * Fetches and pushes go in batches, and the state is saved after each one: a sync that was cut off
+ * redoes at most the batch in flight, the next one carries on with what is left.
+ * <p>
+ * The base copies and the state, which holds the notes' hashes, are encrypted like the notes while
+ * {@link #setEncrypted(boolean)} is on.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+    private static final String STATE_FILENAME = "state.json";
+    private static final String BASE_DIRNAME = "base";
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 60 * 1000;
+    private static final int FETCH_BATCH_NAMES = 64;
+    // Pull and push again after conflicting pushes, bounded for a server that keeps changing.
+    private static final int MAX_ROUNDS = 3;
+
+    /**
+     * The notes being synced. Called from the thread running {@link #sync()}.
+     */
+    public interface Store {
+        String[] list();
+
+        /**
+         * @return the note, or {@link ErrorCode#FILE_NOT_FOUND}
+         */
+        Result<String> read(String name);
+
+        ErrorCode write(String name, String data);
+
+        boolean delete(String name);
+
+        /**
+         * @return when the note was last stored, in ms since the epoch
+         */
+        long lastModified(String name);
+
+        /**
+         * @return a value that changes whenever the note's content does, or 0 if there is none, so
+         * unchanged notes are not read and hashed on every sync
+         */
+        long getStamp(String name);
+
+        /**
+         * Held from reading a note until it is written or deleted, so a store of the note made
+         * meanwhile waits instead of being overwritten. Reads, writes and deletes of the note are
+         * called while it is held.
+         */
+        void lock(String name);
+
+        void unlock(String name);
+    }
+
+    public static class Report {
+        // Notes taken from the server, stored on the server, and merged with both sides' edits.
+        public int pulled;
+        public int pushed;
+        public int merged;
+        // Notes changed on both sides where one side's edits were dropped.
+        public int overwritten;
+        // Compressed request and response bodies.
+        public long bytesSent;
+        public long bytesReceived;
+        public int requests;
+    }
+
+    // What this device last agreed on with the server about a note.
+    private static class Base {
+        final long version;
+        // Null for a note the server deleted, that was edited here since.
+        final String hash;
+        // The store's stamp when the note last had this content, to skip hashing it.
+        long stamp;
+
+        Base(long version, String hash, long stamp) {
+            this.version = version;
+            this.hash = hash;
+            this.stamp = stamp;
+        }
+    }
+
+    private static class Remote {
+        String name;
+        long version;
+        String hash;
+        long modified;
+        boolean deleted;
+        String data;
+    }
+
+    private static class Change {
+        final String name;
+        final long base;
+        final String data;
+        final String hash;
+        final long modified;
+        final long stamp;
+
+        Change(String name, long base, String data, String hash, long modified, long stamp) {
+            this.name = name;
+            this.base = base;
+            this.data = data;
+            this.hash = hash;
+            this.modified = modified;
+            this.stamp = stamp;
+        }
+    }
+
+    private final File mStateFile;
+    private final File mBaseDir;
+    private final File mTempDir;
+    private final Store mStore;
+    private final int mMaxBatchChars;
+    private final SegmentedCipher mCipher;
+    private final Map<String, Base> mBases = new HashMap<String, Base>();
+    private long mCursor;
+    private String mServer;
+    private String mToken;
+    private boolean mLoaded;
+    private boolean mEncrypted;
+
+    /**
+     * @param dir           for the sync state, only used by this engine
+     * @param tempDir       on the same file system as {@code dir}
+     * @param maxBatchChars notes per push request are added up to this size, one note may be larger
+     * @param cipher        encrypts and decrypts the base copies and the state
+     */
+    public SyncEngine(File dir, File tempDir, Store store, int maxBatchChars, SegmentedCipher cipher) {
+        mStateFile = new File(dir, STATE_FILENAME);
+        mBaseDir = new File(dir, BASE_DIRNAME);
+        mTempDir = tempDir;
+        mStore = store;
+        mMaxBatchChars = maxBatchChars;
+        mCipher = cipher;
+    }
+
+    /**
+     * Encrypt the base copies and the state from now on, and rewrite those stored the other way.
+     */
+    public synchronized void setEncrypted(boolean encrypted) {
+        load();
+        mEncrypted = encrypted;
+        File[] files = mBaseDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (SegmentedCipher.isEncrypted(file) == encrypted) {
+                    continue;
+                }
+                String data = readSealed(file);
+                if (data == null || writeSealed(file, data) != ErrorCode.NO_ERROR) {
+                    // A plaintext copy must not outlive the switch, merges fall back to the newer side.
+                    file.delete();
+                }
+            }
+        }
+        if (mStateFile.exists() && SegmentedCipher.isEncrypted(mStateFile) != encrypted) {
+            saveState();
+        }
+    }
+
+    /**
+     * Sync with {@code server}, e.g. "https://znb.example.com/api", or stop syncing with null.
+     * Changing the server starts over: everything is pulled and merged with the local notes. The
+     * token is not stored, set it again after a restart.
+     */
+    public synchronized void setServer(String server, String token) {
+        load();
+        if (server != null && server.endsWith("/")) {
+            server = server.substring(0, server.length() - 1);
+        }
+        if (mServer != null && !mServer.equals(server)) {
+            clear();
+        }
+        mServer = server;
+        mToken = token;
+        saveState();
+    }
+
+    /**
+     * Set the token of the current server, e.g. after a restart.
+     */
+    public synchronized void setToken(String token) {
+        mToken = token;
+    }
+
+    public synchronized boolean isEnabled() {
+        load();
+        return mServer != null;
+    }
+
+    /**
+     * Pull and push until both sides agree. Blocks on the network.
+     *
+     * @return what was synced, {@link ErrorCode#NETWORK_ERROR} if the server could not be reached
+     * or answered with an error, {@link ErrorCode#INVALID_ARGS} if there is no server to sync with
+     */
+    public synchronized Result<Report> sync() {
+        load();
+        if (mServer == null) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+        Report report = new Report();
+        try {
+            for (int round = 0; round < MAX_ROUNDS; round++) {
+                pull(report);
+                if (!push(report)) {
+                    break;
+                }
+            }
+            AsyncLog.i(TAG, "Synced: %d pulled, %d pushed, %d merged, %d overwritten, %d requests",
+                    report.pulled, report.pushed, report.merged, report.overwritten, report.requests);
+            return Result.ok(report);
+        } catch (IOException e) {
+            AsyncLog.w(TAG, "Sync stopped: %s", e.getMessage());
+            return Result.error(ErrorCode.NETWORK_ERROR);
+        } finally {
+            saveState();
+        }
+    }
+
+    private void pull(Report report) throws IOException {
+        JsonReader reader = new JsonReader(call("GET", "/changes?since=" + mCursor, null, report));
+        long cursor = mCursor;
+        List<Remote> changes = new ArrayList<Remote>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("cursor")) {
+                cursor = reader.nextLong();
+            } else if (key.equals("notes")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    changes.add(readRemote(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        List<String> fetch = new ArrayList<String>();
+        for (Remote remote : changes) {
+            if (!NoteArchive.isValidName(remote.name)) {
+                AsyncLog.w(TAG, "Skipping invalid note name from server: %s", remote.name);
+                continue;
+            }
+            Base base = mBases.get(remote.name);
+            if (base != null && base.version >= remote.version) {
+                // Already here, e.g. our own push.
+                continue;
+            }
+            if (remote.deleted) {
+                applyDeletion(remote, base, report);
+            } else if (!adoptIfSame(remote)) {
+                fetch.add(remote.name);
+            }
+        }
+        for (int i = 0; i < fetch.size(); i += FETCH_BATCH_NAMES) {
+            List<String> names = fetch.subList(i, Math.min(fetch.size(), i + FETCH_BATCH_NAMES));
+            String body = JsonWriter.obtain().beginObject().name("names").value(names).endObject().finish();
+            reader = new JsonReader(call("POST", "/fetch", body, report));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("notes")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Remote remote = readRemote(reader);
+                    if (remote.data != null && names.contains(remote.name)) {
+                        apply(remote, report);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            saveState();
+        }
+        // Only now, a pull cut off before asks for the same changes again.
+        mCursor = cursor;
+        saveState();
+    }
+
+    /**
+     * @return whether the note already has the server's content here, which then is its new base
+     */
+    private boolean adoptIfSame(Remote remote) {
+        if (remote.hash == null) {
+            return false;
+        }
+        mStore.lock(remote.name);
+        try {
+            Result<String> local = mStore.read(remote.name);
+            if (!local.isOk() || !hash(local.value).equals(remote.hash)) {
+                return false;
+            }
+            setBase(remote.name, new Base(remote.version, remote.hash, 0), local.value);
+            return true;
+        } finally {
+            mStore.unlock(remote.name);
+        }
+    }
+
+    private void applyDeletion(Remote remote, Base base, Report report) {
+        mStore.lock(remote.name);
+        try {
+            applyDeletionLocked(remote, base, report);
+        } finally {
+            mStore.unlock(remote.name);
+        }
+    }
+
+    private void applyDeletionLocked(Remote remote, Base base, Report report) {
+        Result<String> local = mStore.read(remote.name);
+        if (!local.isOk()) {
+            forget(remote.name);
+            return;
+        }
+        if (base != null && hash(local.value).equals(base.hash)) {
+            mStore.delete(remote.name);
+            forget(remote.name);
+            report.pulled++;
+        } else {
+            // Edited here or never synced, keep it: the next push stores it on top of the deletion.
+            mBases.put(remote.name, new Base(remote.version, null, 0));
+            deleteBaseContent(remote.name);
+            if (base != null) {
+                report.overwritten++;
+            }
+        }
+    }
+
+    private void apply(Remote remote, Report report) {
+        mStore.lock(remote.name);
+        try {
+            applyLocked(remote, report);
+        } finally {
+            mStore.unlock(remote.name);
+        }
+    }
+
+    private void applyLocked(Remote remote, Report report) {
+        String name = remote.name;
+        Base base = mBases.get(name);
+        Result<String> local = mStore.read(name);
+        if (!local.isOk() && local.code != ErrorCode.FILE_NOT_FOUND) {
+            // Can't tell what is here, leave it for the next sync.
+            return;
+        }
+        String localData = local.value;
+        String localHash = localData != null ? hash(localData) : null;
+        String remoteHash = hash(remote.data);
+        if (remoteHash.equals(localHash)) {
+            // Same content on both sides, e.g. a push whose response was lost.
+        } else if (localData == null || (base != null && localHash.equals(base.hash))) {
+            // Unchanged here since the base, or deleted here: the server's version wins.
+            if (mStore.write(name, remote.data) != ErrorCode.NO_ERROR) {
+                return;
+            }
+            report.pulled++;
+        } else {
+            String baseData = base != null ? readBaseContent(name) : "";
+            String merged = baseData != null ? ThreeWayMerge.merge(baseData, localData, remote.data) : null;
+            if (merged != null) {
+                if (!merged.equals(localData) && mStore.write(name, merged) != ErrorCode.NO_ERROR) {
+                    return;
+                }
+                report.merged++;
+            } else {
+                if (remote.modified > mStore.lastModified(name)
+                        && mStore.write(name, remote.data) != ErrorCode.NO_ERROR) {
+                    return;
+                }
+                report.overwritten++;
+            }
+        }
+        // Whatever differs from the server's version now is pushed on top of it.
+        setBase(name, new Base(remote.version, remoteHash, 0), remote.data);
+    }
+
+    /**
+     * @return whether some notes were changed on the server meanwhile and need another pull
+     */
+    private boolean push(Report report) throws IOException {
+        String[] names = mStore.list();
+        if (names == null) {
+            throw new IOException("Can't list notes");
+        }
+        Set<String> present = new HashSet<String>();
+        List<Change> batch = new ArrayList<Change>();
+        long batchChars = 0;
+        boolean conflicts = false;
+        for (String name : names) {
+            if (!NoteArchive.isValidName(name)) {
+                continue;
+            }
+            present.add(name);
+            Base base = mBases.get(name);
+            long stamp = mStore.getStamp(name);
+            if (base != null && base.hash != null && base.stamp == stamp && stamp != 0) {
+                continue;
+            }
+            Result<String> local = mStore.read(name);
+            if (!local.isOk()) {
+                continue;
+            }
+            String hash = hash(local.value);
+            if (base != null && hash.equals(base.hash)) {
+                base.stamp = stamp;
+                continue;
+            }
+            batch.add(new Change(name, base != null ? base.version : 0, local.value, hash,
+                    mStore.lastModified(name), stamp));
+            batchChars += local.value.length();
+            if (batchChars >= mMaxBatchChars) {
+                conflicts |= sendPush(batch, report);
+                batch.clear();
+                batchChars = 0;
+            }
+        }
+        // Deleted here since they were synced.
+        for (Map.Entry<String, Base> entry : new TreeMap<String, Base>(mBases).entrySet()) {
+            if (!present.contains(entry.getKey()) && entry.getValue().hash != null) {
+                batch.add(new Change(entry.getKey(), entry.getValue().version, null, null, 0, 0));
+            }
+        }
+        if (!batch.isEmpty()) {
+            conflicts |= sendPush(batch, report);
+        }
+        return conflicts;
+    }
+
+    private boolean sendPush(List<Change> batch, Report report) throws IOException {
+        JsonWriter writer = JsonWriter.obtain().beginObject().name("notes").beginArray();
+        Map<String, Change> byName = new HashMap<String, Change>();
+        for (Change change : batch) {
+            byName.put(change.name, change);
+            writer.beginObject().name("name").value(change.name).name("base").value(change.base);
+            if (change.data != null) {
+                writer.name("modified").value(change.modified).name("data").value(change.data);
+            } else {
+                writer.name("deleted").value(true);
+            }
+            writer.endObject();
+        }
+        JsonReader reader = new JsonReader(call("POST", "/push", writer.endArray().endObject().finish(), report));
+        boolean conflicts = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("results")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = null;
+                String status = null;
+                long version = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    if (key.equals("name")) {
+                        name = reader.nextString();
+                    } else if (key.equals("status")) {
+                        status = reader.nextString();
+                    } else if (key.equals("version")) {
+                        version = reader.nextLong();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                Change change = byName.get(name);
+                if (change == null) {
+                    continue;
+                }
+                if (!"ok".equals(status)) {
+                    conflicts = true;
+                } else if (change.data == null) {
+                    forget(name);
+                    report.pushed++;
+                } else {
+                    setBase(name, new Base(version, change.hash, change.stamp), change.data);
+                    report.pushed++;
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        saveState();
+        return conflicts;
+    }
+
+    private static Remote readRemote(JsonReader reader) throws IOException {
+        Remote remote = new Remote();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("name")) {
+                remote.name = reader.nextString();
+            } else if (key.equals("version")) {
+                remote.version = reader.nextLong();
+            } else if (key.equals("hash")) {
+                remote.hash = reader.nextStringOrNull();
+            } else if (key.equals("modified")) {
+                remote.modified = reader.nextLong();
+            } else if (key.equals("deleted")) {
+                remote.deleted = reader.nextBoolean();
+            } else if (key.equals("data")) {
+                remote.data = reader.nextStringOrNull();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return remote;
+    }
+
+    /**
+     * @param body sent gzip compressed, null for a GET
+     * @return the response body, inflated if the server compressed it
+     */
+    private String call(String method, String path, String body, Report report) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mServer + path).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (mToken != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + mToken);
+            }
+            if (body != null) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length() / 4 + 64);
+                OutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(body.getBytes(StandardCharsets.UTF_8));
+                gzip.close();
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(compressed.size());
+                OutputStream output = connection.getOutputStream();
+                compressed.writeTo(output);
+                output.close();
+                report.bytesSent += compressed.size();
+            }
+            report.requests++;
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " for " + method + " " + path);
+            }
+            CountingInputStream counted = new CountingInputStream(connection.getInputStream());
+            InputStream input = counted;
+            // We asked for gzip ourselves, so HttpURLConnection leaves inflating it to us.
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                input = new GZIPInputStream(input);
+            }
+            Result<String> response = Utf8StreamReader.read(input, 0);
+            input.close();
+            report.bytesReceived += counted.count;
+            if (!response.isOk()) {
+                throw new IOException("Can't read response of " + method + " " + path);
+            }
+            return response.value;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private void setBase(String name, Base base, String data) {
+        mBaseDir.mkdirs();
+        if (writeSealed(new File(mBaseDir, name), data) != ErrorCode.NO_ERROR) {
+            // Without the base a later conflict can't be merged, only decided.
+            deleteBaseContent(name);
+        }
+        mBases.put(name, base);
+    }
+
+    private void forget(String name) {
+        mBases.remove(name);
+        deleteBaseContent(name);
+    }
+
+    private String readBaseContent(String name) {
+        File file = new File(mBaseDir, name);
+        return file.exists() ? readSealed(file) : null;
+    }
+
+    private ErrorCode writeSealed(File file, String data) {
+        return AtomicFileWriter.write(file, mTempDir, data, null, mEncrypted ? mCipher : null, null);
+    }
+
+    /**
+     * @return the content of a file written by {@link #writeSealed(File, String)}, or null if it
+     * can't be read
+     */
+    private String readSealed(File file) {
+        boolean encrypted = SegmentedCipher.isEncrypted(file);
+        try (InputStream input = encrypted ? mCipher.decrypt(file, 0) : new FileInputStream(file)) {
+            return Utf8StreamReader.read(input, encrypted ? 0 : file.length()).value;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void deleteBaseContent(String name) {
+        new File(mBaseDir, name).delete();
+    }
+
+    private void clear() {
+        mBases.clear();
+        mCursor = 0;
+        File[] files = mBaseDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mStateFile.exists()) {
+            return;
+        }
+        try {
+            String state = readSealed(mStateFile);
+            if (state == null) {
+                throw new IOException("Can't read " + mStateFile);
+            }
+            JsonReader reader = new JsonReader(state);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (key.equals("server")) {
+                    mServer = reader.nextStringOrNull();
+                } else if (key.equals("cursor")) {
+                    mCursor = reader.nextLong();
+                } else if (key.equals("notes")) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        long version = 0;
+                        String hash = null;
+                        long stamp = 0;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String field = reader.nextName();
+                            if (field.equals("version")) {
+                                version = reader.nextLong();
+                            } else if (field.equals("hash")) {
+                                hash = reader.nextStringOrNull();
+                            } else if (field.equals("stamp")) {
+                                stamp = reader.nextLong();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        mBases.put(name, new Base(version, hash, stamp));
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            // Starting over only costs a full pull, which merges with what is here.
+            AsyncLog.e(TAG, "Sync state lost: %s", e.getMessage());
+            String server = mServer;
+            clear();
+            mServer = server;
+        }
+    }
+
+    private void saveState() {
+        JsonWriter writer = JsonWriter.obtain().beginObject()
+                .name("server").value(mServer)
+                .name("cursor").value(mCursor)
+                .name("notes").beginObject();
+        for (Map.Entry<String, Base> entry : mBases.entrySet()) {
+            Base base = entry.getValue();
+            writer.name(entry.getKey()).beginObject()
+                    .name("version").value(base.version)
+                    .name("hash").value(base.hash)
+                    .name("stamp").value(base.stamp)
+                    .endObject();
+        }
+        mStateFile.getParentFile().mkdirs();
+        if (writeSealed(mStateFile, writer.endObject().endObject().finish()) != ErrorCode.NO_ERROR) {
+            AsyncLog.e(TAG, "Can't save sync state");
+        }
+    }
+
+    static String hash(String data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
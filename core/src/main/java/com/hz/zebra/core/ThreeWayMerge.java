@@ -0,0 +1,173 @@
+package com.hz.zebra.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges two edited copies of a text with the version both started from, line by line, like diff3.
+ * <p>
+ * Each side is diffed against the base. Changes to different lines are both applied, the same
+ * change made on both sides is applied once. Changes to the same or adjacent lines conflict, the
+ * merge then fails and the caller has to pick a side. The diff is a longest common subsequence
+ * after trimming the common start and end; when the rest is too large to diff it counts as one
+ * change, so large rewrites conflict instead of costing quadratic time and memory.
+ */
+public class ThreeWayMerge {
+    // Lines of base times lines of a side left after trimming, above this the side is one change.
+    private static final long MAX_DIFF_CELLS = 4L * 1024 * 1024;
+
+    // Lines base[start, end) replaced by the lines of the side.
+    private static class Hunk {
+        final int start;
+        final int end;
+        final List<String> lines;
+
+        Hunk(int start, int end, List<String> lines) {
+            this.start = start;
+            this.end = end;
+            this.lines = lines;
+        }
+
+        boolean sameAs(Hunk other) {
+            return start == other.start && end == other.end && lines.equals(other.lines);
+        }
+    }
+
+    /**
+     * @return the merged text, or null if both sides changed the same lines differently
+     */
+    public static String merge(String base, String local, String remote) {
+        if (local.equals(remote) || remote.equals(base)) {
+            return local;
+        }
+        if (local.equals(base)) {
+            return remote;
+        }
+        List<String> baseLines = split(base);
+        List<Hunk> ours = diff(baseLines, split(local));
+        List<Hunk> theirs = diff(baseLines, split(remote));
+
+        StringBuilder merged = new StringBuilder(Math.max(local.length(), remote.length()));
+        int position = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ours.size() || j < theirs.size()) {
+            Hunk next;
+            if (j == theirs.size()) {
+                next = ours.get(i++);
+            } else if (i == ours.size()) {
+                next = theirs.get(j++);
+            } else {
+                Hunk a = ours.get(i);
+                Hunk b = theirs.get(j);
+                if (a.sameAs(b)) {
+                    next = a;
+                    i++;
+                    j++;
+                } else if (touches(a, b)) {
+                    return null;
+                } else if (a.start < b.start) {
+                    next = a;
+                    i++;
+                } else {
+                    next = b;
+                    j++;
+                }
+            }
+            append(merged, baseLines, position, next.start);
+            append(merged, next.lines, 0, next.lines.size());
+            position = next.end;
+        }
+        append(merged, baseLines, position, baseLines.size());
+        return merged.toString();
+    }
+
+    private static boolean touches(Hunk a, Hunk b) {
+        // Inclusive, so edits of neighbouring lines and insertions at the same place conflict.
+        return a.start <= b.end && b.start <= a.end;
+    }
+
+    private static void append(StringBuilder out, List<String> lines, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out.append(lines.get(i));
+        }
+    }
+
+    /**
+     * @return the lines of {@code text}, each with its line terminator
+     */
+    static List<String> split(String text) {
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < length) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /**
+     * @return the changes turning {@code base} into {@code side}, ordered, not overlapping
+     */
+    private static List<Hunk> diff(List<String> base, List<String> side) {
+        int prefix = 0;
+        int max = Math.min(base.size(), side.size());
+        while (prefix < max && base.get(prefix).equals(side.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && base.get(base.size() - 1 - suffix).equals(side.get(side.size() - 1 - suffix))) {
+            suffix++;
+        }
+        int n = base.size() - prefix - suffix;
+        int m = side.size() - prefix - suffix;
+        List<Hunk> hunks = new ArrayList<Hunk>();
+        if (n == 0 && m == 0) {
+            return hunks;
+        }
+        if (n == 0 || m == 0 || (long) n * m > MAX_DIFF_CELLS) {
+            hunks.add(new Hunk(prefix, prefix + n, side.subList(prefix, prefix + m)));
+            return hunks;
+        }
+
+        // lcs[i][j]: length of the common subsequence of base[i..] and side[j..], from the back.
+        int[][] lcs = new int[n + 1][m + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            String line = base.get(prefix + i);
+            for (int j = m - 1; j >= 0; j--) {
+                lcs[i][j] = line.equals(side.get(prefix + j))
+                        ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        int i = 0;
+        int j = 0;
+        int hunkI = 0;
+        int hunkJ = 0;
+        while (i < n || j < m) {
+            if (i < n && j < m && base.get(prefix + i).equals(side.get(prefix + j))) {
+                if (hunkI < i || hunkJ < j) {
+                    hunks.add(new Hunk(prefix + hunkI, prefix + i, side.subList(prefix + hunkJ, prefix + j)));
+                }
+                i++;
+                j++;
+                hunkI = i;
+                hunkJ = j;
+            } else if (j < m && (i == n || lcs[i][j + 1] >= lcs[i + 1][j])) {
+                j++;
+            } else {
+                i++;
+            }
+        }
+        if (hunkI < n || hunkJ < m) {
+            hunks.add(new Hunk(prefix + hunkI, prefix + n, side.subList(prefix + hunkJ, prefix + m)));
+        }
+        return hunks;
+    }
+}
@@ -0,0 +1,91 @@
+package com.hz.zebra.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a whole stream into a String, decoding UTF-8 once at the end.
+ * <p>
+ * Unlike {@link StreamUtils#readStringFromStream(InputStream)} this never splits a multi-byte
+ * sequence at a buffer boundary and does not build a String per chunk. The bytes go into one
+ * array pre-sized from the hint, or for small inputs into a buffer reused per thread, and are
+ * decoded by {@link String#String(byte[], int, int, java.nio.charset.Charset)}, which is far
+ * faster than a {@link java.nio.charset.CharsetDecoder} for note sized input and keeps one byte,
+ * not one char, per input byte until the result is built. Malformed input is replaced with
+ * U+FFFD.
+ */
+public class Utf8StreamReader {
+    private static final String TAG = "Utf8StreamReader";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Read the stream to the end, using {@link InputStream#available()} as the size hint.
+     */
+    public static Result<String> read(InputStream input) {
+        if (input == null) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+
+        long hint;
+        try {
+            hint = input.available();
+        } catch (Exception e) {
+            hint = 0;
+        }
+        return read(input, hint);
+    }
+
+    /**
+     * Read the stream to the end.
+     *
+     * @param sizeHint expected length in bytes (e.g. the file length), or 0 if unknown. The bytes
+     *                 are read into an array of this size, it only has to grow when the hint was too small.
+     */
+    public static Result<String> read(InputStream input, long sizeHint) {
+        if (input == null) {
+            return Result.error(ErrorCode.INVALID_ARGS);
+        }
+
+        try {
+            return Result.ok(decode(input, sizeHint));
+        } catch (Exception e) {
+            AsyncLog.e(TAG, String.valueOf(e.getMessage()));
+            return Result.error(ErrorCode.UNKNOWN);
+        }
+    }
+
+    private static String decode(InputStream input, long sizeHint) throws IOException {
+        // One byte more than the hint, so reaching the end does not need a larger array.
+        byte[] bytes = sizeHint < BUFFER_SIZE
+                ? sBuffer.get() : new byte[(int) Math.min(sizeHint + 1, MAX_ARRAY_SIZE)];
+        int length = 0;
+        while (true) {
+            if (length == bytes.length) {
+                bytes = grow(bytes);
+            }
+            int byteRead = input.read(bytes, length, bytes.length - length);
+            if (byteRead == -1) {
+                break;
+            }
+            length += byteRead;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] grow(byte[] bytes) {
+        if (bytes.length >= MAX_ARRAY_SIZE) {
+            throw new OutOfMemoryError("Stream too large");
+        }
+        return Arrays.copyOf(bytes, (int) Math.min((long) bytes.length * 2, MAX_ARRAY_SIZE));
+    }
+}
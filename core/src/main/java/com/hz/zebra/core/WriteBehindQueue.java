@@ -0,0 +1,260 @@
+package com.hz.zebra.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays and merges stores: all stores to one name within the window become a single physical
+ * write of the newest data.
+ * <p>
+ * Physical writes of one name are serialized, and the pending data is taken while holding the
+ * name's lock, so the last store always ends up on disk last. Writes of different names run in
+ * parallel. Pending data stays readable through
+ * {@link #peek(String)} until its write has finished. A write that fails keeps its data pending
+ * and is retried with a growing delay, the listener hears about every failure.
+ */
+public class WriteBehindQueue {
+    private static final String TAG = "WriteBehindQueue";
+    private static final long MIN_RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+    private static final int LOCK_STRIPES = 64;
+
+    public interface Writer {
+        ErrorCode write(String name, String data);
+    }
+
+    public interface Listener {
+        /**
+         * A delayed write failed, its data stays pending and is retried.
+         *
+         * @param failures failed writes of this name in a row
+         */
+        void onWriteFailed(String name, ErrorCode code, int failures);
+    }
+
+    private final Writer mWriter;
+    private final Listener mListener;
+    private final IoScheduler mIOExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final StripedLock mWriteLocks = new StripedLock(LOCK_STRIPES);
+    private final Map<String, String> mPending = new HashMap<String, String>();
+    // Guarded by mPending: names whose last write failed, and those with a retry scheduled.
+    private final Map<String, Integer> mFailures = new HashMap<String, Integer>();
+    private final Set<String> mRetrying = new HashSet<String>();
+    private volatile long mWindowMs;
+
+    /**
+     * @param writer     does the physical write, called on {@code ioExecutor} or on the flushing thread
+     * @param listener   called on the thread of the failed write
+     * @param ioExecutor runs the delayed writes, ordered with other tasks on the same name
+     * @param windowMs   how long a store waits for newer stores to the same name
+     */
+    public WriteBehindQueue(Writer writer, Listener listener, IoScheduler ioExecutor, long windowMs) {
+        mWriter = writer;
+        mListener = listener;
+        mIOExecutor = ioExecutor;
+        mWindowMs = windowMs;
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    public void setWindow(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    public void enqueue(String name, String data) {
+        boolean scheduled;
+        synchronized (mPending) {
+            scheduled = mPending.containsKey(name);
+            mPending.put(name, data);
+        }
+        if (!scheduled) {
+            schedule(name);
+        }
+    }
+
+    private void schedule(final String name) {
+        try {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushOnIOExecutor(name);
+                }
+            }, mWindowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            flush(name);
+        }
+    }
+
+    private void scheduleRetry(final String name, int failures) {
+        synchronized (mPending) {
+            if (!mRetrying.add(name)) {
+                return;
+            }
+        }
+        long delay = Math.min(Math.max(mWindowMs, MIN_RETRY_DELAY_MS) << Math.min(failures, 16),
+                MAX_RETRY_DELAY_MS);
+        try {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPending) {
+                        mRetrying.remove(name);
+                    }
+                    flushOnIOExecutor(name);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down, the data stays readable until the process ends.
+            synchronized (mPending) {
+                mRetrying.remove(name);
+            }
+            AsyncLog.e(TAG, "Not retrying the write to " + name + " after shutdown");
+        }
+    }
+
+    private void flushOnIOExecutor(final String name) {
+        try {
+            mIOExecutor.submit(IoScheduler.Priority.WRITE, name, new Runnable() {
+                @Override
+                public void run() {
+                    flush(name);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // IO executor is gone, write it here rather than lose it.
+            flush(name);
+        }
+    }
+
+    /**
+     * @return the newest data not yet written for this name, or null.
+     */
+    public String peek(String name) {
+        synchronized (mPending) {
+            return mPending.get(name);
+        }
+    }
+
+    /**
+     * Drop the pending data of a name, waiting for a write of it in progress to finish.
+     */
+    public void discard(String name) {
+        mWriteLocks.lock(name);
+        try {
+            synchronized (mPending) {
+                mPending.remove(name);
+                mFailures.remove(name);
+            }
+        } finally {
+            mWriteLocks.unlock(name);
+        }
+    }
+
+    /**
+     * Write the pending data of one name now, on the calling thread.
+     *
+     * @return the result of the write, {@link ErrorCode#NO_ERROR} if nothing was pending
+     */
+    public ErrorCode flush(String name) {
+        ErrorCode code;
+        boolean storedMeanwhile = false;
+        int failures = 0;
+        mWriteLocks.lock(name);
+        try {
+            String data;
+            synchronized (mPending) {
+                data = mPending.get(name);
+            }
+            if (data == null) {
+                return ErrorCode.NO_ERROR;
+            }
+
+            // The data stays visible to peek() until it is really on disk.
+            code = write(name, data);
+
+            synchronized (mPending) {
+                if (code != ErrorCode.NO_ERROR) {
+                    Integer previous = mFailures.get(name);
+                    failures = previous != null ? previous + 1 : 1;
+                    mFailures.put(name, failures);
+                } else {
+                    mFailures.remove(name);
+                    storedMeanwhile = mPending.get(name) != data;
+                    if (!storedMeanwhile) {
+                        mPending.remove(name);
+                    }
+                }
+            }
+        } finally {
+            mWriteLocks.unlock(name);
+        }
+        if (code != ErrorCode.NO_ERROR) {
+            AsyncLog.e(TAG, "Delayed write to " + name + " failed " + failures + " times: " + code);
+            mListener.onWriteFailed(name, code, failures);
+            scheduleRetry(name, failures);
+        } else if (storedMeanwhile) {
+            schedule(name);
+        }
+        return code;
+    }
+
+    /**
+     * Write everything pending now, on the calling thread.
+     *
+     * @return {@link ErrorCode#NO_ERROR}, or the error of a write that failed
+     */
+    public ErrorCode flushAll() {
+        ErrorCode result = ErrorCode.NO_ERROR;
+        for (String name : pendingNames()) {
+            ErrorCode code = flush(name);
+            if (code != ErrorCode.NO_ERROR) {
+                result = code;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write everything pending on the IO executor without waiting for it, e.g. from the main thread.
+     */
+    public void flushAllInBackground() {
+        for (String name : pendingNames()) {
+            flushOnIOExecutor(name);
+        }
+    }
+
+    /**
+     * @return the names with data not yet written
+     */
+    public List<String> pendingNames() {
+        synchronized (mPending) {
+            return new ArrayList<String>(mPending.keySet());
+        }
+    }
+
+    /**
+     * Stop the timer and write everything pending on the IO executor, shut it down after this to
+     * let the writes finish. Stores after this are written immediately.
+     */
+    public void shutdown() {
+        mTimer.shutdown();
+        flushAllInBackground();
+    }
+
+    private ErrorCode write(String name, String data) {
+        try {
+            return mWriter.write(name, data);
+        } catch (RuntimeException e) {
+            AsyncLog.e(TAG, "Delayed write to " + name + " threw", e);
+            return ErrorCode.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.hz.zebra.core;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link JsonReader} against org.json, the way the bridge used it: a batch of notes in. Its speed
+ * is measured by the JsonCost jmh benchmark.
+ */
+public class JsonReaderTest {
+    private static final int NOTES = 500;
+    private static final String TRICKY = JsonWriterTest.TRICKY;
+
+    private static String writeWithOrgJson() {
+        JSONArray files = new JSONArray();
+        for (int i = 0; i < NOTES; i++) {
+            JSONObject file = new JSONObject();
+            file.put("name", "note-" + i);
+            file.put("size", 4096L + i);
+            file.put("modified", 1600000000000L + i);
+            file.put("title", "Note \"" + i + "\"");
+            file.put("preview", "first line\nsecond line of note " + i);
+            files.put(file);
+        }
+        JSONObject result = new JSONObject();
+        result.put("total", NOTES);
+        result.put("files", files);
+        return result.toString();
+    }
+
+    private static int readWithJsonReader(String json) throws IOException {
+        JsonReader reader = new JsonReader(json);
+        int chars = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("files")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("preview")) {
+                        chars += reader.nextString().length();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return chars;
+    }
+
+    private static int readWithOrgJson(String json) {
+        JSONArray files = new JSONObject(json).getJSONArray("files");
+        int chars = 0;
+        for (int i = 0; i < files.length(); i++) {
+            chars += files.getJSONObject(i).getString("preview").length();
+        }
+        return chars;
+    }
+
+    @Test
+    public void readsWhatOrgJsonWrites() throws IOException {
+        String json = writeWithOrgJson();
+        assertEquals(readWithOrgJson(json), readWithJsonReader(json));
+
+        JSONObject object = new JSONObject();
+        object.put("s", TRICKY);
+        object.put("n", -12);
+        object.put("d", 1.5e300);
+        object.put("b", false);
+        object.put("z", JSONObject.NULL);
+        JsonReader reader = new JsonReader(" " + object.toString() + "\n");
+        reader.beginObject();
+        int members = 0;
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            members++;
+            if (name.equals("s")) {
+                assertEquals(TRICKY, reader.nextString());
+            } else if (name.equals("n")) {
+                assertEquals(-12, reader.nextInt());
+            } else if (name.equals("d")) {
+                assertEquals(1.5e300, reader.nextDouble(), 0);
+            } else if (name.equals("b")) {
+                assertFalse(reader.nextBoolean());
+            } else {
+                assertNull(reader.nextStringOrNull());
+            }
+        }
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+        assertEquals(5, members);
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] inputs = {"", "[", "[1,]", "[1 2]", "{\"a\" 1}", "{\"a\":1,}", "[\"a]", "[\"\\x\"]",
+                "[tru]", "[1] 2", "[\"\n\"]", "{1:2}", "[-]"};
+        for (String input : inputs) {
+            try {
+                JsonReader reader = new JsonReader(input);
+                reader.skipValue();
+                reader.peek();
+                fail("Accepted " + input);
+            } catch (IOException expected) {
+                // Malformed.
+            }
+        }
+    }
+}
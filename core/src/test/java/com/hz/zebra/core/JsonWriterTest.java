@@ -0,0 +1,108 @@
+package com.hz.zebra.core;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link JsonWriter} against org.json, the way the bridge used it: a list of note metadata out.
+ * Its speed is measured by the JsonCost jmh benchmark.
+ */
+public class JsonWriterTest {
+    private static final int NOTES = 500;
+
+    static final String TRICKY = "quote \" backslash \\ slash / tab \t newline \n cr \r "
+            + "nul \u0000 bell \u0007 unit sep \u001f del \u007f line sep \u2028 par sep \u2029 "
+            + "\u6591\u9a6c \ud83e\udd93";
+
+    private static String writeWithJsonWriter() {
+        JsonWriter writer = JsonWriter.obtain().beginObject().name("total").value(NOTES).name("files").beginArray();
+        for (int i = 0; i < NOTES; i++) {
+            writer.beginObject()
+                    .name("name").value("note-" + i)
+                    .name("size").value(4096L + i)
+                    .name("modified").value(1600000000000L + i)
+                    .name("title").value("Note \"" + i + "\"")
+                    .name("preview").value("first line\nsecond line of note " + i)
+                    .endObject();
+        }
+        return writer.endArray().endObject().finish();
+    }
+
+    private static String writeWithOrgJson() {
+        JSONArray files = new JSONArray();
+        for (int i = 0; i < NOTES; i++) {
+            JSONObject file = new JSONObject();
+            file.put("name", "note-" + i);
+            file.put("size", 4096L + i);
+            file.put("modified", 1600000000000L + i);
+            file.put("title", "Note \"" + i + "\"");
+            file.put("preview", "first line\nsecond line of note " + i);
+            files.put(file);
+        }
+        JSONObject result = new JSONObject();
+        result.put("total", NOTES);
+        result.put("files", files);
+        return result.toString();
+    }
+
+    @Test
+    public void escapesLikeOrgJson() throws IOException {
+        String quoted = JsonWriter.quote(TRICKY);
+        assertEquals(TRICKY, new JSONArray("[" + quoted + "]").getString(0));
+        assertEquals(TRICKY, new JsonReader(quoted).nextString());
+        // Safe to paste into javascript source.
+        assertFalse(quoted.contains("\u2028"));
+        assertFalse(quoted.contains("\u2029"));
+        assertTrue(quoted.contains("\\u2028"));
+        assertEquals("\"\\u0000\\u001f\"", JsonWriter.quote("\u0000\u001f"));
+        assertEquals("null", JsonWriter.quote(null));
+    }
+
+    @Test
+    public void writesWhatOrgJsonReads() {
+        String json = JsonWriter.obtain().beginObject()
+                .name("string").value(TRICKY)
+                .name("long").value(Long.MAX_VALUE)
+                .name("double").value(0.25)
+                .name("whole").value(3.0)
+                .name("bool").value(true)
+                .name("null").nullValue()
+                .name("empty").beginArray().endArray()
+                .name("nested").beginObject().name("list").value(new String[]{"a", "b"}).endObject()
+                .endObject().finish();
+        JSONObject object = new JSONObject(json);
+        assertEquals(TRICKY, object.getString("string"));
+        assertEquals(Long.MAX_VALUE, object.getLong("long"));
+        assertEquals(0.25, object.getDouble("double"), 0);
+        assertEquals(3, object.getInt("whole"));
+        assertTrue(object.getBoolean("bool"));
+        assertTrue(object.isNull("null"));
+        assertEquals(0, object.getJSONArray("empty").length());
+        assertEquals("b", object.getJSONObject("nested").getJSONArray("list").getString(1));
+        assertEquals(writeWithOrgJson().length(), writeWithJsonWriter().length());
+    }
+
+    @Test
+    public void indentedOutputIsTheSameJson() {
+        String json = JsonWriter.obtain().setIndent("  ").beginObject()
+                .name("a").beginArray().value(1).value(2).endArray()
+                .name("b").beginObject().endObject()
+                .endObject().finish();
+        assertEquals("{\n  \"a\": [\n    1,\n    2\n  ],\n  \"b\": {}\n}", json);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsValueWithoutName() {
+        JsonWriter.obtain().beginObject().value(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaN() {
+        JsonWriter.obtain().beginArray().value(Double.NaN);
+    }
+}
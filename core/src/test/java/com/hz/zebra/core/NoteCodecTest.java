@@ -0,0 +1,130 @@
+package com.hz.zebra.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link NoteCodec} round trips and the files it writes, the way {@link NoteJournal} does.
+ * Speed per DEFLATE level is measured by the jmh benchmarks {@code CodecThroughput} and
+ * {@code JournalThroughput}.
+ */
+public class NoteCodecTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Cells of json with markdown, like the notebooks the web app stores.
+    private static String notebook(int size) {
+        Random random = new Random(42);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 2 + random.nextInt(9);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = sb.toString();
+        }
+
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("{\"title\":\"Benchmark\",\"cells\":[");
+        int cell = 0;
+        while (sb.length() < size) {
+            sb.append("{\"id\":").append(cell++).append(",\"type\":\"markdown\",\"source\":\"## ");
+            for (int i = 0; i < 80; i++) {
+                sb.append(words[(int) (Math.pow(random.nextDouble(), 3) * words.length)]);
+                sb.append(i % 15 == 14 ? "\\n" : " ");
+            }
+            sb.append("\u6591\u9a6c\"},");
+        }
+        sb.append("{}]}");
+        return sb.toString();
+    }
+
+    private static String read(File file) throws IOException {
+        try (InputStream input = NoteCodec.decode(new FileInputStream(file))) {
+            long length = NoteCodec.getLength(input);
+            return Utf8StreamReader.read(input, length != NoteCodec.UNKNOWN_LENGTH ? length : file.length()).value;
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        File dir = mFolder.newFolder();
+        NoteCodec codec = new NoteCodec(NoteCodec.DEFLATE, Deflater.DEFAULT_COMPRESSION, 1024);
+        for (String text : new String[]{"", "small", notebook(100 * 1024), "\ud83e\udd93 " + notebook(5000)}) {
+            File file = new File(dir, "note");
+            assertEquals(ErrorCode.NO_ERROR, AtomicFileWriter.write(file, dir, text, null, null, codec));
+            assertEquals(text, read(file));
+            assertEquals(text.getBytes(StandardCharsets.UTF_8).length, NoteCodec.utf8Length(text));
+        }
+
+        // Files from before the codec have no header.
+        File legacy = new File(dir, "legacy");
+        try (FileOutputStream output = new FileOutputStream(legacy)) {
+            output.write("{\"title\":\"old\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("{\"title\":\"old\"}", read(legacy));
+    }
+
+    @Test
+    public void compressesFromTheThreshold() throws Exception {
+        File dir = mFolder.newFolder();
+        NoteCodec codec = new NoteCodec(NoteCodec.DEFLATE, Deflater.BEST_SPEED, 1024);
+        assertFalse(codec.compresses(1023));
+        assertTrue(codec.compresses(1024));
+        assertFalse(new NoteCodec(NoteCodec.NONE, 0, 0).compresses(1 << 20));
+
+        String small = notebook(512);
+        String large = notebook(64 * 1024);
+        File file = new File(dir, "note");
+        assertEquals(ErrorCode.NO_ERROR, AtomicFileWriter.write(file, dir, small, null, null, codec));
+        assertEquals(NoteCodec.utf8Length(small), file.length());
+        try (InputStream input = NoteCodec.decode(new FileInputStream(file))) {
+            assertFalse(NoteCodec.isEncoded(input));
+            assertEquals(NoteCodec.UNKNOWN_LENGTH, NoteCodec.getLength(input));
+        }
+
+        assertEquals(ErrorCode.NO_ERROR, AtomicFileWriter.write(file, dir, large, null, null, codec));
+        try (InputStream input = NoteCodec.decode(new FileInputStream(file))) {
+            assertTrue(NoteCodec.isEncoded(input));
+            assertEquals(NoteCodec.utf8Length(large), NoteCodec.getLength(input));
+        }
+    }
+
+    @Test
+    public void higherLevelsCompressNoWorse() throws Exception {
+        File dir = mFolder.newFolder();
+        String text = notebook(1024 * 1024);
+        long previous = NoteCodec.utf8Length(text);
+        for (int level : new int[]{Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION}) {
+            File file = new File(dir, "note" + level);
+            NoteCodec codec = new NoteCodec(NoteCodec.DEFLATE, level, 0);
+            assertEquals(ErrorCode.NO_ERROR, AtomicFileWriter.write(file, dir, text, null, null, codec));
+            assertTrue("level " + level, file.length() <= previous);
+            previous = file.length();
+            assertEquals(text, read(file));
+        }
+        // Notebooks are mostly repeated words and markup.
+        assertTrue(previous < NoteCodec.utf8Length(text) / 2);
+    }
+
+    @Test
+    public void utf8LengthMatchesEncoder() {
+        for (String text : new String[]{"", "abc", "\u00e9t\u00e9", "\u6591\u9a6c", "\ud83e\udd93",
+                "lone \ud83e high", "lone \udd93 low", "end \ud83e"}) {
+            assertEquals(text, text.getBytes(StandardCharsets.UTF_8).length, NoteCodec.utf8Length(text));
+        }
+    }
+}
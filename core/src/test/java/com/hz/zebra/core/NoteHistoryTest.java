@@ -0,0 +1,240 @@
+package com.hz.zebra.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link NoteHistory} chunking, sharing of chunks, recovery of a torn history file and
+ * pruning. The key store is not available on the JVM, a software AES key stands in for it.
+ */
+public class NoteHistoryTest {
+    // Every record is a version of its own.
+    private static final long NO_AMEND = 0;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private NoteHistory newHistory(File dir, SegmentedCipher cipher) throws IOException {
+        return new NoteHistory(dir, mFolder.newFolder(), NO_AMEND, cipher);
+    }
+
+    private static SegmentedCipher newCipher() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        return new SegmentedCipher(generator.generateKey());
+    }
+
+    /**
+     * @return lines of made up words, the same for the same seed
+     */
+    private static String text(int seed, int size) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            int words = 3 + random.nextInt(10);
+            for (int i = 0; i < words; i++) {
+                int letters = 1 + random.nextInt(8);
+                for (int j = 0; j < letters; j++) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                text.append(i < words - 1 ? ' ' : '\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static List<Integer> boundaries(byte[] data) {
+        List<Integer> ends = new ArrayList<Integer>();
+        for (int start = 0; start < data.length; ) {
+            start = NoteHistory.findBoundary(data, start);
+            ends.add(start);
+        }
+        return ends;
+    }
+
+    private static List<File> chunkFiles(File dir) {
+        List<File> files = new ArrayList<File>();
+        File[] dirs = new File(dir, "chunks").listFiles();
+        if (dirs != null) {
+            for (File chunkDir : dirs) {
+                File[] chunks = chunkDir.listFiles();
+                if (chunks != null) {
+                    for (File chunk : chunks) {
+                        files.add(chunk);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void boundariesStayInBoundsAndFollowTheContent() {
+        byte[] data = text(1, 64 * 1024).getBytes(StandardCharsets.UTF_8);
+        List<Integer> ends = boundaries(data);
+        assertEquals(boundaries(data), ends);
+        int start = 0;
+        for (int i = 0; i < ends.size(); i++) {
+            int length = ends.get(i) - start;
+            assertTrue(length <= NoteHistory.MAX_CHUNK);
+            assertTrue(i == ends.size() - 1 || length >= NoteHistory.MIN_CHUNK);
+            start = ends.get(i);
+        }
+        assertEquals(data.length, start);
+        // Not just cut at the maximum.
+        assertTrue(ends.size() > data.length / NoteHistory.MAX_CHUNK + 1);
+
+        // Inserting a few bytes moves the boundaries after it by as many bytes, past the next one.
+        int at = data.length / 2;
+        byte[] inserted = new byte[data.length + 5];
+        System.arraycopy(data, 0, inserted, 0, at);
+        System.arraycopy("hello".getBytes(StandardCharsets.UTF_8), 0, inserted, at, 5);
+        System.arraycopy(data, at, inserted, at + 5, data.length - at);
+        List<Integer> shifted = boundaries(inserted);
+        int moved = 0;
+        for (int end : ends) {
+            if (end < at) {
+                assertTrue(shifted.contains(end));
+            } else if (!shifted.contains(end + 5)) {
+                moved++;
+            }
+        }
+        assertTrue(moved <= 1);
+    }
+
+    @Test
+    public void keepsVersionsAndStoresAnEditAsFewChunks() throws IOException {
+        File dir = mFolder.newFolder("history");
+        NoteHistory history = newHistory(dir, null);
+        String first = text(2, 64 * 1024);
+        assertEquals(ErrorCode.NO_ERROR, history.record("note", first));
+        int chunks = chunkFiles(dir).size();
+        assertTrue(chunks > 1);
+
+        int middle = first.indexOf('\n', first.length() / 2) + 1;
+        String second = first.substring(0, middle) + "an edit\n" + first.substring(middle);
+        assertEquals(ErrorCode.NO_ERROR, history.record("note", second));
+        int added = chunkFiles(dir).size() - chunks;
+        assertTrue(added >= 1 && added <= 2);
+        // Unchanged, no new version.
+        assertEquals(ErrorCode.NO_ERROR, history.record("note", second));
+
+        List<NoteHistory.Version> versions = history.list("note");
+        assertEquals(2, versions.size());
+        assertEquals(first, history.load("note", versions.get(1).id).value);
+        assertEquals(second, history.load("note", versions.get(0).id).value);
+        assertEquals(ErrorCode.FILE_NOT_FOUND, history.load("note", 42).code);
+
+        // The same content in another note takes no chunks of its own.
+        chunks = chunkFiles(dir).size();
+        history.record("copy", first);
+        assertEquals(chunks, chunkFiles(dir).size());
+        assertEquals(first, history.load("copy", history.list("copy").get(0).id).value);
+    }
+
+    @Test
+    public void dropsTornRecords() throws IOException {
+        File dir = mFolder.newFolder("history");
+        NoteHistory history = newHistory(dir, null);
+        String first = text(3, 16 * 1024);
+        String second = text(4, 16 * 1024);
+        history.record("note", first);
+        history.record("note", second);
+        File file = new File(dir, "note.hist");
+        long length = file.length();
+
+        // Cut off while appending the next record.
+        try (FileOutputStream output = new FileOutputStream(file, true)) {
+            output.write(new byte[]{0, 0, 0, 40, 2, 0, 0});
+        }
+        history = newHistory(dir, null);
+        assertEquals(2, history.list("note").size());
+        assertEquals(length, file.length());
+        assertEquals(ErrorCode.NO_ERROR, history.record("note", first + "more\n"));
+        assertEquals(3, newHistory(dir, null).list("note").size());
+
+        // A damaged last record goes, the versions before it stay.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+        history = newHistory(dir, null);
+        List<NoteHistory.Version> versions = history.list("note");
+        assertEquals(2, versions.size());
+        assertEquals(second, history.load("note", versions.get(0).id).value);
+        assertEquals(first, history.load("note", versions.get(1).id).value);
+    }
+
+    @Test
+    public void pruneKeepsTheNewestAndSweepsUnusedChunks() throws IOException {
+        File dir = mFolder.newFolder("history");
+        NoteHistory history = newHistory(dir, null);
+        history.record("note", text(5, 32 * 1024));
+        history.record("note", text(6, 32 * 1024));
+        String newest = text(7, 32 * 1024);
+        history.record("note", newest);
+        history.record("gone", text(8, 32 * 1024));
+        history.remove("gone");
+        int oldest = history.list("note").get(2).id;
+
+        assertEquals(0, history.prune(3, Long.MAX_VALUE));
+        assertEquals(2, history.prune(1, Long.MAX_VALUE));
+        List<NoteHistory.Version> versions = history.list("note");
+        assertEquals(1, versions.size());
+        assertEquals(newest, history.load("note", versions.get(0).id).value);
+        assertEquals(ErrorCode.FILE_NOT_FOUND, history.load("note", oldest).code);
+        // Past the retention, but the newest is always kept.
+        assertEquals(0, history.prune(10, 0));
+        assertEquals(1, newHistory(dir, null).list("note").size());
+
+        File alone = mFolder.newFolder("alone");
+        newHistory(alone, null).record("note", newest);
+        assertEquals(chunkFiles(alone).size(), chunkFiles(dir).size());
+    }
+
+    @Test
+    public void encryptsChunksAndConvertsThem() throws Exception {
+        File dir = mFolder.newFolder("history");
+        SegmentedCipher cipher = newCipher();
+        NoteHistory history = newHistory(dir, cipher);
+        String plain = text(9, 32 * 1024);
+        history.record("note", plain);
+        int plainChunks = chunkFiles(dir).size();
+        history.setEncrypted(true);
+        String secret = text(10, 32 * 1024);
+        history.record("note", secret);
+        assertEquals(plainChunks, history.recode());
+
+        List<File> chunks = chunkFiles(dir);
+        for (File chunk : chunks) {
+            assertTrue(SegmentedCipher.isEncrypted(chunk));
+        }
+        assertEquals(0, history.recode());
+        history = newHistory(dir, cipher);
+        assertEquals(secret, history.load("note", history.list("note").get(0).id).value);
+        assertEquals(plain, history.load("note", history.list("note").get(1).id).value);
+
+        history.setEncrypted(false);
+        assertEquals(chunks.size(), history.recode());
+        for (File chunk : chunkFiles(dir)) {
+            assertFalse(SegmentedCipher.isEncrypted(chunk));
+        }
+        assertEquals(secret, history.load("note", history.list("note").get(0).id).value);
+    }
+}
@@ -0,0 +1,166 @@
+package com.hz.zebra.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SearchIndex} on a few notes. The timings over a large corpus are in the jmh
+ * source set, see {@code SearchCost}.
+ */
+public class SearchIndexTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class Notes implements SearchIndex.Source {
+        final Map<String, String> notes = new HashMap<String, String>();
+        final Map<String, Long> stamps = new HashMap<String, Long>();
+        int reads;
+
+        void store(String name, String data) {
+            notes.put(name, data);
+            Long stamp = stamps.get(name);
+            stamps.put(name, stamp != null ? stamp + 1 : 1);
+        }
+
+        @Override
+        public String[] list() {
+            return notes.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public long stamp(String name) {
+            return stamps.get(name);
+        }
+
+        @Override
+        public Result<String> read(String name) {
+            reads++;
+            return Result.ok(notes.get(name));
+        }
+    }
+
+    private static List<String> names(List<SearchIndex.Hit> hits) {
+        String[] names = new String[hits.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = hits.get(i).name;
+        }
+        return Arrays.asList(names);
+    }
+
+    @Test
+    public void tokenizeMixedText() {
+        assertEquals(Arrays.asList("zebra", "note", "斑", "马", "v2"), SearchIndex.tokenize("Zebra-Note 斑马, v2!"));
+    }
+
+    @Test
+    public void ranksNotesWithMoreMatchesFirst() {
+        SearchIndex index = new SearchIndex(new File(mFolder.getRoot(), "search.idx"));
+        index.update("a", "zebra notes about zebras", 1);
+        index.update("b", "zebra zebra zebra stripes", 1);
+        index.update("c", "nothing to see", 1);
+        assertEquals(Arrays.asList("b", "a"), names(index.search("zebra", 10)));
+        assertEquals(Arrays.asList("b"), names(index.search("zebra", 1)));
+
+        index.remove("b");
+        index.update("c", "now a zebra", 2);
+        assertEquals(2, index.search("zebra", 10).size());
+        assertTrue(index.search("stripes", 10).isEmpty());
+    }
+
+    @Test
+    public void savedIndexLoadsWithTheSameScores() {
+        File file = new File(mFolder.getRoot(), "search.idx");
+        SearchIndex index = new SearchIndex(file);
+        for (int i = 0; i < 50; i++) {
+            index.update("note" + i, "zebra " + i + " stripes " + (i % 7) + " 斑马", i);
+        }
+        index.remove("note3");
+        assertEquals(ErrorCode.NO_ERROR, index.save(mFolder.getRoot()));
+        assertFalse(index.isDirty());
+
+        SearchIndex loaded = new SearchIndex(file);
+        assertEquals(ErrorCode.NO_ERROR, loaded.load());
+        assertEquals(index.size(), loaded.size());
+        List<SearchIndex.Hit> expected = index.search("stripes 5 马", 10);
+        List<SearchIndex.Hit> actual = loaded.search("stripes 5 马", 10);
+        assertEquals(names(expected), names(actual));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).score, actual.get(i).score, 1e-4);
+        }
+    }
+
+    @Test
+    public void longWordsAreCutAndStillSaved() {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            word.append((char) ('a' + i % 26));
+        }
+        List<String> tokens = SearchIndex.tokenize(word + " zebra");
+        assertEquals(SearchIndex.MAX_TOKEN_LENGTH, tokens.get(0).length());
+
+        File file = new File(mFolder.getRoot(), "search.idx");
+        SearchIndex index = new SearchIndex(file);
+        index.update("long", word.toString(), 1);
+        assertEquals(ErrorCode.NO_ERROR, index.save(mFolder.getRoot()));
+        SearchIndex loaded = new SearchIndex(file);
+        assertEquals(ErrorCode.NO_ERROR, loaded.load());
+        assertEquals(Arrays.asList("long"), names(loaded.search(word.toString(), 10)));
+    }
+
+    @Test
+    public void reconcileCatchesUpWithNotesChangedSinceTheSave() {
+        File file = new File(mFolder.getRoot(), "search.idx");
+        Notes notes = new Notes();
+        notes.store("kept", "zebra");
+        notes.store("changed", "horse");
+        notes.store("deleted", "zebra");
+        SearchIndex index = new SearchIndex(file);
+        assertEquals(3, index.reconcile(notes));
+        assertEquals(ErrorCode.NO_ERROR, index.save(mFolder.getRoot()));
+
+        // Changed while the index was not saved, e.g. before a crash.
+        notes.store("changed", "zebra");
+        notes.store("added", "zebra");
+        notes.notes.remove("deleted");
+        notes.stamps.remove("deleted");
+        notes.reads = 0;
+
+        SearchIndex loaded = new SearchIndex(file);
+        assertEquals(ErrorCode.NO_ERROR, loaded.load());
+        assertEquals(3, loaded.reconcile(notes));
+        assertEquals(2, notes.reads);
+        List<String> hits = names(loaded.search("zebra", 10));
+        assertEquals(3, hits.size());
+        assertTrue(hits.containsAll(Arrays.asList("kept", "changed", "added")));
+        assertEquals(0, loaded.reconcile(notes));
+    }
+
+    @Test
+    public void snippetAroundTheFirstMatch() {
+        String text = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, the zebra\nsed do eiusmod tempor";
+        String snippet = SearchIndex.snippet(text, "Zebra");
+        assertTrue(snippet, snippet.contains("the zebra sed"));
+        assertEquals("", SearchIndex.snippet(null, "zebra"));
+    }
+
+    @Test
+    public void snippetWhenLowerCasingChangesTheLength() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            // Lower cases to two chars, i and a combining dot.
+            sb.append('\u0130');
+        }
+        String text = sb.append(" foo bar").toString();
+        String snippet = SearchIndex.snippet(text, "foo");
+        assertTrue(snippet, snippet.endsWith(" foo bar"));
+    }
+}
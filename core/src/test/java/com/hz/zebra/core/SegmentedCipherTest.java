@@ -0,0 +1,162 @@
+package com.hz.zebra.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SegmentedCipher} round trips and tamper detection. The key store is not available
+ * on the JVM, a software AES key stands in for it. Throughput is measured by the jmh benchmarks
+ * {@code CodecThroughput} and {@code CipherFileCost}.
+ */
+public class SegmentedCipherTest {
+    private static final int SEGMENT = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static SegmentedCipher newCipher() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SecretKey key = generator.generateKey();
+        SegmentedCipher cipher = new SegmentedCipher(key);
+        // Decrypt large files ahead even where there is a single core.
+        cipher.setThreads(4);
+        return cipher;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static void encrypt(SegmentedCipher cipher, byte[] data, File file) throws IOException {
+        try (OutputStream output = cipher.encrypt(new FileOutputStream(file))) {
+            output.write(data);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private static void assertRejected(SegmentedCipher cipher, File file, String message) {
+        try (InputStream input = cipher.decrypt(file, 0, null)) {
+            readAll(input);
+            fail(message);
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        SegmentedCipher cipher = newCipher();
+        // The largest is decrypted ahead on several threads.
+        for (int size : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 40 * SEGMENT + 7}) {
+            byte[] data = random(size);
+            File file = mFolder.newFile();
+            encrypt(cipher, data, file);
+            assertTrue(SegmentedCipher.isEncrypted(file));
+
+            try (InputStream input = cipher.decrypt(new FileInputStream(file))) {
+                assertArrayEquals("stream " + size, data, readAll(input));
+            }
+            try (InputStream input = cipher.decrypt(file, 0)) {
+                assertArrayEquals("file " + size, data, readAll(input));
+            }
+            try (FileInputStream raw = new FileInputStream(file);
+                 InputStream input = cipher.decrypt(raw.getChannel(), 0, null)) {
+                assertArrayEquals("channel " + size, data, readAll(input));
+            }
+        }
+    }
+
+    @Test
+    public void readsFromOffset() throws Exception {
+        SegmentedCipher cipher = newCipher();
+        for (int size : new int[]{0, 1, SEGMENT, 3 * SEGMENT + 1, 40 * SEGMENT + 7}) {
+            byte[] data = random(size);
+            File file = mFolder.newFile();
+            encrypt(cipher, data, file);
+            for (long offset : new long[]{size / 3 + 5, SEGMENT, size - 1, size + SEGMENT}) {
+                try (InputStream input = cipher.decrypt(file, offset)) {
+                    byte[] expected = offset < size && offset >= 0
+                            ? Arrays.copyOfRange(data, (int) offset, size) : new byte[0];
+                    assertArrayEquals("size " + size + " offset " + offset, expected, readAll(input));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checksumCoversTheStoredFile() throws Exception {
+        SegmentedCipher cipher = newCipher();
+        for (int size : new int[]{0, 3 * SEGMENT + 1, 40 * SEGMENT + 7}) {
+            File file = mFolder.newFile();
+            encrypt(cipher, random(size), file);
+            CRC32 expected = new CRC32();
+            expected.update(Files.readAllBytes(file.toPath()));
+
+            CRC32 crc = new CRC32();
+            try (InputStream input = cipher.decrypt(file, 0, crc)) {
+                readAll(input);
+            }
+            assertEquals("size " + size, expected.getValue(), crc.getValue());
+        }
+    }
+
+    @Test
+    public void rejectsTamperingAndTruncation() throws Exception {
+        SegmentedCipher cipher = newCipher();
+        for (int segments : new int[]{3, 40}) {
+            File file = mFolder.newFile();
+            encrypt(cipher, random(segments * SEGMENT), file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(file.length() / 2);
+                int b = raf.read();
+                raf.seek(file.length() / 2);
+                raf.write(b ^ 1);
+            }
+            assertRejected(cipher, file, "Flipped bit not detected in " + segments + " segments");
+
+            encrypt(cipher, random(segments * SEGMENT), file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // Drop the last, full segment.
+                raf.setLength(file.length() - (SEGMENT + 28));
+            }
+            assertRejected(cipher, file, "Truncation not detected in " + segments + " segments");
+            try (InputStream input = cipher.decrypt(new FileInputStream(file))) {
+                readAll(input);
+                fail("Truncation not detected in stream of " + segments + " segments");
+            } catch (IOException expected) {
+                // ok
+            }
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package com.hz.zebra.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.KeyGenerator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs two devices through an in-memory stand-in for the Zebra Note Book server, speaking the
+ * protocol described in {@link SyncEngine}.
+ */
+public class SyncEngineTest {
+    private static final String TOKEN = "secret";
+
+    private static class ServerNote {
+        long version;
+        long sequence;
+        long modified;
+        String data;
+    }
+
+    /**
+     * The server side of the protocol, with ways to cut requests off.
+     */
+    private static class StandIn implements HttpHandler {
+        final Map<String, ServerNote> notes = new TreeMap<String, ServerNote>();
+        final List<String> pushedNames = new ArrayList<String>();
+        long sequence;
+        int pushRequests;
+        int fetchRequests;
+        long uncompressedBytes;
+        // Take this many more pushes, then fail the next one, before or after applying it.
+        int pushesBeforeFailure = -1;
+        boolean failAfterApplying;
+
+        @Override
+        public synchronized void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!("Bearer " + TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    respond(exchange, 401, "{}");
+                    return;
+                }
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/api/changes")) {
+                    respond(exchange, 200, changes(Long.parseLong(exchange.getRequestURI().getQuery().substring(6))));
+                } else if (path.equals("/api/fetch")) {
+                    fetchRequests++;
+                    respond(exchange, 200, fetch(new JsonReader(body(exchange))));
+                } else if (path.equals("/api/push")) {
+                    String body = body(exchange);
+                    pushRequests++;
+                    if (pushesBeforeFailure == 0 && !failAfterApplying) {
+                        pushesBeforeFailure = -1;
+                        respond(exchange, 503, "{}");
+                        return;
+                    }
+                    String response = push(new JsonReader(body));
+                    if (pushesBeforeFailure-- == 0) {
+                        respond(exchange, 503, "{}");
+                        return;
+                    }
+                    respond(exchange, 200, response);
+                } else {
+                    respond(exchange, 404, "{}");
+                }
+            } catch (IOException e) {
+                respond(exchange, 400, "{}");
+            }
+        }
+
+        private String body(HttpExchange exchange) throws IOException {
+            assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            InputStream input = new GZIPInputStream(exchange.getRequestBody());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            uncompressedBytes += bytes.size();
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(body.getBytes(StandardCharsets.UTF_8));
+            gzip.close();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(status, compressed.size());
+            OutputStream output = exchange.getResponseBody();
+            compressed.writeTo(output);
+            output.close();
+        }
+
+        private String changes(long since) {
+            JsonWriter writer = JsonWriter.obtain().beginObject().name("cursor").value(sequence)
+                    .name("notes").beginArray();
+            for (Map.Entry<String, ServerNote> entry : notes.entrySet()) {
+                ServerNote note = entry.getValue();
+                if (note.sequence > since) {
+                    writer.beginObject().name("name").value(entry.getKey()).name("version").value(note.version)
+                            .name("modified").value(note.modified);
+                    if (note.data != null) {
+                        writer.name("hash").value(SyncEngine.hash(note.data));
+                    } else {
+                        writer.name("deleted").value(true);
+                    }
+                    writer.endObject();
+                }
+            }
+            return writer.endArray().endObject().finish();
+        }
+
+        private String fetch(JsonReader reader) throws IOException {
+            JsonWriter writer = JsonWriter.obtain().beginObject().name("notes").beginArray();
+            reader.beginObject();
+            reader.nextName();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = reader.nextString();
+                ServerNote note = notes.get(name);
+                if (note != null && note.data != null) {
+                    writer.beginObject().name("name").value(name).name("version").value(note.version)
+                            .name("modified").value(note.modified).name("data").value(note.data).endObject();
+                }
+            }
+            return writer.endArray().endObject().finish();
+        }
+
+        private String push(JsonReader reader) throws IOException {
+            JsonWriter writer = JsonWriter.obtain().beginObject().name("results").beginArray();
+            reader.beginObject();
+            reader.nextName();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = null;
+                long base = -1;
+                long modified = 0;
+                String data = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    if (key.equals("name")) {
+                        name = reader.nextString();
+                    } else if (key.equals("base")) {
+                        base = reader.nextLong();
+                    } else if (key.equals("modified")) {
+                        modified = reader.nextLong();
+                    } else if (key.equals("data")) {
+                        data = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                ServerNote note = notes.get(name);
+                long current = note != null ? note.version : 0;
+                writer.beginObject().name("name").value(name);
+                if (current != base) {
+                    writer.name("status").value("conflict").name("version").value(current);
+                } else {
+                    if (note == null) {
+                        note = new ServerNote();
+                        notes.put(name, note);
+                    }
+                    note.version++;
+                    note.sequence = ++sequence;
+                    note.modified = modified;
+                    note.data = data;
+                    pushedNames.add(name);
+                    writer.name("status").value("ok").name("version").value(note.version);
+                }
+                writer.endObject();
+            }
+            return writer.endArray().endObject().finish();
+        }
+    }
+
+    /**
+     * Notes of one device, in memory, with a clock that only moves forward.
+     */
+    private static class Device implements SyncEngine.Store {
+        static long sClock = 1000;
+        final Map<String, String> notes = new TreeMap<String, String>();
+        final Map<String, Long> modified = new TreeMap<String, Long>();
+        final ReentrantLock lock = new ReentrantLock();
+        final SyncEngine engine;
+        // Run by the next read once it has read, the way a store from the page can come in at any time.
+        volatile Runnable afterRead;
+
+        Device(File dir, String server, int maxBatchChars) {
+            this(dir, server, maxBatchChars, null);
+        }
+
+        Device(File dir, String server, int maxBatchChars, SegmentedCipher cipher) {
+            engine = new SyncEngine(dir, dir, this, maxBatchChars, cipher);
+            engine.setEncrypted(cipher != null);
+            engine.setServer(server, TOKEN);
+        }
+
+        @Override
+        public synchronized String[] list() {
+            return notes.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public Result<String> read(String name) {
+            String data;
+            synchronized (this) {
+                data = notes.get(name);
+            }
+            Runnable hook = afterRead;
+            if (hook != null) {
+                afterRead = null;
+                hook.run();
+            }
+            return data != null ? Result.ok(data) : Result.<String>error(ErrorCode.FILE_NOT_FOUND);
+        }
+
+        @Override
+        public synchronized ErrorCode write(String name, String data) {
+            notes.put(name, data);
+            modified.put(name, ++sClock);
+            return ErrorCode.NO_ERROR;
+        }
+
+        @Override
+        public synchronized boolean delete(String name) {
+            modified.remove(name);
+            return notes.remove(name) != null;
+        }
+
+        @Override
+        public synchronized long lastModified(String name) {
+            Long time = modified.get(name);
+            return time != null ? time : 0;
+        }
+
+        @Override
+        public long getStamp(String name) {
+            return lastModified(name);
+        }
+
+        @Override
+        public void lock(String name) {
+            lock.lock();
+        }
+
+        @Override
+        public void unlock(String name) {
+            lock.unlock();
+        }
+
+        /**
+         * Store a note like the page does, waiting for a sync merging it.
+         */
+        void store(String name, String data) {
+            lock.lock();
+            try {
+                write(name, data);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        SyncEngine.Report sync() {
+            Result<SyncEngine.Report> result = engine.sync();
+            assertEquals(ErrorCode.NO_ERROR, result.code);
+            return result.value;
+        }
+    }
+
+    private HttpServer mHttpServer;
+    private StandIn mStandIn;
+    private String mUrl;
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mStandIn = new StandIn();
+        mHttpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mHttpServer.createContext("/api", mStandIn);
+        mHttpServer.start();
+        mUrl = "http://127.0.0.1:" + mHttpServer.getAddress().getPort() + "/api/";
+        mDir = File.createTempFile("sync", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        mHttpServer.stop(0);
+        delete(mDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private Device device(String name, int maxBatchChars) {
+        return new Device(new File(mDir, name), mUrl, maxBatchChars);
+    }
+
+    private static String lines(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void uploadsOnlyChangedNotes() {
+        Device phone = device("phone", 64 * 1024);
+        for (int i = 0; i < 10; i++) {
+            phone.write("note-" + i, "content " + i);
+        }
+        assertEquals(10, phone.sync().pushed);
+        assertEquals(10, mStandIn.pushedNames.size());
+
+        SyncEngine.Report report = phone.sync();
+        assertEquals(0, report.pushed);
+        assertEquals(1, mStandIn.pushRequests);
+
+        phone.write("note-3", "changed");
+        report = phone.sync();
+        assertEquals(1, report.pushed);
+        assertEquals("note-3", mStandIn.pushedNames.get(10));
+        assertEquals(11, mStandIn.pushedNames.size());
+    }
+
+    @Test
+    public void batchesAndCompressesRequests() {
+        Device phone = device("phone", 3000);
+        StringBuilder note = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            note.append("{\"cell\": ").append(i).append(", \"text\": \"the same words again\"}\n");
+        }
+        for (int i = 0; i < 8; i++) {
+            phone.write("note-" + i, note.toString());
+        }
+        SyncEngine.Report report = phone.sync();
+        assertEquals(8, report.pushed);
+        // Each note is larger than a batch.
+        assertEquals(8, mStandIn.pushRequests);
+        assertTrue(report.bytesSent * 5 < mStandIn.uncompressedBytes);
+    }
+
+    @Test
+    public void propagatesCreatesEditsAndDeletes() {
+        Device phone = device("phone", 64 * 1024);
+        Device laptop = device("laptop", 64 * 1024);
+        phone.write("a", "alpha");
+        phone.write("b", "beta");
+        phone.sync();
+
+        assertEquals(2, laptop.sync().pulled);
+        assertEquals("alpha", laptop.notes.get("a"));
+        assertEquals("beta", laptop.notes.get("b"));
+
+        laptop.write("a", "alpha 2");
+        laptop.delete("b");
+        laptop.write("c", "gamma");
+        laptop.sync();
+
+        phone.sync();
+        assertEquals(laptop.notes, phone.notes);
+        assertFalse(phone.notes.containsKey("b"));
+    }
+
+    @Test
+    public void mergesEditsOfDifferentLines() {
+        Device phone = device("phone", 64 * 1024);
+        Device laptop = device("laptop", 64 * 1024);
+        phone.write("note", lines("title", "one", "two", "three", "four"));
+        phone.sync();
+        laptop.sync();
+
+        phone.write("note", lines("title", "ONE", "two", "three", "four"));
+        laptop.write("note", lines("title", "one", "two", "three", "FOUR", "five"));
+        phone.sync();
+        SyncEngine.Report report = laptop.sync();
+        assertEquals(1, report.merged);
+        String merged = lines("title", "ONE", "two", "three", "FOUR", "five");
+        assertEquals(merged, laptop.notes.get("note"));
+
+        phone.sync();
+        assertEquals(merged, phone.notes.get("note"));
+        assertEquals(merged, mStandIn.notes.get("note").data);
+    }
+
+    @Test
+    public void lastWriterWinsOnConflictingLines() {
+        Device phone = device("phone", 64 * 1024);
+        Device laptop = device("laptop", 64 * 1024);
+        phone.write("note", lines("title", "body"));
+        phone.sync();
+        laptop.sync();
+
+        phone.write("note", lines("title", "phone body"));
+        phone.sync();
+        // Stored later than the phone's edit.
+        laptop.write("note", lines("title", "laptop body"));
+        SyncEngine.Report report = laptop.sync();
+        assertEquals(1, report.overwritten);
+        assertEquals(lines("title", "laptop body"), laptop.notes.get("note"));
+
+        phone.sync();
+        assertEquals(lines("title", "laptop body"), phone.notes.get("note"));
+        assertEquals(lines("title", "laptop body"), mStandIn.notes.get("note").data);
+    }
+
+    @Test
+    public void keepsStoresMadeDuringAPull() throws InterruptedException {
+        final Device phone = device("phone", 64 * 1024);
+        final Device laptop = device("laptop", 64 * 1024);
+        phone.write("note", lines("title", "body"));
+        phone.sync();
+        laptop.sync();
+        phone.write("note", lines("title", "phone body"));
+        phone.sync();
+
+        final Thread page = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                laptop.store("note", lines("title", "laptop body"));
+            }
+        });
+        final int fetchesBefore = mStandIn.fetchRequests;
+        laptop.afterRead = new Runnable() {
+            @Override
+            public void run() {
+                if (mStandIn.fetchRequests == fetchesBefore) {
+                    // Not the read of the fetched note yet.
+                    laptop.afterRead = this;
+                    return;
+                }
+                page.start();
+                try {
+                    // Lets the store through if the sync does not hold the note.
+                    page.join(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        assertEquals(1, laptop.sync().pulled);
+        page.join();
+        assertEquals(lines("title", "laptop body"), laptop.notes.get("note"));
+
+        // Pushed on top of the pulled version, by this sync or the next.
+        laptop.sync();
+        assertEquals(lines("title", "laptop body"), mStandIn.notes.get("note").data);
+    }
+
+    @Test
+    public void resumesAfterFailedPush() {
+        Device phone = device("phone", 50);
+        for (int i = 0; i < 6; i++) {
+            phone.write("note-" + i, "note number " + i + " with enough text to fill a batch of its own");
+        }
+        mStandIn.pushesBeforeFailure = 3;
+        assertEquals(ErrorCode.NETWORK_ERROR, phone.engine.sync().code);
+        assertEquals(3, mStandIn.notes.size());
+
+        // Only what did not get through is sent again.
+        assertEquals(3, phone.sync().pushed);
+        assertEquals(6, mStandIn.pushedNames.size());
+        assertEquals(6, mStandIn.notes.size());
+    }
+
+    @Test
+    public void resumesAfterLostPushResponse() {
+        Device phone = device("phone", 50);
+        for (int i = 0; i < 4; i++) {
+            phone.write("note-" + i, "note number " + i + " with enough text to fill a batch of its own");
+        }
+        mStandIn.pushesBeforeFailure = 2;
+        mStandIn.failAfterApplying = true;
+        assertEquals(ErrorCode.NETWORK_ERROR, phone.engine.sync().code);
+        assertEquals(3, mStandIn.notes.size());
+
+        // The note the server took without telling is recognized by its hash, not sent again.
+        SyncEngine.Report report = phone.sync();
+        assertEquals(1, report.pushed);
+        assertEquals(0, report.pulled);
+        assertEquals(4, mStandIn.pushedNames.size());
+
+        Device laptop = device("laptop", 50);
+        laptop.sync();
+        assertEquals(phone.notes, laptop.notes);
+    }
+
+    @Test
+    public void keepsStateAcrossRestarts() {
+        Device phone = device("phone", 64 * 1024);
+        phone.write("a", "alpha");
+        phone.sync();
+
+        Device restarted = new Device(new File(mDir, "phone"), mUrl, 64 * 1024);
+        restarted.notes.putAll(phone.notes);
+        restarted.modified.putAll(phone.modified);
+        SyncEngine.Report report = restarted.sync();
+        assertEquals(0, report.pushed);
+        assertEquals(0, report.pulled);
+    }
+
+    @Test
+    public void encryptsBaseCopiesAndState() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SegmentedCipher cipher = new SegmentedCipher(generator.generateKey());
+        File dir = new File(mDir, "phone");
+        Device phone = new Device(dir, mUrl, 64 * 1024, cipher);
+        Device laptop = device("laptop", 64 * 1024);
+        phone.write("note", lines("title", "secret one", "two", "three", "four"));
+        phone.sync();
+        laptop.sync();
+        String hash = SyncEngine.hash(phone.notes.get("note"));
+        assertSealed(dir, true, "secret", hash);
+
+        // Merging still finds the base.
+        phone.write("note", lines("title", "secret ONE", "two", "three", "four"));
+        laptop.write("note", lines("title", "secret one", "two", "three", "FOUR"));
+        laptop.sync();
+        Device restarted = new Device(dir, mUrl, 64 * 1024, cipher);
+        restarted.notes.putAll(phone.notes);
+        restarted.modified.putAll(phone.modified);
+        SyncEngine.Report report = restarted.sync();
+        assertEquals(1, report.merged);
+        assertEquals(lines("title", "secret ONE", "two", "three", "FOUR"), restarted.notes.get("note"));
+        assertSealed(dir, true, "secret", SyncEngine.hash(restarted.notes.get("note")));
+
+        restarted.engine.setEncrypted(false);
+        assertSealed(dir, false);
+        assertEquals(0, restarted.sync().pushed);
+    }
+
+    /**
+     * Checks the state and base copies are stored as asked, and that none of them shows the secrets.
+     */
+    private static void assertSealed(File dir, boolean encrypted, String... secrets) throws IOException {
+        List<File> files = new ArrayList<File>();
+        files.add(new File(dir, "state.json"));
+        File[] bases = new File(dir, "base").listFiles();
+        assertNotNull(bases);
+        assertTrue(bases.length > 0);
+        for (File base : bases) {
+            files.add(base);
+        }
+        for (File file : files) {
+            assertEquals(file.getName(), encrypted, SegmentedCipher.isEncrypted(file));
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+            for (String secret : secrets) {
+                assertFalse(file.getName(), content.contains(secret));
+            }
+        }
+    }
+
+    @Test
+    public void reportsUnreachableServer() {
+        Device phone = device("phone", 64 * 1024);
+        phone.write("a", "alpha");
+        mHttpServer.stop(0);
+        assertEquals(ErrorCode.NETWORK_ERROR, phone.engine.sync().code);
+    }
+
+    @Test
+    public void threeWayMerge() {
+        String base = lines("a", "b", "c", "d", "e");
+        assertEquals(lines("A", "b", "c", "d", "E"),
+                ThreeWayMerge.merge(base, lines("A", "b", "c", "d", "e"), lines("a", "b", "c", "d", "E")));
+        // Same change on both sides.
+        assertEquals(lines("a", "B", "c", "d", "e"),
+                ThreeWayMerge.merge(base, lines("a", "B", "c", "d", "e"), lines("a", "B", "c", "d", "e")));
+        // Insertions and deletions far apart.
+        assertEquals(lines("a", "x", "b", "c", "e"),
+                ThreeWayMerge.merge(base, lines("a", "x", "b", "c", "d", "e"), lines("a", "b", "c", "e")));
+        // Same line changed differently.
+        assertNull(ThreeWayMerge.merge(base, lines("a", "b", "1", "d", "e"), lines("a", "b", "2", "d", "e")));
+        // Neighbouring lines are too close to tell.
+        assertNull(ThreeWayMerge.merge(base, lines("a", "b", "1", "d", "e"), lines("a", "b", "c", "2", "e")));
+        assertEquals("x", ThreeWayMerge.merge("", "x", ""));
+    }
+}
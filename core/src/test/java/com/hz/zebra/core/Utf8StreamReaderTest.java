@@ -0,0 +1,67 @@
+package com.hz.zebra.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link Utf8StreamReader} against the old {@link StreamUtils#readStringFromStream(java.io.InputStream)}
+ * and the JDK's decoder. The timings are in the jmh source set, see {@code StreamReadCost}.
+ */
+public class Utf8StreamReaderTest {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+
+    private static byte[] generate(int size, String pattern) {
+        byte[] unit = pattern.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i += unit.length) {
+            System.arraycopy(unit, 0, data, i, Math.min(unit.length, size - i));
+        }
+        return data;
+    }
+
+    @Test
+    public void sameResultAsOldReaderForAscii() {
+        byte[] data = generate(3 * KB + 17, "{\"title\":\"zebra\",\"body\":\"note\"}\n");
+        String expected = StreamUtils.readStringFromStream(new ByteArrayInputStream(data)).value;
+        assertEquals(expected, Utf8StreamReader.read(new ByteArrayInputStream(data)).value);
+    }
+
+    @Test
+    public void multiByteSequencesAcrossBuffers() {
+        // 3 and 4 byte sequences never line up with the reader's buffer size.
+        byte[] data = generate(MB + 5, "斑马笔记 🦓 notes ");
+        String expected = new String(data, StandardCharsets.UTF_8);
+        assertEquals(expected, Utf8StreamReader.read(new ByteArrayInputStream(data), data.length).value);
+        assertEquals(expected, Utf8StreamReader.read(new ByteArrayInputStream(data), 0).value);
+    }
+
+    @Test
+    public void wrongSizeHints() {
+        byte[] data = generate(100 * KB + 3, "zebra 斑马 ");
+        String expected = new String(data, StandardCharsets.UTF_8);
+        assertEquals(expected, Utf8StreamReader.read(new ByteArrayInputStream(data), 20 * KB).value);
+        assertEquals(expected, Utf8StreamReader.read(new ByteArrayInputStream(data), 10 * MB).value);
+        assertEquals(expected, Utf8StreamReader.read(new ByteArrayInputStream(data), data.length - 1).value);
+    }
+
+    @Test
+    public void reusedBufferKeepsNothingFromTheLastRead() {
+        byte[] longer = generate(10 * KB, "long note ");
+        byte[] shorter = generate(5, "short");
+        assertEquals(new String(longer, StandardCharsets.UTF_8),
+                Utf8StreamReader.read(new ByteArrayInputStream(longer), longer.length).value);
+        assertEquals("short", Utf8StreamReader.read(new ByteArrayInputStream(shorter), shorter.length).value);
+        assertEquals("", Utf8StreamReader.read(new ByteArrayInputStream(new byte[0]), 0).value);
+    }
+
+    @Test
+    public void malformedInputIsReplaced() {
+        byte[] data = {'a', (byte) 0xe6, (byte) 0x96, 'b', (byte) 0xff};
+        assertEquals("a�b�", Utf8StreamReader.read(new ByteArrayInputStream(data), data.length).value);
+    }
+}
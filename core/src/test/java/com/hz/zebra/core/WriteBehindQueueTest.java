@@ -0,0 +1,148 @@
+package com.hz.zebra.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindQueueTest {
+    private static final long WINDOW_MS = 20;
+    // For tests flushing by hand, the timer does not fire during the test.
+    private static final long LONG_WINDOW_MS = 60 * 1000;
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private final Map<String, String> mDisk = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger mWrites = new AtomicInteger();
+    private final AtomicInteger mFailuresLeft = new AtomicInteger();
+    // Writes of "slow" wait for this.
+    private final CountDownLatch mSlowRelease = new CountDownLatch(1);
+    private final List<Integer> mReported = Collections.synchronizedList(new ArrayList<Integer>());
+    private IoScheduler mIOExecutor;
+    private WriteBehindQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mIOExecutor = new IoScheduler(4);
+        mQueue = createQueue(WINDOW_MS);
+    }
+
+    private WriteBehindQueue createQueue(long windowMs) {
+        return new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public ErrorCode write(String name, String data) {
+                mWrites.incrementAndGet();
+                if (name.equals("slow")) {
+                    try {
+                        assertTrue(mSlowRelease.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                    } catch (InterruptedException e) {
+                        return ErrorCode.UNKNOWN;
+                    }
+                }
+                if (mFailuresLeft.getAndDecrement() > 0) {
+                    return ErrorCode.UNKNOWN;
+                }
+                mDisk.put(name, data);
+                return ErrorCode.NO_ERROR;
+            }
+        }, new WriteBehindQueue.Listener() {
+            @Override
+            public void onWriteFailed(String name, ErrorCode code, int failures) {
+                assertEquals(ErrorCode.UNKNOWN, code);
+                mReported.add(failures);
+            }
+        }, mIOExecutor, windowMs);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.shutdown();
+        mIOExecutor.shutdown();
+    }
+
+    private void waitFor(String name, String data) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!data.equals(mDisk.get(name)) || mQueue.peek(name) != null) {
+            assertTrue("Not written in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void rapidStoresBecomeOneWrite() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            mQueue.enqueue("a", "version " + i);
+        }
+        assertEquals("version 99", mQueue.peek("a"));
+        waitFor("a", "version 99");
+        assertEquals(1, mWrites.get());
+    }
+
+    @Test
+    public void failedWriteStaysPendingAndIsRetried() throws InterruptedException {
+        mFailuresLeft.set(2);
+        mQueue.enqueue("a", "edit");
+        waitFor("a", "edit");
+        assertEquals(3, mWrites.get());
+        assertEquals(Arrays.asList(1, 2), mReported);
+    }
+
+    @Test
+    public void storeAfterFailureWritesTheNewestData() {
+        mQueue.shutdown();
+        mQueue = createQueue(LONG_WINDOW_MS);
+        mFailuresLeft.set(1);
+        mQueue.enqueue("a", "first");
+        assertEquals(ErrorCode.UNKNOWN, mQueue.flush("a"));
+        assertEquals("first", mQueue.peek("a"));
+        mQueue.enqueue("a", "second");
+        assertEquals(ErrorCode.NO_ERROR, mQueue.flush("a"));
+        assertEquals("second", mDisk.get("a"));
+        assertNull(mQueue.peek("a"));
+    }
+
+    @Test
+    public void flushAllReportsFailures() {
+        mQueue.shutdown();
+        mQueue = createQueue(LONG_WINDOW_MS);
+        mFailuresLeft.set(1);
+        mQueue.enqueue("a", "edit");
+        assertEquals(ErrorCode.UNKNOWN, mQueue.flushAll());
+        assertEquals(Collections.singletonList("a"), mQueue.pendingNames());
+        assertEquals(ErrorCode.NO_ERROR, mQueue.flushAll());
+        assertTrue(mQueue.pendingNames().isEmpty());
+        assertEquals("edit", mDisk.get("a"));
+    }
+
+    @Test
+    public void discardDropsPendingData() {
+        mQueue.shutdown();
+        mQueue = createQueue(LONG_WINDOW_MS);
+        mQueue.enqueue("a", "edit");
+        mQueue.discard("a");
+        assertNull(mQueue.peek("a"));
+        assertEquals(ErrorCode.NO_ERROR, mQueue.flush("a"));
+        assertFalse(mDisk.containsKey("a"));
+    }
+
+    @Test
+    public void writesOfDifferentNamesRunInParallel() throws InterruptedException {
+        mQueue.enqueue("slow", "waits for fast");
+        mQueue.enqueue("fast", "edit");
+        // Only finishes while the write of "slow" is still blocked if they do not share a lock.
+        waitFor("fast", "edit");
+        assertEquals("waits for fast", mQueue.peek("slow"));
+        mSlowRelease.countDown();
+        waitFor("slow", "waits for fast");
+    }
+}